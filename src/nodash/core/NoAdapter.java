@@ -17,14 +17,21 @@
 
 package nodash.core;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 import nodash.exceptions.NoAdapterException;
 import nodash.exceptions.NoSessionExpiredException;
 import nodash.exceptions.NoUserAlreadyOnlineException;
 import nodash.exceptions.NoUserNotValidException;
 import nodash.models.NoByteSet;
+import nodash.models.NoFingerprint;
 import nodash.models.NoSession;
 
 /**
@@ -51,6 +58,20 @@ public interface NoAdapter {
    */
   public void removeHash(byte[] hash) throws NoAdapterException;
 
+  /**
+   * Replaces a user hash with a new one, as done when a user confirms a save. The default
+   * implementation inserts the new hash before removing the old one, so the user is never left
+   * without a valid hash; adapters which can swap both in a single write should override it.
+   * 
+   * @param oldHash the byte array representing the NoUser object before the save.
+   * @param newHash the byte array representing the NoUser object after the save.
+   * @throws NoAdapterException - if the adapter is unable to replace the hash.
+   */
+  public default void replaceHash(byte[] oldHash, byte[] newHash) throws NoAdapterException {
+    insertHash(newHash);
+    removeHash(oldHash);
+  }
+
   /**
    * Checks if the given hash is in the list of user hashes. Throws an exception if not.
    * 
@@ -68,6 +89,60 @@ public interface NoAdapter {
    */
   public byte[][] exportHashes() throws NoAdapterException;
 
+  /**
+   * Returns an iterator over all user hashes in the system, each as a read-only buffer. Unlike
+   * {@link #exportHashes()}, adapters may hand out views of their storage rather than copies, so
+   * that a large hash list can be published without holding it on the heap. The default
+   * implementation wraps the result of {@link #exportHashes()}.
+   * 
+   * @return an iterator over the user hashes.
+   * @throws NoAdapterException - if the adapter cannot return the user hashes.
+   */
+  public default Iterator<ByteBuffer> iterateHashes() throws NoAdapterException {
+    final byte[][] hashes = exportHashes();
+    return new Iterator<ByteBuffer>() {
+      private int index = 0;
+
+      @Override
+      public boolean hasNext() {
+        return index < hashes.length;
+      }
+
+      @Override
+      public ByteBuffer next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return ByteBuffer.wrap(hashes[index++]).asReadOnlyBuffer();
+      }
+    };
+  }
+
+  /**
+   * Writes all user hashes in the system, one after the other, to the given blocking channel, such
+   * as a socket or file being published to a mirror. The default implementation writes the buffers
+   * returned by {@link #iterateHashes()}; adapters backed by files should transfer them directly.
+   * 
+   * @param target the channel to write the user hashes to.
+   * @return the number of bytes written.
+   * @throws NoAdapterException - if the adapter cannot read the user hashes or write them out.
+   */
+  public default long transferHashes(WritableByteChannel target) throws NoAdapterException {
+    Iterator<ByteBuffer> hashes = iterateHashes();
+    long transferred = 0;
+    try {
+      while (hashes.hasNext()) {
+        ByteBuffer hash = hashes.next();
+        while (hash.hasRemaining()) {
+          transferred += target.write(hash);
+        }
+      }
+    } catch (IOException e) {
+      throw new NoAdapterException("Could not transfer hashes.", e);
+    }
+    return transferred;
+  }
+
   /**
    * Returns the number of user hashes saved in the system.
    * 
@@ -85,6 +160,21 @@ public interface NoAdapter {
    */
   public void goOnline(byte[] hash) throws NoAdapterException, NoUserAlreadyOnlineException;
 
+  /**
+   * Marks the given hash as online until the given expiry, normally that of the session the hash
+   * belongs to. Once the expiry has passed the hash no longer counts as online, even if it was never
+   * marked as offline. The default implementation ignores the expiry.
+   * 
+   * @param hash the byte array hash to go online.
+   * @param expiry the time in milliseconds after which the hash is no longer online.
+   * @throws NoAdapterException - if the adapter is unable to mark the hash as online.
+   * @throws NoUserAlreadyOnlineException - if the provided hash is already marked as online.
+   */
+  public default void goOnline(byte[] hash, long expiry) throws NoAdapterException,
+      NoUserAlreadyOnlineException {
+    goOnline(hash);
+  }
+
   /**
    * Checks whether or not the given hash is marked as online.
    * 
@@ -141,32 +231,118 @@ public interface NoAdapter {
       NoSessionExpiredException;
 
   /**
-   * Returns a Collection of NoByteSet objects tied to the given PublicKey address.
+   * Finds the session identified by the encrypted UUID in a single step, decrypting the UUID once.
+   * The default implementation calls {@link #containsNoSession(byte[])} and then
+   * {@link #getNoSession(byte[])}; adapters should override it to look the session up directly.
+   * 
+   * @param encryptedUuid the encrypted byte array representing the NoSession UUID.
+   * @return the NoSession with the UUID equal to the decrypted byte array, or null if there is no
+   *         such session.
+   * @throws NoAdapterException - if the adapter is unable to look up the NoSession.
+   */
+  public default NoSession resolveNoSession(byte[] encryptedUuid) throws NoAdapterException {
+    if (!containsNoSession(encryptedUuid)) {
+      return null;
+    }
+    try {
+      return getNoSession(encryptedUuid);
+    } catch (NoSessionExpiredException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns a Collection of NoByteSet objects tied to the given fingerprint address.
+   * 
+   * @param address the fingerprint of the PublicKey the NoByteSets are addressed to.
+   * @return a Collection of NoByteSets. If none are associated with the address, it should return
+   *         an empty collection, not a null object.
+   * @throws NoAdapterException
+   */
+  public List<NoByteSet> pollNoByteSets(NoFingerprint address) throws NoAdapterException;
+
+  /**
+   * Adds a single NoByteSet to the addressed fingerprint address.
+   * 
+   * @param byteSet the NoByteSet to add to the byte set pool
+   * @param address the fingerprint of the PublicKey to queue the NoByteSet object for
+   * @throws NoAdapterException - if the adapter is unable to add the NoByteSet object to the pool
+   */
+  public void addNoByteSet(NoByteSet byteSet, NoFingerprint address) throws NoAdapterException;
+
+  /**
+   * Adds a list of NoByteSet objects to the addressed fingerprint address.
+   * 
+   * @param byteSets the NoByteSet list to add to the byte set pool
+   * @param address the fingerprint of the PublicKey to queue the NoByteSets for
+   * @throws NoAdapterException - if the adapter is unable to add the list of NoByteSet objects to
+   *         the pool.
+   */
+  public void addNoByteSets(List<NoByteSet> byteSets, NoFingerprint address)
+      throws NoAdapterException;
+
+  /**
+   * Returns at most {@code max} of the NoByteSet objects tied to the given fingerprint address,
+   * oldest first, leaving the rest in the pool. The default implementation polls every NoByteSet
+   * and adds back those beyond the first {@code max}, so adapters which can leave them in place
+   * should override it.
+   * 
+   * @param address the fingerprint of the PublicKey the NoByteSets are addressed to.
+   * @param max the most NoByteSets to return; at least one.
+   * @return a List of NoByteSets. If none are associated with the address, it should return an
+   *         empty list, not a null object.
+   * @throws NoAdapterException - if the adapter is unable to poll the NoByteSets
+   */
+  public default List<NoByteSet> pollNoByteSets(NoFingerprint address, int max)
+      throws NoAdapterException {
+    if (max < 1) {
+      throw new IllegalArgumentException("At least one byte set must be polled.");
+    }
+    List<NoByteSet> byteSets = pollNoByteSets(address);
+    if (byteSets.size() <= max) {
+      return byteSets;
+    }
+    addNoByteSets(new ArrayList<NoByteSet>(byteSets.subList(max, byteSets.size())), address);
+    return new ArrayList<NoByteSet>(byteSets.subList(0, max));
+  }
+
+  /**
+   * Returns a Collection of NoByteSet objects tied to the given PublicKey address. The default
+   * implementation polls the key's fingerprint.
    * 
    * @param address the PublicKey address the NoByteSets are addressed to.
    * @return a Collection of NoByteSets. If none are associated with the PublicKey address, it
    *         should return an empty collection, not a null object.
    * @throws NoAdapterException
    */
-  public List<NoByteSet> pollNoByteSets(PublicKey address) throws NoAdapterException;
+  public default List<NoByteSet> pollNoByteSets(PublicKey address) throws NoAdapterException {
+    return pollNoByteSets(NoFingerprint.of(address));
+  }
 
   /**
-   * Adds a single NoByteSet to the addressed PublicKey address.
+   * Adds a single NoByteSet to the addressed PublicKey address. The default implementation adds
+   * it to the key's fingerprint.
    * 
    * @param byteSet the NoByteSet to add to the byte set pool
    * @param address the address to queue the NoByteSet object for
    * @throws NoAdapterException - if the adapter is unable to add the NoByteSet object to the pool
    */
-  public void addNoByteSet(NoByteSet byteSet, PublicKey address) throws NoAdapterException;
+  public default void addNoByteSet(NoByteSet byteSet, PublicKey address)
+      throws NoAdapterException {
+    addNoByteSet(byteSet, NoFingerprint.of(address));
+  }
 
   /**
-   * Adds a list of NoByteSet objects to the addressed PublicKey address.
+   * Adds a list of NoByteSet objects to the addressed PublicKey address. The default
+   * implementation adds them to the key's fingerprint.
    * 
    * @param byteSets the NoByteSet list to add to the byte set pool
    * @param address the address to queue the NoByteSets for
    * @throws NoAdapterException - if the adapter is unable to add the list of NoByteSet objects to
    *         the pool.
    */
-  public void addNoByteSets(List<NoByteSet> byteSets, PublicKey address)
-      throws NoAdapterException;
+  public default void addNoByteSets(List<NoByteSet> byteSets, PublicKey address)
+      throws NoAdapterException {
+    addNoByteSets(byteSets, NoFingerprint.of(address));
+  }
 }
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2014 David Horscroft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * NoBoundedMailbox holds the NoByteSets waiting for each address on the heap, within the limits of
+ * a NoMailboxRetention.
+ */
+
+package nodash.core;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+import nodash.models.NoByteSet;
+
+/**
+ * A heap mailbox which enforces a retention. Byte sets are ordered by the time they first arrived,
+ * per address and once more across every address, so the oldest byte set of an address and of the
+ * whole mailbox are both found at the head of a set. A byte set which is drained and added back
+ * keeps its place, ahead of the byte sets which arrived after it. Unlike {@link NoMemoryMailbox} it
+ * takes a lock for every call, which is the price of keeping the counts the limits need.
+ *
+ * @param <A> the type of the addresses.
+ */
+public final class NoBoundedMailbox<A> implements NoMailbox<A> {
+  private static final class Item<A> {
+    private final A address;
+    private final NoByteSet byteSet;
+    private final long written;
+    private final long sequence;
+    private final long size;
+
+    private Item(A address, NoByteSet byteSet, long written, long sequence) {
+      this.address = address;
+      this.byteSet = byteSet;
+      this.written = written;
+      this.sequence = sequence;
+      this.size = NoMailboxRetention.sizeOf(byteSet);
+    }
+  }
+
+  private static final class Box<A> {
+    private final NavigableSet<Item<A>> items = new TreeSet<Item<A>>(AGE_ORDER);
+    private long bytes;
+  }
+
+  /* Byte sets which arrived in the same millisecond keep the order they were added in. */
+  private static final Comparator<Item<?>> AGE_ORDER = new Comparator<Item<?>>() {
+    @Override
+    public int compare(Item<?> o1, Item<?> o2) {
+      int order = Long.compare(o1.written, o2.written);
+      return order != 0 ? order : Long.compare(o1.sequence, o2.sequence);
+    }
+  };
+
+  private final NoMailboxRetention retention;
+
+  /* Everything below is guarded by the mailbox's own lock. */
+  private final Map<A, Box<A>> boxes = new HashMap<A, Box<A>>();
+  private final NavigableSet<Item<A>> ages = new TreeSet<Item<A>>(AGE_ORDER);
+  private long nextSequence = 0;
+  private long totalBytes = 0;
+
+  public NoBoundedMailbox(NoMailboxRetention retention) {
+    this.retention = retention;
+  }
+
+  public NoMailboxRetention getRetention() {
+    return retention;
+  }
+
+  @Override
+  public synchronized void add(A address, NoByteSet byteSet) {
+    checkAddress(address);
+    Box<A> box = append(address, byteSet, System.currentTimeMillis());
+    enforce(box);
+  }
+
+  @Override
+  public synchronized void addAll(A address, List<NoByteSet> byteSets) {
+    checkAddress(address);
+    if (byteSets.isEmpty()) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    Box<A> box = null;
+    for (NoByteSet byteSet : byteSets) {
+      box = append(address, byteSet, now);
+    }
+    enforce(box);
+  }
+
+  @Override
+  public synchronized List<NoByteSet> drain(A address) {
+    List<NoByteSet> result = new ArrayList<NoByteSet>();
+    Box<A> box = boxes.remove(address);
+    if (box == null) {
+      return result;
+    }
+    long now = System.currentTimeMillis();
+    for (Item<A> item : box.items) {
+      ages.remove(item);
+      totalBytes -= item.size;
+      if (retention.isExpired(item.written, now)) {
+        retention.countExpired();
+      } else {
+        result.add(item.byteSet);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public synchronized List<NoByteSet> drain(A address, int max) {
+    NoMemoryMailbox.checkMax(max);
+    List<NoByteSet> result = new ArrayList<NoByteSet>();
+    Box<A> box = boxes.get(address);
+    if (box == null) {
+      return result;
+    }
+    long now = System.currentTimeMillis();
+    while (result.size() < max && !box.items.isEmpty()) {
+      Item<A> item = box.items.first();
+      evict(item);
+      if (retention.isExpired(item.written, now)) {
+        retention.countExpired();
+      } else {
+        result.add(item.byteSet);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public synchronized int sweep(long now) {
+    int expired = 0;
+    while (!ages.isEmpty() && retention.isExpired(ages.first().written, now)) {
+      evict(ages.first());
+      retention.countExpired();
+      expired++;
+    }
+    return expired;
+  }
+
+  @Override
+  public synchronized int addressCount() {
+    return boxes.size();
+  }
+
+  /**
+   * Returns the bytes of every byte set held, as counted against the budget.
+   *
+   * @return the total size of the byte sets held.
+   */
+  public synchronized long totalBytes() {
+    return totalBytes;
+  }
+
+  private Box<A> append(A address, NoByteSet byteSet, long now) {
+    Box<A> box = boxes.get(address);
+    if (box == null) {
+      box = new Box<A>();
+      boxes.put(address, box);
+    }
+    Item<A> item =
+        new Item<A>(address, byteSet, NoMailboxRetention.arrivalOf(byteSet, now), nextSequence++);
+    box.items.add(item);
+    box.bytes += item.size;
+    ages.add(item);
+    totalBytes += item.size;
+    return box;
+  }
+
+  /* Evicts the oldest byte sets of the address, then of the mailbox, until both are in limits. */
+  private void enforce(Box<A> box) {
+    while (!box.items.isEmpty() && retention.isAddressOver(box.items.size(), box.bytes)) {
+      evict(box.items.first());
+      retention.countEvictedForAddress();
+    }
+    while (retention.isBudgetOver(totalBytes)) {
+      evict(ages.first());
+      retention.countEvictedForBudget();
+    }
+  }
+
+  /* Removes a byte set from its box and from the mailbox-wide set. */
+  private void evict(Item<A> item) {
+    Box<A> box = boxes.get(item.address);
+    box.items.remove(item);
+    box.bytes -= item.size;
+    if (box.items.isEmpty()) {
+      boxes.remove(item.address);
+    }
+    ages.remove(item);
+    totalBytes -= item.size;
+  }
+
+  private static void checkAddress(Object address) {
+    if (address == null) {
+      throw new NullPointerException("Address cannot be null.");
+    }
+  }
+}
@@ -17,9 +17,14 @@
 
 package nodash.core;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
 import nodash.exceptions.NoAdapterException;
 import nodash.exceptions.NoByteSetBadDecryptionException;
 import nodash.exceptions.NoDashFatalException;
+import nodash.exceptions.NoServerBusyException;
 import nodash.exceptions.NoSessionAlreadyAwaitingConfirmationException;
 import nodash.exceptions.NoSessionConfirmedException;
 import nodash.exceptions.NoSessionExpiredException;
@@ -28,6 +33,7 @@ import nodash.exceptions.NoSessionNotChangedException;
 import nodash.exceptions.NoUserAlreadyOnlineException;
 import nodash.exceptions.NoUserNotValidException;
 import nodash.models.NoByteSet;
+import nodash.models.NoFingerprint;
 import nodash.models.NoRegister;
 import nodash.models.NoSession;
 import nodash.models.NoUser;
@@ -44,16 +50,104 @@ import nodash.models.NoSession.NoState;
 public final class NoCore {
   private NoAdapter adapter;
   private Class<? extends NoUser> userClass;
+  private Semaphore loginPermits;
+  private volatile boolean sessionKeyCache = defaultSessionKeyCache();
+  private volatile int byteSetPageSize = defaultByteSetPageSize();
 
   /**
    * Instantiates an instance of the NoCore, using the given adapter to interact with saved hashes,
-   * byte sets and sessions.
+   * byte sets and sessions. The number of logins decrypting user files at once is limited to
+   * {@link #defaultMaxConcurrentLogins()}.
    * 
    * @param adapter an object implementing the NoAdapter interface.
    */
   public NoCore(NoAdapter adapter, Class<? extends NoUser> userClass) {
+    this(adapter, userClass, defaultMaxConcurrentLogins());
+  }
+
+  /**
+   * Instantiates an instance of the NoCore, using the given adapter to interact with saved hashes,
+   * byte sets and sessions.
+   * 
+   * @param adapter an object implementing the NoAdapter interface.
+   * @param maxConcurrentLogins the number of logins which may decrypt user files at once; further
+   *        logins are turned away with a NoServerBusyException.
+   */
+  public NoCore(NoAdapter adapter, Class<? extends NoUser> userClass, int maxConcurrentLogins) {
+    if (maxConcurrentLogins < 1) {
+      throw new IllegalArgumentException("At least one login must be allowed at a time.");
+    }
     this.adapter = adapter;
     this.userClass = userClass;
+    this.loginPermits = new Semaphore(maxConcurrentLogins);
+  }
+
+  /**
+   * Returns the login limit used when none is given: the value of NODASH_MAX_LOGINS if it is set,
+   * otherwise half the available processors, so that sessions already open always have processors
+   * left to save and confirm on.
+   * 
+   * @return the default number of concurrent logins.
+   */
+  public static int defaultMaxConcurrentLogins() {
+    String loginsEnv = System.getenv("NODASH_MAX_LOGINS");
+    if (loginsEnv == null) {
+      return Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    } else {
+      return Integer.parseInt(loginsEnv);
+    }
+  }
+
+  /**
+   * Returns whether sessions cache their password key when none is set: true if
+   * NODASH_SESSION_KEY_CACHE is set to true, otherwise false.
+   * 
+   * @return the default for {@link #setSessionKeyCache(boolean)}.
+   */
+  public static boolean defaultSessionKeyCache() {
+    return Boolean.parseBoolean(System.getenv("NODASH_SESSION_KEY_CACHE"));
+  }
+
+  /**
+   * Sets whether sessions created from now on keep the password key derived at login or save, so
+   * that a save or confirm with the same password skips the key derivation. The key is held in
+   * memory only, and wiped when the session is confirmed, shredded or expires.
+   * 
+   * @param enabled true to cache password keys in new sessions.
+   */
+  public void setSessionKeyCache(boolean enabled) {
+    this.sessionKeyCache = enabled;
+  }
+
+  /**
+   * Returns the number of byte sets applied at a time when none is set: the value of
+   * NODASH_BYTESET_PAGE_SIZE if it is set, otherwise zero, which applies every byte set at login.
+   * 
+   * @return the default for {@link #setByteSetPageSize(int)}.
+   */
+  public static int defaultByteSetPageSize() {
+    String pageEnv = System.getenv("NODASH_BYTESET_PAGE_SIZE");
+    if (pageEnv == null) {
+      return 0;
+    } else {
+      return Integer.parseInt(pageEnv);
+    }
+  }
+
+  /**
+   * Sets how many incoming byte sets are taken from the pool and applied at a time. Login applies
+   * the first page; each later call to {@link #save(byte[], char[])} or
+   * {@link #applyIncoming(byte[])} applies the next, until none are left. Byte sets not yet
+   * taken stay in the pool, so a session confirmed before they are applied leaves them for the
+   * next login. A page size of zero applies every byte set at login.
+   * 
+   * @param pageSize the number of byte sets in a page, or zero for no pages.
+   */
+  public void setByteSetPageSize(int pageSize) {
+    if (pageSize < 0) {
+      throw new IllegalArgumentException("Page size cannot be negative.");
+    }
+    this.byteSetPageSize = pageSize;
   }
 
   /**
@@ -64,21 +158,17 @@ public final class NoCore {
    * @throws NoSessionExpiredException - if the session cannot be found.
    */
   private NoSession getNoSession(byte[] cookie) throws NoSessionExpiredException {
-    boolean containsSession;
+    NoSession session;
     try {
-      containsSession = adapter.containsNoSession(cookie);
+      session = adapter.resolveNoSession(cookie);
     } catch (NoAdapterException e) {
-      throw new NoDashFatalException("Could not verify existence of session.", e);
+      throw new NoDashFatalException("Could not get session.", e);
     }
 
-    if (containsSession) {
-      try {
-        return adapter.getNoSession(cookie);
-      } catch (NoAdapterException e) {
-        throw new NoDashFatalException("Could not get session.", e);
-      }
+    if (session == null) {
+      throw new NoSessionExpiredException();
     }
-    throw new NoSessionExpiredException();
+    return session;
   }
 
   /**
@@ -91,10 +181,26 @@ public final class NoCore {
    *         a user object, or if the user object's hash is not found by the internal NoAdapter.
    * @throws NoUserAlreadyOnlineException - if the discovered user's hash is already online, as
    *         determined by the internal NoAdapter's {@code isOnline} method.
+   * @throws NoServerBusyException - if the limit of concurrent logins has been reached. Nothing is
+   *         decrypted, and the login may be retried later.
    */
   public byte[] login(byte[] data, char[] password) throws NoUserNotValidException,
-      NoUserAlreadyOnlineException {
-    NoSession session = new NoSession(data, password, userClass);
+      NoUserAlreadyOnlineException, NoServerBusyException {
+    /*
+     * 0. Decrypting the user file derives the password key twice, which is by far the most
+     * expensive step of any call; a login beyond the limit is turned away before it starts.
+     */
+    if (!loginPermits.tryAcquire()) {
+      NoUtil.wipeBytes(data);
+      NoUtil.wipeChars(password);
+      throw new NoServerBusyException();
+    }
+    NoSession session;
+    try {
+      session = new NoSession(data, password, userClass, sessionKeyCache);
+    } finally {
+      loginPermits.release();
+    }
 
     /* 1. Check that user is a valid user of the system based on their hash. */
     try {
@@ -105,7 +211,7 @@ public final class NoCore {
 
     /* 2. Attempt to set user to online (avoid two of the same account online at the same time) */
     try {
-      adapter.goOnline(session.getOriginalHash());
+      adapter.goOnline(session.getOriginalHash(), session.getExpiry());
     } catch (NoAdapterException e) {
       throw new NoDashFatalException("Could not mark user as online.", e);
     }
@@ -117,38 +223,16 @@ public final class NoCore {
       throw new NoDashFatalException("Could not add the session.", e);
     }
 
-    /* 4. Transfer any incoming NoByteSets to session. */
+    /* 4. Transfer the first page of incoming NoByteSets to the session and apply them. */
     try {
-      session.setIncoming(adapter.pollNoByteSets(session.getNoUserSafe().getRsaPublicKey()));
-    } catch (NoAdapterException e) {
-      throw new NoDashFatalException("Could not get incoming byte sets.", e);
-    }
-
-    /* 5. Apply any incoming ByteSets to the session. */
-    for (NoByteSet byteSet : session.getIncomingSafe()) {
-      boolean failed = true;
-      try {
-        session.consume(byteSet);
-        failed = false;
-      } catch (NoByteSetBadDecryptionException e) {
-        throw new NoDashFatalException("Bad byte sets on consumption.", e);
-      } catch (NoSessionConfirmedException e) {
-        throw new NoDashFatalException("NoSession is confirmed despite being newly created.");
-      } catch (NoSessionExpiredException e) {
-        throw new NoDashFatalException("NoSession is expired despite being newly created.");
-      } finally {
-        if (failed) {
-          try {
-            adapter.addNoByteSets(session.getIncomingSafe(), session.getNoUserSafe()
-                .getRsaPublicKey());
-          } catch (NoAdapterException e) {
-            throw new NoDashFatalException("Could not return failed byte sets to pool.", e);
-          }
-        }
-      }
+      applyIncomingPage(session);
+    } catch (NoSessionConfirmedException e) {
+      throw new NoDashFatalException("NoSession is confirmed despite being newly created.");
+    } catch (NoSessionExpiredException e) {
+      throw new NoDashFatalException("NoSession is expired despite being newly created.");
     }
 
-    /* 6. Check the session to see if the incoming actions have modified it at all. */
+    /* 5. Check the session to see if the incoming actions have modified it at all. */
     try {
       session.check();
     } catch (NoSessionConfirmedException e) {
@@ -157,7 +241,7 @@ public final class NoCore {
       throw new NoDashFatalException("NoSession has expired despite being newly created.");
     }
 
-    return session.getEncryptedUuid();
+    return session.getCookie();
   }
 
   /**
@@ -169,18 +253,18 @@ public final class NoCore {
    *         byte array.
    */
   public NoRegister register(NoUser user, char[] password) {
-    NoSession session = new NoSession(user);
+    NoSession session = new NoSession(user, sessionKeyCache);
     try {
       adapter.addNoSession(session);
     } catch (NoAdapterException e) {
       throw new NoDashFatalException("Adapter could not save the session.", e);
     }
 
-    byte[] cookie = session.getEncryptedUuid();
+    byte[] cookie = session.getCookie();
     byte[] userFile;
     try {
       userFile = save(cookie, password);
-      adapter.goOnline(user.createHash());
+      adapter.goOnline(user.createHash(), session.getExpiry());
     } catch (NoSessionExpiredException e) {
       throw new NoDashFatalException("Session expired despite just being created.");
     } catch (NoSessionConfirmedException e) {
@@ -202,22 +286,26 @@ public final class NoCore {
 
   public NoUser getNoUser(byte[] cookie) throws NoSessionExpiredException,
       NoSessionConfirmedException {
-    boolean containsSession;
-    try {
-      containsSession = adapter.containsNoSession(cookie);
-    } catch (NoAdapterException e) {
-      throw new NoDashFatalException("Could not verify existence of session.", e);
-    }
+    NoSession session = getNoSession(cookie);
+    return session.getNoUser();
+  }
 
-    if (containsSession) {
-      try {
-        return adapter.getNoSession(cookie).getNoUser();
-      } catch (NoAdapterException e) {
-        throw new NoDashFatalException("Could not get session.", e);
-      }
-    } else {
-      throw new NoSessionExpiredException();
-    }
+  /**
+   * Applies the next page of incoming byte sets to the NoSession, if the byte set page size left
+   * any in the pool. Nothing is applied while a save is awaiting confirmation.
+   * 
+   * @param cookie the byte array representation of the encrypted cookie.
+   * @return true if byte sets may still be waiting in the pool, else false.
+   * @throws NoSessionExpiredException - if the associated NoSession cannot be found or has exceeded
+   *         the session time limits.
+   * @throws NoSessionConfirmedException - if the associated NoSession has already been confirmed.
+   */
+  public boolean applyIncoming(byte[] cookie) throws NoSessionExpiredException,
+      NoSessionConfirmedException {
+    NoSession session = getNoSession(cookie);
+    session.check();
+    applyPendingPage(session);
+    return session.isIncomingPending();
   }
 
   /**
@@ -256,6 +344,7 @@ public final class NoCore {
       NoSessionConfirmedException, NoSessionNotChangedException,
       NoSessionAlreadyAwaitingConfirmationException {
     NoSession session = getNoSession(cookie);
+    applyPendingPage(session);
     session.check();
     if (session.getNoState().equals(NoState.IDLE)) {
       throw new NoSessionNotChangedException();
@@ -291,11 +380,16 @@ public final class NoCore {
       session.confirmSave(adapter, data, password, userClass);
 
       try {
-        adapter.insertHash(newHash);
+        if (session.isNewUser()) {
+          adapter.insertHash(newHash);
+        } else {
+          adapter.replaceHash(oldHash, newHash);
+        }
       } catch (NoAdapterException e) {
         throw new NoDashFatalException("Could not insert confirmed hash.", e);
       }
     } finally {
+      session.wipePbeKey();
       try {
         adapter.shredNoSession(cookie);
       } catch (NoAdapterException e) {
@@ -308,14 +402,65 @@ public final class NoCore {
         throw new NoDashFatalException("Could not go offline.", e);
       }
     }
-    
+  }
 
-    if (!session.isNewUser()) {
+  /*
+   * Pages are not applied while a save awaits confirmation, as the user would no longer match the
+   * file handed out.
+   */
+  private void applyPendingPage(NoSession session) throws NoSessionConfirmedException,
+      NoSessionExpiredException {
+    synchronized (session) {
+      if (session.isIncomingPending()
+          && session.getNoState() != NoState.AWAITING_CONFIRMATION) {
+        applyIncomingPage(session);
+      }
+    }
+  }
+
+  /*
+   * Takes the next page of byte sets from the pool and applies them to the session. If one cannot
+   * be applied, those applied before it go to the session and the rest of the page back to the
+   * pool, where they wait for the next login. The session is locked throughout, so two requests on
+   * the same cookie never apply pages at once.
+   */
+  private void applyIncomingPage(NoSession session) throws NoSessionConfirmedException,
+      NoSessionExpiredException {
+    synchronized (session) {
+      int pageSize = byteSetPageSize;
+      NoFingerprint address = session.getNoUserSafe().getFingerprint();
+      List<NoByteSet> page;
       try {
-        adapter.removeHash(oldHash);
+        if (pageSize == 0) {
+          page = adapter.pollNoByteSets(address);
+        } else {
+          page = adapter.pollNoByteSets(address, pageSize);
+        }
       } catch (NoAdapterException e) {
-        throw new NoDashFatalException("Could not remove old hash.", e);
+        throw new NoDashFatalException("Could not get incoming byte sets.", e);
+      }
+
+      int consumed = 0;
+      try {
+        for (NoByteSet byteSet : page) {
+          session.consume(byteSet);
+          consumed++;
+        }
+      } catch (NoByteSetBadDecryptionException e) {
+        throw new NoDashFatalException("Bad byte sets on consumption.", e);
+      } finally {
+        session.addIncoming(page.subList(0, consumed));
+        if (consumed < page.size()) {
+          session.setIncomingPending(false);
+          try {
+            adapter.addNoByteSets(new ArrayList<NoByteSet>(page.subList(consumed, page.size())),
+                address);
+          } catch (NoAdapterException e) {
+            throw new NoDashFatalException("Could not return failed byte sets to pool.", e);
+          }
+        }
       }
+      session.setIncomingPending(pageSize != 0 && page.size() == pageSize);
     }
   }
 
@@ -329,6 +474,7 @@ public final class NoCore {
    */
   public void shred(byte[] cookie) throws NoSessionExpiredException {
     NoSession session = getNoSession(cookie);
+    session.wipePbeKey();
 
     try {
       adapter.shredNoSession(cookie);
@@ -337,7 +483,7 @@ public final class NoCore {
     }
 
     try {
-      adapter.addNoByteSets(session.getIncomingSafe(), session.getNoUserSafe().getRsaPublicKey());
+      adapter.addNoByteSets(session.getIncomingSafe(), session.getNoUserSafe().getFingerprint());
     } catch (NoAdapterException e) {
       throw new NoDashFatalException("Could not add bytesets back into pool.");
     }
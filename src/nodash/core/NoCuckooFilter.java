@@ -0,0 +1,203 @@
+/*
+ * Copyright 2014 David Horscroft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * NoCuckooFilter is a probabilistic set of 64 byte hashes which supports removal, used to reject
+ * hashes which are certainly not stored without touching the store.
+ */
+
+package nodash.core;
+
+/**
+ * A cuckoo filter with buckets of four 16 bit fingerprints. The bucket index and the fingerprint
+ * are taken straight from the (uniformly distributed) digest bytes. A hash which was added is always
+ * reported as possibly present; a hash which was not added is reported as possibly present with a
+ * probability of at most {@code 8 / 65536}, or about 0.012%.
+ *
+ * <p>
+ * Only hashes which were added may be removed, otherwise another hash's fingerprint may be removed
+ * in its place. It is not thread-safe; callers must synchronize access.
+ */
+public final class NoCuckooFilter {
+  private static final int BUCKET_SIZE = 4;
+  private static final int FINGERPRINT_BITS = 16;
+  private static final int MINIMUM_BUCKETS = 16;
+  private static final int MAXIMUM_KICKS = 500;
+  private static final double TARGET_LOAD = 0.9;
+
+  private final short[] fingerprints;
+  private final int mask;
+  private long size;
+  private int victimSeed = 0x9E3779B9;
+
+  /**
+   * Creates a filter sized to hold the expected number of hashes.
+   *
+   * @param expectedSize the number of hashes expected to be added.
+   */
+  public NoCuckooFilter(long expectedSize) {
+    long buckets = MINIMUM_BUCKETS;
+    while (buckets * BUCKET_SIZE * TARGET_LOAD < expectedSize) {
+      buckets *= 2;
+    }
+    if (buckets * BUCKET_SIZE > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many hashes for a single filter: " + expectedSize);
+    }
+    this.fingerprints = new short[(int) buckets * BUCKET_SIZE];
+    this.mask = (int) buckets - 1;
+  }
+
+  /**
+   * Adds the hash to the filter.
+   *
+   * @param hash the 64 byte hash.
+   * @return false if the filter is too full to take the hash, in which case it should be rebuilt
+   *         with a larger size.
+   */
+  public boolean add(byte[] hash) {
+    short fingerprint = fingerprint(hash);
+    int first = firstIndex(hash);
+    int second = alternateIndex(first, fingerprint);
+    if (put(first, fingerprint) || put(second, fingerprint)) {
+      size++;
+      return true;
+    }
+
+    int bucket = (victimSeed & 1) == 0 ? first : second;
+    short[] evicted = new short[MAXIMUM_KICKS];
+    int[] evictedFrom = new int[MAXIMUM_KICKS];
+    for (int kick = 0; kick < MAXIMUM_KICKS; kick++) {
+      int slot = bucket * BUCKET_SIZE + nextVictim();
+      evicted[kick] = fingerprints[slot];
+      evictedFrom[kick] = slot;
+      fingerprints[slot] = fingerprint;
+      fingerprint = evicted[kick];
+      bucket = alternateIndex(bucket, fingerprint);
+      if (put(bucket, fingerprint)) {
+        size++;
+        return true;
+      }
+    }
+
+    /* Undo the kicks so the filter still holds exactly what it held before. */
+    for (int kick = MAXIMUM_KICKS - 1; kick >= 0; kick--) {
+      fingerprints[evictedFrom[kick]] = evicted[kick];
+    }
+    return false;
+  }
+
+  /**
+   * Checks whether the hash may have been added.
+   *
+   * @param hash the 64 byte hash.
+   * @return false if the hash was certainly never added, true if it may have been.
+   */
+  public boolean mightContain(byte[] hash) {
+    short fingerprint = fingerprint(hash);
+    int first = firstIndex(hash);
+    return holds(first, fingerprint) || holds(alternateIndex(first, fingerprint), fingerprint);
+  }
+
+  /**
+   * Removes one copy of the hash's fingerprint.
+   *
+   * @param hash the 64 byte hash, which must have been added.
+   * @return true if a fingerprint was removed.
+   */
+  public boolean remove(byte[] hash) {
+    short fingerprint = fingerprint(hash);
+    int first = firstIndex(hash);
+    if (delete(first, fingerprint) || delete(alternateIndex(first, fingerprint), fingerprint)) {
+      size--;
+      return true;
+    }
+    return false;
+  }
+
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Returns the expected probability that a hash which was never added is reported as possibly
+   * present, given how full the filter currently is.
+   *
+   * @return the false positive rate, between 0 and 1.
+   */
+  public double falsePositiveRate() {
+    double load = (double) size / fingerprints.length;
+    return 2.0 * BUCKET_SIZE * load / (1 << FINGERPRINT_BITS);
+  }
+
+  /**
+   * Returns the number of bytes held by the filter's table.
+   *
+   * @return the size of the table in bytes.
+   */
+  public long memoryUsage() {
+    return fingerprints.length * 2L;
+  }
+
+  private boolean put(int bucket, short fingerprint) {
+    int offset = bucket * BUCKET_SIZE;
+    for (int x = 0; x < BUCKET_SIZE; x++) {
+      if (fingerprints[offset + x] == 0) {
+        fingerprints[offset + x] = fingerprint;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean holds(int bucket, short fingerprint) {
+    int offset = bucket * BUCKET_SIZE;
+    for (int x = 0; x < BUCKET_SIZE; x++) {
+      if (fingerprints[offset + x] == fingerprint) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean delete(int bucket, short fingerprint) {
+    int offset = bucket * BUCKET_SIZE;
+    for (int x = 0; x < BUCKET_SIZE; x++) {
+      if (fingerprints[offset + x] == fingerprint) {
+        fingerprints[offset + x] = 0;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private int nextVictim() {
+    victimSeed ^= victimSeed << 13;
+    victimSeed ^= victimSeed >>> 17;
+    victimSeed ^= victimSeed << 5;
+    return victimSeed & (BUCKET_SIZE - 1);
+  }
+
+  private int firstIndex(byte[] hash) {
+    long bits = NoMappedHashStore.getLong(hash, 0);
+    return (int) (bits ^ (bits >>> 32)) & mask;
+  }
+
+  private int alternateIndex(int bucket, short fingerprint) {
+    return (bucket ^ ((fingerprint & 0xFFFF) * 0x5BD1E995)) & mask;
+  }
+
+  private static short fingerprint(byte[] hash) {
+    int fingerprint = ((hash[8] & 0xFF) << 8) | (hash[9] & 0xFF);
+    /* Zero marks an empty slot. */
+    return (short) (fingerprint == 0 ? 1 : fingerprint);
+  }
+}
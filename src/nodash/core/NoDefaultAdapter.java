@@ -18,101 +18,216 @@
 package nodash.core;
 
 import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
-import java.security.PublicKey;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-
-import org.apache.commons.codec.binary.Base64;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import nodash.exceptions.NoAdapterException;
 import nodash.exceptions.NoDashFatalException;
 import nodash.exceptions.NoUserAlreadyOnlineException;
 import nodash.exceptions.NoUserNotValidException;
 import nodash.models.NoByteSet;
+import nodash.models.NoFingerprint;
 import nodash.models.NoSession;
 
 public class NoDefaultAdapter implements NoAdapter {
-  private static Map<PublicKey, List<NoByteSet>> byteSets =
-      new ConcurrentHashMap<PublicKey, List<NoByteSet>>();
-  private static Map<String, NoSession> sessions = new ConcurrentHashMap<String, NoSession>();
-  private static Set<String> online = Collections
-      .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private static final NoMailboxRetention retention = setupRetention();
+  private static final NoMailbox<NoFingerprint> byteSets = setupMailbox();
+  /* Sessions are keyed by the raw bytes of their UUID, as found in the decrypted cookie. */
+  private static final NoSessionStore sessions = new NoSessionStore();
+  private static final NoPresenceSet online = new NoPresenceSet();
+  private static final ScheduledExecutorService sweeper = setupSweeper();
 
   private static final String HASH_FILE = "nosystem.hash";
-
-  private static byte[] getFile() throws NoAdapterException {
-    try {
-      return alterFile(null, null);
-    } catch (IOException e) {
-      throw new NoAdapterException("Could not get hash file.", e);
+  private static final String HASH_DIRECTORY = "nosystem.hashes";
+  private static final String HASH_SHARD_SUFFIX = ".hash";
+  private static final NoHashStore hashStore = setupHashStore();
+
+  /*
+   * The shard count is fixed by the shard files already on disk; NODASH_HASH_SHARDS only applies
+   * when the hash directory is first created.
+   */
+  private static int setupHashShards(File directory) {
+    File[] existing = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(HASH_SHARD_SUFFIX);
+      }
+    });
+    if (existing != null && existing.length > 0) {
+      return existing.length;
+    }
+    String shardsEnv = System.getenv("NODASH_HASH_SHARDS");
+    if (shardsEnv == null) {
+      return 16;
+    } else {
+      return Integer.parseInt(shardsEnv);
     }
   }
 
-  private static synchronized byte[] alterFile(byte[] hashToAdd, byte[] hashToRemove)
-      throws IOException {
-    File file = new File(HASH_FILE);
-    if (!file.exists()) {
-      Files.createFile(file.toPath());
-    }
-    byte[] originalFileBytes = Files.readAllBytes(file.toPath());
-    if (hashToAdd == null && hashToRemove == null) {
-      return originalFileBytes;
+  /* Group commit is off unless NODASH_HASH_COMMIT_DELAY gives a delay in microseconds. */
+  private static long setupHashCommitDelay() {
+    String delayEnv = System.getenv("NODASH_HASH_COMMIT_DELAY");
+    if (delayEnv == null) {
+      return 0;
+    } else {
+      return Long.parseLong(delayEnv);
     }
+  }
 
-    if (!(hashToAdd == null ^ hashToRemove == null) && Arrays.equals(hashToAdd, hashToRemove)) {
-      throw new IllegalArgumentException("Hashes to add and remove cannot be the same.");
+  private static int setupHashCommitBatch() {
+    String batchEnv = System.getenv("NODASH_HASH_COMMIT_BATCH");
+    if (batchEnv == null) {
+      return NoJournaledHashStore.DEFAULT_COMMIT_BATCH;
+    } else {
+      return Integer.parseInt(batchEnv);
     }
-    int hashes = originalFileBytes.length / 64;
-    List<Byte> newFile = new ArrayList<Byte>();
-    
-    for (int x = 0; x < hashes; x++) {
-      byte[] hash = Arrays.copyOfRange(originalFileBytes, x * 64, x * 64 + 64);
+  }
 
-      if (hashToRemove == null || !Arrays.equals(hash, hashToRemove)) {
-        for (byte hashByte : hash) {
-          newFile.add(hashByte);
-        }
+  private static NoHashStore setupHashStore() {
+    try {
+      File directory = new File(HASH_DIRECTORY);
+      Files.createDirectories(directory.toPath());
+      NoHashStore[] shards = new NoHashStore[setupHashShards(directory)];
+      long commitDelay = setupHashCommitDelay();
+      int commitBatch = setupHashCommitBatch();
+      for (int x = 0; x < shards.length; x++) {
+        File shardFile = new File(directory, String.format("%02x", x) + HASH_SHARD_SUFFIX);
+        shards[x] = new NoFilteredHashStore(new NoMemoryHashStore(new NoJournaledHashStore(
+            shardFile, NoJournaledHashStore.DEFAULT_COMPACTION_THRESHOLD, commitDelay,
+            TimeUnit.MICROSECONDS, commitBatch)));
       }
+      NoHashStore store = new NoShardedHashStore(shards);
 
-      if (hashToAdd != null && Arrays.equals(hash, hashToAdd)) {
-        hashToAdd = null;
+      /* Hashes from the single hash file of older versions are moved into their shards. */
+      File legacyFile = new File(HASH_FILE);
+      if (legacyFile.exists()) {
+        for (byte[] hash : new NoJournaledHashStore(legacyFile).export()) {
+          store.insert(hash);
+        }
+        store.sync();
+        Files.deleteIfExists(new File(HASH_FILE + ".journal").toPath());
+        Files.delete(legacyFile.toPath());
       }
+      return store;
+    } catch (IOException e) {
+      throw new NoDashFatalException("Could not open hash files.", e);
     }
+  }
 
-    if (hashToAdd != null) {
-      for (byte hashByte : hashToAdd) {
-        newFile.add(hashByte);
-      }
+  private static long setupRetentionLimit(String name) {
+    String limitEnv = System.getenv(name);
+    if (limitEnv == null) {
+      return NoMailboxRetention.NO_LIMIT;
+    } else {
+      return Long.parseLong(limitEnv);
     }
+  }
+
+  /*
+   * Byte sets are kept until drained unless limited by NODASH_MAILBOX_MAX_AGE (milliseconds),
+   * NODASH_MAILBOX_MAX_COUNT and NODASH_MAILBOX_MAX_BYTES (per address) or NODASH_MAILBOX_BUDGET
+   * (bytes across every address).
+   */
+  private static NoMailboxRetention setupRetention() {
+    return new NoMailboxRetention(setupRetentionLimit("NODASH_MAILBOX_MAX_AGE"),
+        setupRetentionLimit("NODASH_MAILBOX_MAX_COUNT"),
+        setupRetentionLimit("NODASH_MAILBOX_MAX_BYTES"),
+        setupRetentionLimit("NODASH_MAILBOX_BUDGET"));
+  }
 
-    byte[] newFileAsPrimitive = new byte[newFile.size()];
-    for (int x = 0; x < newFile.size(); x++) {
-      newFileAsPrimitive[x] = newFile.get(x).byteValue();
+  /*
+   * Byte sets are kept on the heap unless NODASH_MAILBOX_DIRECTORY names a directory for them to be
+   * kept in segment files instead, where they outlast the process. The lock-free heap mailbox is
+   * only used when there are no retention limits to enforce.
+   */
+  private static NoMailbox<NoFingerprint> setupMailbox() {
+    String directoryEnv = System.getenv("NODASH_MAILBOX_DIRECTORY");
+    if (directoryEnv == null) {
+      if (retention.isLimited()) {
+        return new NoBoundedMailbox<NoFingerprint>(retention);
+      }
+      return new NoMemoryMailbox<NoFingerprint>();
     }
+    try {
+      return new NoSegmentMailbox(new File(directoryEnv), NoSegmentMailbox.DEFAULT_SEGMENT_SIZE,
+          NoSegmentMailbox.DEFAULT_COMPACTION_RATIO, retention);
+    } catch (IOException e) {
+      throw new NoDashFatalException("Could not open mailbox segments.", e);
+    }
+  }
 
-    Files.write(file.toPath(), newFileAsPrimitive);
+  /*
+   * A single daemon thread evicts expired sessions, reclaims lapsed presence leases and drops byte
+   * sets past their maximum age.
+   */
+  private static ScheduledExecutorService setupSweeper() {
+    ScheduledExecutorService sweeper =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "no-session-sweeper");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    sweeper.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        long now = System.currentTimeMillis();
+        evictNoSessions(sessions.sweep(now));
+        online.sweep(now);
+        byteSets.sweep(now);
+      }
+    }, NoSessionStore.SWEEP_INTERVAL, NoSessionStore.SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+    return sweeper;
+  }
 
-    return newFileAsPrimitive;
+  /*
+   * Byte sets an evicted session took from the pool but never saved into a confirmed user go back
+   * to the pool, as they would on a shred.
+   */
+  private static void evictNoSessions(List<NoSession> evicted) {
+    for (NoSession session : evicted) {
+      session.close();
+      List<NoByteSet> incoming = session.getIncomingSafe();
+      if (incoming != null && !incoming.isEmpty()) {
+        try {
+          queueNoByteSets(incoming, session.getNoUserSafe().getFingerprint());
+        } catch (IOException e) {
+          /* Nobody is waiting on an eviction; the byte sets are lost, as on a crash. */
+        }
+      }
+    }
   }
 
   public NoDefaultAdapter() {
 
   }
 
+  /**
+   * Returns the retention the byte set pool is kept under, with the counts of byte sets evicted
+   * from it.
+   *
+   * @return the retention of the byte set pool.
+   */
+  public NoMailboxRetention getByteSetRetention() {
+    return retention;
+  }
+
   @Override
   public void insertHash(byte[] hash) throws NoAdapterException {
     try {
-      alterFile(hash, null);
+      hashStore.insert(hash);
+      hashStore.sync(hash);
     } catch (IOException e) {
       throw new NoAdapterException("Trouble while inserting hash.", e);
     }
@@ -121,143 +236,183 @@ public class NoDefaultAdapter implements NoAdapter {
   @Override
   public void removeHash(byte[] hash) throws NoAdapterException {
     try {
-      alterFile(null, hash);
+      hashStore.remove(hash);
+      hashStore.sync(hash);
     } catch (IOException e) {
       throw new NoAdapterException("Trouble removing hash.", e);
     }
   }
 
+  @Override
+  public void replaceHash(byte[] oldHash, byte[] newHash) throws NoAdapterException {
+    try {
+      hashStore.replace(oldHash, newHash);
+      hashStore.sync(oldHash, newHash);
+    } catch (IOException e) {
+      throw new NoAdapterException("Trouble replacing hash.", e);
+    }
+  }
+
   @Override
   public void checkHash(byte[] hash) throws NoAdapterException, NoUserNotValidException {
-    byte[] hashFile = getFile();
-    int hashes = hashFile.length / 64;
-    for (int x = 0; x < hashes; x++) {
-      byte[] examine = Arrays.copyOfRange(hashFile, x * 64, x * 64 + 64);
-      if (Arrays.equals(hash, examine)) {
-        return;
-      }
+    boolean valid;
+    try {
+      valid = hashStore.contains(hash);
+    } catch (IOException e) {
+      throw new NoAdapterException("Could not check hash.", e);
+    }
+    if (!valid) {
+      throw new NoUserNotValidException();
     }
-    throw new NoUserNotValidException();
   }
 
   @Override
   public byte[][] exportHashes() throws NoAdapterException {
-    byte[] hashFile = getFile();
-    int hashes = hashFile.length / 64;
-    byte[][] export = new byte[hashes][64];
-    for (int x = 0; x < hashes; x++) {
-      byte[] hash = Arrays.copyOfRange(hashFile, x * 64, x * 64 + 64);
-      export[x] = hash;
+    try {
+      return hashStore.export();
+    } catch (IOException e) {
+      throw new NoAdapterException("Could not export hashes.", e);
     }
-    return export;
   }
 
   @Override
-  public long hashCount() throws NoAdapterException {
-    byte[] hashFile = getFile();
-    return hashFile.length / 64;
+  public Iterator<ByteBuffer> iterateHashes() throws NoAdapterException {
+    try {
+      return hashStore.iterator();
+    } catch (IOException e) {
+      throw new NoAdapterException("Could not export hashes.", e);
+    }
   }
 
   @Override
-  public void addNoSession(NoSession session) {
-    if (containsNoSession(session.getEncryptedUuid())) {
-      throw new NoDashFatalException("No such session exists.");
+  public long transferHashes(WritableByteChannel target) throws NoAdapterException {
+    try {
+      return hashStore.transferTo(target);
+    } catch (IOException e) {
+      throw new NoAdapterException("Could not transfer hashes.", e);
     }
-    sessions.put(session.getUuid(), session);
   }
 
   @Override
-  public boolean containsNoSession(byte[] encryptedUuid) {
-    String uuid;
+  public long hashCount() throws NoAdapterException {
     try {
-      uuid = Base64.encodeBase64URLSafeString(NoUtil.decrypt(encryptedUuid));
-    } catch (IllegalBlockSizeException | BadPaddingException e) {
-      throw new NoDashFatalException("Could not decrypt given UUID.", e);
+      return hashStore.count();
+    } catch (IOException e) {
+      throw new NoAdapterException("Could not count hashes.", e);
     }
+  }
 
-    return sessions.containsKey(uuid);
+  @Override
+  public void addNoSession(NoSession session) {
+    if (!sessions.add(ByteBuffer.wrap(session.getSessionId()), session)) {
+      throw new NoDashFatalException("Session already exists.");
+    }
+  }
+
+  @Override
+  public boolean containsNoSession(byte[] encryptedUuid) {
+    return resolveNoSession(encryptedUuid) != null;
   }
 
   @Override
   public void shredNoSession(byte[] encryptedUuid) {
-    NoSession session = getNoSession(encryptedUuid);
-    sessions.remove(session.getUuid());
+    ByteBuffer id = verifyCookie(encryptedUuid);
+    if (id == null || sessions.remove(id) == null) {
+      throw new NoDashFatalException("No such session exists.");
+    }
   }
 
   @Override
   public NoSession getNoSession(byte[] encryptedUuid) {
-    if (containsNoSession(encryptedUuid)) {
-      String uuid;
-      try {
-        uuid = Base64.encodeBase64URLSafeString(NoUtil.decrypt(encryptedUuid));
-      } catch (IllegalBlockSizeException | BadPaddingException e) {
-        throw new NoDashFatalException("Could not decrypt given UUID.", e);
-      }
-      return sessions.get(uuid);
+    NoSession session = resolveNoSession(encryptedUuid);
+    if (session == null) {
+      throw new NoDashFatalException("No such session exists.");
     }
-    throw new NoDashFatalException("No such session exists.");
+    return session;
   }
 
   @Override
-  public List<NoByteSet> pollNoByteSets(PublicKey address) {
-    if (byteSets.containsKey(address)) {
-      List<NoByteSet> storedByteSets = byteSets.get(address);
-      List<NoByteSet> result = new ArrayList<NoByteSet>();
-      int iterations = storedByteSets.size();
-      for (int x = 0; x < iterations; x++) {
-        result.add(storedByteSets.get(0));
-        storedByteSets.remove(0);
-      }
-      return result;
-    } else {
-      return new ArrayList<NoByteSet>();
+  public NoSession resolveNoSession(byte[] encryptedUuid) {
+    ByteBuffer id = verifyCookie(encryptedUuid);
+    if (id == null) {
+      return null;
+    }
+    return sessions.get(id);
+  }
+
+  /* Forged cookies are turned away on their tag, before the session map is touched. */
+  private static ByteBuffer verifyCookie(byte[] cookie) {
+    byte[] id = NoUtil.verifyCookie(cookie, NoSession.SESSION_ID_LENGTH);
+    return id == null ? null : ByteBuffer.wrap(id);
+  }
+
+  @Override
+  public List<NoByteSet> pollNoByteSets(NoFingerprint address) throws NoAdapterException {
+    try {
+      return byteSets.drain(address);
+    } catch (IOException e) {
+      throw new NoAdapterException("Could not poll byte sets.", e);
     }
   }
   
   @Override
-  public void addNoByteSet(NoByteSet byteSet, PublicKey address) {
-    if (!byteSets.containsKey(address)) {
-      byteSets.put(address, new ArrayList<NoByteSet>());
+  public List<NoByteSet> pollNoByteSets(NoFingerprint address, int max)
+      throws NoAdapterException {
+    try {
+      return byteSets.drain(address, max);
+    } catch (IOException e) {
+      throw new NoAdapterException("Could not poll byte sets.", e);
+    }
+  }
+
+  @Override
+  public void addNoByteSet(NoByteSet byteSet, NoFingerprint address) throws NoAdapterException {
+    try {
+      byteSets.add(address, byteSet);
+    } catch (IOException e) {
+      throw new NoAdapterException("Could not add byte set.", e);
     }
-    byteSets.get(address).add(byteSet);
   }
 
   @Override
-  public void addNoByteSets(List<NoByteSet> addedByteSets, PublicKey address) {
+  public void addNoByteSets(List<NoByteSet> addedByteSets, NoFingerprint address)
+      throws NoAdapterException {
+    try {
+      queueNoByteSets(addedByteSets, address);
+    } catch (IOException e) {
+      throw new NoAdapterException("Could not add byte sets.", e);
+    }
+  }
+
+  private static void queueNoByteSets(List<NoByteSet> addedByteSets,
+      NoFingerprint address) throws IOException {
     if (addedByteSets == null) {
       return;
     }
     
-    if (address == null) {
-      throw new NullPointerException("Address cannot be null.");
-    }
-    
-    if (byteSets.containsKey(address)) {
-      byteSets.get(address).addAll(addedByteSets);
-    } else {
-      byteSets.put(address, addedByteSets);
-    }
+    byteSets.addAll(address, addedByteSets);
   }
 
   @Override
   public void goOnline(byte[] hash) throws NoUserAlreadyOnlineException {
-    String hashString = Base64.encodeBase64URLSafeString(hash);
-    if (online.contains(hashString)) {
+    goOnline(hash, System.currentTimeMillis() + NoSession.SESSION_DURATION);
+  }
+
+  @Override
+  public void goOnline(byte[] hash, long expiry) throws NoUserAlreadyOnlineException {
+    if (!online.putIfAbsent(hash, expiry)) {
       throw new NoUserAlreadyOnlineException();
     }
-    online.add(hashString);
   }
 
   @Override
   public boolean isOnline(byte[] hash) {
-    String hashString = Base64.encodeBase64URLSafeString(hash);
-    return online.contains(hashString);
+    return online.contains(hash);
   }
 
   @Override
   public void goOffline(byte[] hash) {
-    String hashString = Base64.encodeBase64URLSafeString(hash);
-    online.remove(hashString);
+    online.remove(hash);
   }
 
 }
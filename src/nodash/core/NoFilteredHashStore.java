@@ -0,0 +1,273 @@
+/*
+ * Copyright 2014 David Horscroft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * NoFilteredHashStore puts a NoCuckooFilter in front of another NoHashStore, so that lookups of
+ * hashes which are not stored (stale or forged user files) are rejected without touching it.
+ */
+
+package nodash.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public final class NoFilteredHashStore implements NoHashStore {
+  private final NoHashStore delegate;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final Object writeLock = new Object();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong falsePositives = new AtomicLong();
+  private NoCuckooFilter filter;
+
+  /**
+   * Builds the filter from every hash held by the delegate.
+   *
+   * @param delegate the store the filter is kept in sync with.
+   * @throws IOException - if the delegate cannot be read.
+   */
+  public NoFilteredHashStore(NoHashStore delegate) throws IOException {
+    this.delegate = delegate;
+    this.filter = build(delegate.export(), 0);
+  }
+
+  @Override
+  public boolean contains(byte[] hash) throws IOException {
+    if (hash.length != HASH_LENGTH) {
+      return false;
+    }
+    boolean mightContain;
+    lock.readLock().lock();
+    try {
+      mightContain = filter.mightContain(hash);
+    } finally {
+      lock.readLock().unlock();
+    }
+    if (!mightContain) {
+      rejected.incrementAndGet();
+      return false;
+    }
+    boolean contains = delegate.contains(hash);
+    if (!contains) {
+      falsePositives.incrementAndGet();
+    }
+    return contains;
+  }
+
+  @Override
+  public boolean insert(byte[] hash) throws IOException {
+    if (hash.length != HASH_LENGTH) {
+      throw new IllegalArgumentException("Hashes must be " + HASH_LENGTH + " bytes long.");
+    }
+    synchronized (writeLock) {
+      /* The fingerprint goes in first, so a concurrent lookup never misses an inserted hash. */
+      addToFilter(hash);
+      boolean inserted = false;
+      try {
+        inserted = delegate.insert(hash);
+      } finally {
+        if (!inserted) {
+          removeFromFilter(hash);
+        }
+      }
+      return inserted;
+    }
+  }
+
+  @Override
+  public boolean remove(byte[] hash) throws IOException {
+    if (hash.length != HASH_LENGTH) {
+      throw new IllegalArgumentException("Hashes must be " + HASH_LENGTH + " bytes long.");
+    }
+    synchronized (writeLock) {
+      /* Only hashes known to be stored are removed, or another hash's fingerprint could go. */
+      boolean removed = delegate.remove(hash);
+      if (removed) {
+        removeFromFilter(hash);
+      }
+      return removed;
+    }
+  }
+
+  @Override
+  public void replace(byte[] oldHash, byte[] newHash) throws IOException {
+    if (oldHash.length != HASH_LENGTH || newHash.length != HASH_LENGTH) {
+      throw new IllegalArgumentException("Hashes must be " + HASH_LENGTH + " bytes long.");
+    }
+    synchronized (writeLock) {
+      boolean removeOld = delegate.contains(oldHash);
+      boolean addNew = !delegate.contains(newHash);
+      if (addNew) {
+        addToFilter(newHash);
+      }
+      boolean replaced = false;
+      try {
+        delegate.replace(oldHash, newHash);
+        replaced = true;
+      } finally {
+        if (addNew && !replaced) {
+          removeFromFilter(newHash);
+        }
+      }
+      if (removeOld) {
+        removeFromFilter(oldHash);
+      }
+    }
+  }
+
+  @Override
+  public boolean insertReplacing(byte[] oldHash, byte[] newHash) throws IOException {
+    if (oldHash.length != HASH_LENGTH || newHash.length != HASH_LENGTH) {
+      throw new IllegalArgumentException("Hashes must be " + HASH_LENGTH + " bytes long.");
+    }
+    synchronized (writeLock) {
+      boolean addNew = !delegate.contains(newHash);
+      if (addNew) {
+        addToFilter(newHash);
+      }
+      boolean inserted = false;
+      try {
+        inserted = delegate.insertReplacing(oldHash, newHash);
+      } finally {
+        if (addNew && !inserted) {
+          removeFromFilter(newHash);
+        }
+      }
+      return inserted;
+    }
+  }
+
+  @Override
+  public List<byte[][]> pendingReplacements() throws IOException {
+    return delegate.pendingReplacements();
+  }
+
+  @Override
+  public void releaseReplacement(byte[] newHash) throws IOException {
+    delegate.releaseReplacement(newHash);
+  }
+
+  @Override
+  public void sync() throws IOException {
+    delegate.sync();
+  }
+
+  @Override
+  public long count() throws IOException {
+    return delegate.count();
+  }
+
+  @Override
+  public byte[][] export() throws IOException {
+    return delegate.export();
+  }
+
+  @Override
+  public Iterator<ByteBuffer> iterator() throws IOException {
+    return delegate.iterator();
+  }
+
+  @Override
+  public long transferTo(WritableByteChannel target) throws IOException {
+    return delegate.transferTo(target);
+  }
+
+  /**
+   * Returns the expected rate at which lookups of unstored hashes get past the filter.
+   *
+   * @return the false positive rate, between 0 and 1.
+   */
+  public double falsePositiveRate() {
+    lock.readLock().lock();
+    try {
+      return filter.falsePositiveRate();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the number of bytes held by the filter.
+   *
+   * @return the size of the filter in bytes.
+   */
+  public long memoryUsage() {
+    lock.readLock().lock();
+    try {
+      return filter.memoryUsage();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the number of lookups rejected by the filter alone.
+   *
+   * @return the number of rejected lookups.
+   */
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  /**
+   * Returns the number of lookups which got past the filter but were not stored.
+   *
+   * @return the number of observed false positives.
+   */
+  public long getFalsePositives() {
+    return falsePositives.get();
+  }
+
+  private void addToFilter(byte[] hash) throws IOException {
+    lock.writeLock().lock();
+    try {
+      if (!filter.add(hash)) {
+        filter = build(delegate.export(), filter.size() * 2);
+        filter.add(hash);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void removeFromFilter(byte[] hash) {
+    lock.writeLock().lock();
+    try {
+      filter.remove(hash);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private static NoCuckooFilter build(byte[][] hashes, long minimumSize) {
+    long size = Math.max(hashes.length * 2L, minimumSize);
+    while (true) {
+      NoCuckooFilter filter = new NoCuckooFilter(size);
+      boolean complete = true;
+      for (byte[] hash : hashes) {
+        if (!filter.add(hash)) {
+          complete = false;
+          break;
+        }
+      }
+      if (complete) {
+        return filter;
+      }
+      size *= 2;
+    }
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014 David Horscroft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * NoHashStore is the storage contract used by NoDefaultAdapter for the list of user hashes.
+ */
+
+package nodash.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The NoHashStore interface defines a set of fixed-length user hashes. Implementations must be safe
+ * to use from multiple threads.
+ */
+public interface NoHashStore {
+  /**
+   * The length in bytes of a single user hash (SHA-512).
+   */
+  public static final int HASH_LENGTH = 64;
+
+  /**
+   * Checks whether the given hash is stored.
+   *
+   * @param hash the 64 byte user hash.
+   * @return true if the hash is stored, else false.
+   * @throws IOException - if the underlying storage cannot be read.
+   */
+  public boolean contains(byte[] hash) throws IOException;
+
+  /**
+   * Stores the given hash.
+   *
+   * @param hash the 64 byte user hash.
+   * @return true if the hash was added, false if it was already stored.
+   * @throws IOException - if the underlying storage cannot be written.
+   */
+  public boolean insert(byte[] hash) throws IOException;
+
+  /**
+   * Removes the given hash.
+   *
+   * @param hash the 64 byte user hash.
+   * @return true if the hash was removed, false if it was not stored.
+   * @throws IOException - if the underlying storage cannot be written.
+   */
+  public boolean remove(byte[] hash) throws IOException;
+
+  /**
+   * Removes one hash and stores another in a single operation, so that either both or neither
+   * change is made. Removing a hash which is not stored and storing one which already is are both
+   * ignored.
+   *
+   * @param oldHash the 64 byte hash to remove.
+   * @param newHash the 64 byte hash to store.
+   * @throws IOException - if the underlying storage cannot be written.
+   */
+  public void replace(byte[] oldHash, byte[] newHash) throws IOException;
+
+  /**
+   * Stores a hash which replaces one held by another store, such as another shard. Stores with a
+   * journal write the old hash alongside the new one, and keep it until the replacement is
+   * released, so that a replace interrupted between the two stores can be finished from here after
+   * a crash. By default the new hash is simply stored.
+   *
+   * @param oldHash the 64 byte hash being replaced, held by another store.
+   * @param newHash the 64 byte hash to store.
+   * @return true if the hash was added, false if it was already stored.
+   * @throws IOException - if the underlying storage cannot be written.
+   */
+  public default boolean insertReplacing(byte[] oldHash, byte[] newHash) throws IOException {
+    return insert(newHash);
+  }
+
+  /**
+   * Returns the replacements stored by {@link #insertReplacing(byte[], byte[])} which have not been
+   * released, including those read back after a crash.
+   *
+   * @return the replacements as pairs of the old hash and the new one.
+   * @throws IOException - if the underlying storage cannot be read.
+   */
+  public default List<byte[][]> pendingReplacements() throws IOException {
+    return Collections.emptyList();
+  }
+
+  /**
+   * Releases a replacement once the old hash is durably removed from the other store.
+   *
+   * @param newHash the 64 byte hash which was stored as a replacement.
+   * @throws IOException - if the underlying storage cannot be written.
+   */
+  public default void releaseReplacement(byte[] newHash) throws IOException {}
+
+  /**
+   * Waits until every change made to the store so far is durable. Stores which make each change
+   * durable before returning from it do nothing; stores which batch changes (group commit) write
+   * out the batch, so callers should sync after changing the store and once any locks of their
+   * own are released.
+   *
+   * @throws IOException - if the changes cannot be written.
+   */
+  public void sync() throws IOException;
+
+  /**
+   * Waits until every change made so far to the given hashes is durable. Stores which keep their
+   * hashes in independent parts may sync only the parts holding these hashes, so that callers do
+   * not wait on batches of unrelated changes; by default the whole store is synced.
+   *
+   * @param hashes the 64 byte hashes which were changed.
+   * @throws IOException - if the changes cannot be written.
+   */
+  public default void sync(byte[]... hashes) throws IOException {
+    sync();
+  }
+
+  /**
+   * Returns the number of stored hashes.
+   *
+   * @return the number of stored hashes.
+   * @throws IOException - if the underlying storage cannot be read.
+   */
+  public long count() throws IOException;
+
+  /**
+   * Returns a copy of every stored hash.
+   *
+   * @return a two dimensional array of the stored hashes, delimited by the first index.
+   * @throws IOException - if the underlying storage cannot be read.
+   */
+  public byte[][] export() throws IOException;
+
+  /**
+   * Returns a snapshot of every stored hash as a read-only 64 byte buffer. Where possible the
+   * buffers are views of the underlying storage rather than copies, so iterating over a very large
+   * store costs no heap. Changes made after the call are not seen by the iterator.
+   *
+   * @return an iterator over the stored hashes.
+   * @throws IOException - if the underlying storage cannot be read.
+   */
+  public Iterator<ByteBuffer> iterator() throws IOException;
+
+  /**
+   * Writes a snapshot of every stored hash, 64 bytes apiece, to the given channel. Where possible
+   * the bytes are handed to the channel without passing through the heap. The channel must be in
+   * blocking mode.
+   *
+   * @param target the channel to write the hashes to.
+   * @return the number of bytes written.
+   * @throws IOException - if the underlying storage cannot be read or the channel written.
+   */
+  public long transferTo(WritableByteChannel target) throws IOException;
+}
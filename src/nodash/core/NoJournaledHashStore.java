@@ -0,0 +1,744 @@
+/*
+ * Copyright 2014 David Horscroft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * NoJournaledHashStore records inserts and removals as small records appended to a journal, and
+ * folds the journal into a sorted NoMappedHashStore base file in the background.
+ */
+
+package nodash.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public final class NoJournaledHashStore implements NoHashStore {
+  public static final int DEFAULT_COMPACTION_THRESHOLD = 4096;
+  public static final int DEFAULT_COMMIT_BATCH = 64;
+
+  private static final byte RECORD_ADD = 1;
+  private static final byte RECORD_TOMBSTONE = 0;
+  /* Names the hash replaced by the add which always follows it in the same write. */
+  private static final byte RECORD_HANDOFF = 2;
+  private static final int RECORD_LENGTH = HASH_LENGTH + 1;
+
+  /* One low-priority thread compacts every journaled store, however many shards are open. */
+  private static final ExecutorService COMPACTOR =
+      Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "no-hash-compactor");
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      });
+
+  private final NoMappedHashStore base;
+  private final File journalFile;
+  private final File compactingFile;
+  private final int compactionThreshold;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final Object compactionLock = new Object();
+  private final AtomicBoolean compactionScheduled = new AtomicBoolean(false);
+
+  /* Kept in step with every change under the write lock, so counting never takes the lock. */
+  private final AtomicLong count;
+
+  /*
+   * Group commit. When the commit delay is not zero, changes are queued as journal records under
+   * the write lock and written out by whichever thread calls sync() first, with one write and one
+   * fsync for every record queued by then. The flush lock is held by that thread, and is always
+   * taken before the write lock.
+   */
+  private final long commitDelayNanos;
+  private final int commitBatch;
+  private final Lock flushLock = new ReentrantLock();
+  private final Condition batchFull = flushLock.newCondition();
+  private final Condition flushed = flushLock.newCondition();
+  private boolean flushing = false;
+  private List<ByteBuffer> queued = new ArrayList<ByteBuffer>();
+  private volatile long queuedRecords = 0;
+  private volatile long durableRecords = 0;
+
+  /*
+   * Changes not yet folded into the base file, keyed by hash: TRUE for an add, FALSE for a
+   * tombstone. The active map mirrors the journal; the frozen map mirrors the journal currently
+   * being compacted and is never modified.
+   */
+  private Map<ByteBuffer, Boolean> active = new HashMap<ByteBuffer, Boolean>();
+  private Map<ByteBuffer, Boolean> frozen = Collections.emptyMap();
+  private FileChannel journal;
+
+  /*
+   * Replacements from another store which are not yet released, keyed by the new hash and holding
+   * the old one. They are written again to every journal which replaces the one holding them.
+   */
+  private final Map<ByteBuffer, byte[]> handoffs = new HashMap<ByteBuffer, byte[]>();
+
+  public NoJournaledHashStore(File file) throws IOException {
+    this(file, DEFAULT_COMPACTION_THRESHOLD);
+  }
+
+  /**
+   * Opens (or creates) the base hash file and its journal. Journals left behind by an earlier run
+   * are replayed and folded into the base file before the store is used.
+   *
+   * @param file the base hash file; the journal is kept alongside it.
+   * @param compactionThreshold the number of journal records which triggers a compaction.
+   * @throws IOException - if the base file or the journals cannot be read or written.
+   */
+  public NoJournaledHashStore(File file, int compactionThreshold) throws IOException {
+    this(file, compactionThreshold, 0, TimeUnit.NANOSECONDS, DEFAULT_COMMIT_BATCH);
+  }
+
+  /**
+   * Opens (or creates) the base hash file and its journal, with group commit. Changes are only
+   * queued by {@link #insert(byte[])}, {@link #remove(byte[])} and
+   * {@link #replace(byte[], byte[])}; they are visible to lookups straight away, but only durable
+   * once a following {@link #sync()} returns. The thread which syncs first waits for up to the
+   * commit delay, or until the batch is full, for other writers to queue their changes, then
+   * writes them all out with a single write and fsync.
+   *
+   * @param file the base hash file; the journal is kept alongside it.
+   * @param compactionThreshold the number of journal records which triggers a compaction.
+   * @param commitDelay the longest a sync waits for other changes to join its batch, or zero to
+   *        make every change durable before it returns, without group commit.
+   * @param unit the unit of the commit delay.
+   * @param commitBatch the number of queued changes which are written out without waiting for the
+   *        rest of the commit delay.
+   * @throws IOException - if the base file or the journals cannot be read or written.
+   */
+  public NoJournaledHashStore(File file, int compactionThreshold, long commitDelay, TimeUnit unit,
+      int commitBatch) throws IOException {
+    if (commitDelay < 0 || commitBatch < 1) {
+      throw new IllegalArgumentException("Commit delay cannot be negative and batches cannot be "
+          + "empty.");
+    }
+    this.commitDelayNanos = unit.toNanos(commitDelay);
+    this.commitBatch = commitBatch;
+    this.base = new NoMappedHashStore(file);
+    this.journalFile = new File(file.getPath() + ".journal");
+    this.compactingFile = new File(file.getPath() + ".journal.compacting");
+    this.compactionThreshold = compactionThreshold;
+
+    Map<ByteBuffer, Boolean> recovered = new HashMap<ByteBuffer, Boolean>();
+    replay(compactingFile, recovered, handoffs);
+    replay(journalFile, recovered, handoffs);
+    fold(recovered);
+    Iterator<Map.Entry<ByteBuffer, byte[]>> pending = handoffs.entrySet().iterator();
+    while (pending.hasNext()) {
+      if (!base.contains(pending.next().getKey().array())) {
+        pending.remove();
+      }
+    }
+    if (handoffs.isEmpty()) {
+      Files.deleteIfExists(journalFile.toPath());
+    } else {
+      /* The handoffs go to a new journal which replaces the old one in a single step. */
+      File handoffFile = new File(file.getPath() + ".journal.handoffs");
+      try (FileChannel handoffJournal = FileChannel.open(handoffFile.toPath(),
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING)) {
+        writeHandoffs(handoffJournal);
+      }
+      Files.move(handoffFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    }
+    Files.deleteIfExists(compactingFile.toPath());
+
+    this.count = new AtomicLong(base.count());
+    this.journal = openJournal(journalFile);
+  }
+
+  @Override
+  public boolean contains(byte[] hash) {
+    lock.readLock().lock();
+    try {
+      return lookup(ByteBuffer.wrap(hash), hash);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean insert(byte[] hash) throws IOException {
+    return change(hash, true);
+  }
+
+  @Override
+  public boolean remove(byte[] hash) throws IOException {
+    return change(hash, false);
+  }
+
+  @Override
+  public void replace(byte[] oldHash, byte[] newHash) throws IOException {
+    checkLength(oldHash);
+    checkLength(newHash);
+    if (Arrays.equals(oldHash, newHash)) {
+      throw new IllegalArgumentException("Hashes to add and remove cannot be the same.");
+    }
+    boolean compactionDue;
+    boolean batchFilled;
+    lock.writeLock().lock();
+    try {
+      boolean removeOld = lookup(ByteBuffer.wrap(oldHash), oldHash);
+      boolean addNew = !lookup(ByteBuffer.wrap(newHash), newHash);
+      if (!removeOld && !addNew) {
+        return;
+      }
+      /* Both records go out in one write and one sync, so a replay sees both or neither. */
+      ByteBuffer records = ByteBuffer.allocate(RECORD_LENGTH * 2);
+      if (addNew) {
+        records.put(RECORD_ADD).put(newHash);
+      }
+      if (removeOld) {
+        records.put(RECORD_TOMBSTONE).put(oldHash);
+      }
+      records.flip();
+      appendToJournal(records);
+      if (addNew) {
+        active.put(ByteBuffer.wrap(newHash.clone()), Boolean.TRUE);
+        count.incrementAndGet();
+      }
+      if (removeOld) {
+        active.put(ByteBuffer.wrap(oldHash.clone()), Boolean.FALSE);
+        count.decrementAndGet();
+      }
+      compactionDue = active.size() >= compactionThreshold;
+      batchFilled = commitDelayNanos > 0 && queuedRecords - durableRecords >= commitBatch;
+    } finally {
+      lock.writeLock().unlock();
+    }
+    if (batchFilled) {
+      signalBatchFull();
+    }
+    if (compactionDue) {
+      scheduleCompaction();
+    }
+  }
+
+  /**
+   * Stores the new hash together with a record of the hash it replaces in another store, in one
+   * write. The record is kept, through compactions and reopens, until it is released, so that
+   * whoever removes the old hash can finish the replace after a crash.
+   */
+  @Override
+  public boolean insertReplacing(byte[] oldHash, byte[] newHash) throws IOException {
+    checkLength(oldHash);
+    checkLength(newHash);
+    boolean added;
+    boolean compactionDue;
+    boolean batchFilled;
+    lock.writeLock().lock();
+    try {
+      added = !lookup(ByteBuffer.wrap(newHash), newHash);
+      appendToJournal(handoff(oldHash, newHash));
+      handoffs.put(ByteBuffer.wrap(newHash.clone()), oldHash.clone());
+      if (added) {
+        active.put(ByteBuffer.wrap(newHash.clone()), Boolean.TRUE);
+        count.incrementAndGet();
+      }
+      compactionDue = active.size() >= compactionThreshold;
+      batchFilled = commitDelayNanos > 0 && queuedRecords - durableRecords >= commitBatch;
+    } finally {
+      lock.writeLock().unlock();
+    }
+    if (batchFilled) {
+      signalBatchFull();
+    }
+    if (compactionDue) {
+      scheduleCompaction();
+    }
+    return added;
+  }
+
+  @Override
+  public List<byte[][]> pendingReplacements() {
+    lock.readLock().lock();
+    try {
+      List<byte[][]> pending = new ArrayList<byte[][]>();
+      for (Map.Entry<ByteBuffer, byte[]> entry : handoffs.entrySet()) {
+        pending.add(new byte[][] {entry.getValue().clone(), entry.getKey().array().clone()});
+      }
+      return pending;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Releases the record of a replacement; it is dropped by the next compaction.
+   */
+  @Override
+  public void releaseReplacement(byte[] newHash) {
+    lock.writeLock().lock();
+    try {
+      handoffs.remove(ByteBuffer.wrap(newHash));
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public long count() {
+    return count.get();
+  }
+
+  @Override
+  public byte[][] export() {
+    lock.readLock().lock();
+    try {
+      Map<ByteBuffer, Boolean> pending = pendingChanges();
+      List<byte[]> export = new ArrayList<byte[]>();
+      for (byte[] hash : base.export()) {
+        if (!Boolean.FALSE.equals(pending.get(ByteBuffer.wrap(hash)))) {
+          export.add(hash);
+        }
+      }
+      for (Map.Entry<ByteBuffer, Boolean> entry : pending.entrySet()) {
+        byte[] hash = entry.getKey().array();
+        if (entry.getValue() && !base.contains(hash)) {
+          export.add(hash.clone());
+        }
+      }
+      return export.toArray(new byte[export.size()][]);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public Iterator<ByteBuffer> iterator() {
+    ByteBuffer snapshot;
+    Map<ByteBuffer, Boolean> pending;
+    lock.readLock().lock();
+    try {
+      /*
+       * The pending changes hold the final state of every hash they name, and the base file only
+       * changes under them while they are frozen, so any base taken under the lock agrees with them.
+       */
+      snapshot = base.snapshot();
+      pending = new HashMap<ByteBuffer, Boolean>(pendingChanges());
+    } finally {
+      lock.readLock().unlock();
+    }
+    List<ByteBuffer> adds = new ArrayList<ByteBuffer>();
+    int[] skips = overlay(snapshot, pending, adds);
+    return NoMappedHashStore.slices(snapshot, skips, adds);
+  }
+
+  @Override
+  public long transferTo(WritableByteChannel target) throws IOException {
+    FileChannel snapshot;
+    Map<ByteBuffer, Boolean> pending;
+    lock.readLock().lock();
+    try {
+      snapshot = base.openSnapshot();
+      pending = new HashMap<ByteBuffer, Boolean>(pendingChanges());
+    } finally {
+      lock.readLock().unlock();
+    }
+    try (FileChannel source = snapshot) {
+      ByteBuffer records = source.map(FileChannel.MapMode.READ_ONLY, 0, source.size());
+      List<ByteBuffer> adds = new ArrayList<ByteBuffer>();
+      int[] skips = overlay(records, pending, adds);
+      long transferred = NoMappedHashStore.transferRanges(source, skips, target);
+
+      /* Hashes only held in the journal are few, and go out in a single write. */
+      ByteBuffer journaled = ByteBuffer.allocate(adds.size() * HASH_LENGTH);
+      for (ByteBuffer add : adds) {
+        journaled.put(add);
+      }
+      journaled.flip();
+      while (journaled.hasRemaining()) {
+        transferred += target.write(journaled);
+      }
+      return transferred;
+    }
+  }
+
+  /**
+   * Folds the journal into the base file on the calling thread. This normally happens in the
+   * background once the journal reaches the compaction threshold.
+   *
+   * @throws IOException - if the base file cannot be rewritten.
+   */
+  public void compact() throws IOException {
+    synchronized (compactionLock) {
+      /* A frozen journal left by a failed compaction is retried before a new one is frozen. */
+      if (frozen.isEmpty()) {
+        flushLock.lock();
+        try {
+          lock.writeLock().lock();
+          try {
+            if (active.isEmpty()) {
+              return;
+            }
+            /* Queued records go out to the journal being frozen, as they belong to its changes. */
+            if (!queued.isEmpty()) {
+              writeRecords(queued);
+              journal.force(false);
+              queued = new ArrayList<ByteBuffer>();
+              durableRecords = queuedRecords;
+            }
+            journal.close();
+            Files.move(journalFile.toPath(), compactingFile.toPath());
+            journal = openJournal(journalFile);
+            frozen = active;
+            active = new HashMap<ByteBuffer, Boolean>();
+          } finally {
+            lock.writeLock().unlock();
+          }
+        } finally {
+          flushLock.unlock();
+        }
+      }
+
+      fold(frozen);
+
+      flushLock.lock();
+      try {
+        lock.writeLock().lock();
+        try {
+          /* Handoffs held by the frozen journal must be durable elsewhere before it goes. */
+          if (!handoffs.isEmpty()) {
+            writeHandoffs(journal);
+          }
+          frozen = Collections.emptyMap();
+          Files.deleteIfExists(compactingFile.toPath());
+        } finally {
+          lock.writeLock().unlock();
+        }
+      } finally {
+        flushLock.unlock();
+      }
+    }
+  }
+
+  private boolean change(byte[] hash, boolean add) throws IOException {
+    checkLength(hash);
+    boolean compactionDue;
+    boolean batchFilled;
+    lock.writeLock().lock();
+    try {
+      if (lookup(ByteBuffer.wrap(hash), hash) == add) {
+        return false;
+      }
+      ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+      record.put(add ? RECORD_ADD : RECORD_TOMBSTONE).put(hash).flip();
+      appendToJournal(record);
+      active.put(ByteBuffer.wrap(hash.clone()), add);
+      count.addAndGet(add ? 1 : -1);
+      compactionDue = active.size() >= compactionThreshold;
+      batchFilled = commitDelayNanos > 0 && queuedRecords - durableRecords >= commitBatch;
+    } finally {
+      lock.writeLock().unlock();
+    }
+    if (batchFilled) {
+      signalBatchFull();
+    }
+    if (compactionDue) {
+      scheduleCompaction();
+    }
+    return true;
+  }
+
+  @Override
+  public void sync() throws IOException {
+    long target = queuedRecords;
+    if (durableRecords >= target) {
+      return;
+    }
+    flushLock.lock();
+    try {
+      while (durableRecords < target) {
+        if (flushing) {
+          flushed.awaitUninterruptibly();
+          continue;
+        }
+        flushing = true;
+        boolean interrupted = false;
+        try {
+          /* Give concurrent writers the commit delay to join this batch. */
+          long remaining = commitDelayNanos;
+          while (remaining > 0 && queuedRecords - durableRecords < commitBatch) {
+            try {
+              remaining = batchFull.awaitNanos(remaining);
+            } catch (InterruptedException e) {
+              interrupted = true;
+              break;
+            }
+          }
+          flushJournal();
+        } finally {
+          flushing = false;
+          flushed.signalAll();
+          /* Not restored before the flush, as an interrupt would close the journal channel. */
+          if (interrupted) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+    } finally {
+      flushLock.unlock();
+    }
+  }
+
+  /**
+   * Writes every queued record to the journal with one write and one fsync. Must be called with the
+   * flush lock held. Records which could not be written are queued again, ahead of newer ones, and
+   * the next flush syncs the journal again whether or not anything is left to write.
+   */
+  private void flushJournal() throws IOException {
+    List<ByteBuffer> records;
+    long target;
+    lock.writeLock().lock();
+    try {
+      records = queued;
+      queued = new ArrayList<ByteBuffer>();
+      target = queuedRecords;
+    } finally {
+      lock.writeLock().unlock();
+    }
+    try {
+      if (!records.isEmpty()) {
+        writeRecords(records);
+      }
+      journal.force(false);
+    } catch (IOException e) {
+      lock.writeLock().lock();
+      try {
+        List<ByteBuffer> requeued = new ArrayList<ByteBuffer>();
+        for (ByteBuffer record : records) {
+          if (record.hasRemaining()) {
+            requeued.add(record);
+          }
+        }
+        requeued.addAll(queued);
+        queued = requeued;
+      } finally {
+        lock.writeLock().unlock();
+      }
+      throw e;
+    }
+    durableRecords = target;
+  }
+
+  private void writeRecords(List<ByteBuffer> records) throws IOException {
+    ByteBuffer[] buffers = records.toArray(new ByteBuffer[records.size()]);
+    ByteBuffer last = buffers[buffers.length - 1];
+    while (last.hasRemaining()) {
+      journal.write(buffers);
+    }
+  }
+
+  /**
+   * Writes the records to the journal and syncs it, or with group commit queues them for the next
+   * sync. Must be called with the write lock held.
+   */
+  private void appendToJournal(ByteBuffer records) throws IOException {
+    if (commitDelayNanos == 0) {
+      writeDurably(journal, records);
+      return;
+    }
+    queued.add(records);
+    queuedRecords++;
+  }
+
+  /**
+   * Wakes a sync waiting for its batch to fill. Must be called without the write lock held.
+   */
+  private void signalBatchFull() {
+    flushLock.lock();
+    try {
+      batchFull.signal();
+    } finally {
+      flushLock.unlock();
+    }
+  }
+
+  private void scheduleCompaction() {
+    if (!compactionScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    COMPACTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        compactionScheduled.set(false);
+        try {
+          compact();
+        } catch (IOException e) {
+          /* The frozen journal is kept and retried by the next compaction. */
+        }
+      }
+    });
+  }
+
+  private boolean lookup(ByteBuffer key, byte[] hash) {
+    Boolean state = active.get(key);
+    if (state == null) {
+      state = frozen.get(key);
+    }
+    if (state == null) {
+      return base.contains(hash);
+    }
+    return state;
+  }
+
+  /**
+   * Works out how the pending changes alter the given base records: returns the sorted indices of
+   * the records which were removed, and collects the hashes which were added.
+   */
+  private static int[] overlay(ByteBuffer records, Map<ByteBuffer, Boolean> pending,
+      List<ByteBuffer> adds) {
+    int[] skips = new int[pending.size()];
+    int skipCount = 0;
+    for (Map.Entry<ByteBuffer, Boolean> entry : pending.entrySet()) {
+      int index = NoMappedHashStore.search(records, entry.getKey().array());
+      if (!entry.getValue() && index >= 0) {
+        skips[skipCount++] = index;
+      } else if (entry.getValue() && index < 0) {
+        adds.add(entry.getKey().asReadOnlyBuffer());
+      }
+    }
+    skips = Arrays.copyOf(skips, skipCount);
+    Arrays.sort(skips);
+    return skips;
+  }
+
+  private Map<ByteBuffer, Boolean> pendingChanges() {
+    if (frozen.isEmpty()) {
+      return active;
+    }
+    Map<ByteBuffer, Boolean> pending = new HashMap<ByteBuffer, Boolean>(frozen);
+    pending.putAll(active);
+    return pending;
+  }
+
+  private void fold(Map<ByteBuffer, Boolean> changes) throws IOException {
+    if (changes.isEmpty()) {
+      return;
+    }
+    List<byte[]> adds = new ArrayList<byte[]>();
+    List<byte[]> removes = new ArrayList<byte[]>();
+    for (Map.Entry<ByteBuffer, Boolean> entry : changes.entrySet()) {
+      (entry.getValue() ? adds : removes).add(entry.getKey().array());
+    }
+    byte[][] sortedAdds = adds.toArray(new byte[adds.size()][]);
+    byte[][] sortedRemoves = removes.toArray(new byte[removes.size()][]);
+    Arrays.sort(sortedAdds, NoMappedHashStore.HASH_ORDER);
+    Arrays.sort(sortedRemoves, NoMappedHashStore.HASH_ORDER);
+    base.merge(sortedAdds, sortedRemoves);
+  }
+
+  private static void replay(File journalFile, Map<ByteBuffer, Boolean> changes,
+      Map<ByteBuffer, byte[]> handoffs) throws IOException {
+    if (!journalFile.exists()) {
+      return;
+    }
+    byte[] journal = Files.readAllBytes(journalFile.toPath());
+    /*
+     * A trailing partial record is the remains of an interrupted write and is ignored, as is a
+     * handoff whose add did not make it.
+     */
+    int records = journal.length / RECORD_LENGTH;
+    for (int x = 0; x < records; x++) {
+      int offset = x * RECORD_LENGTH;
+      byte[] hash = Arrays.copyOfRange(journal, offset + 1, offset + RECORD_LENGTH);
+      if (journal[offset] == RECORD_HANDOFF) {
+        if (x + 1 == records) {
+          break;
+        }
+        int next = offset + RECORD_LENGTH;
+        handoffs.put(ByteBuffer.wrap(Arrays.copyOfRange(journal, next + 1, next + RECORD_LENGTH)),
+            hash);
+      } else {
+        changes.put(ByteBuffer.wrap(hash), journal[offset] == RECORD_ADD);
+      }
+    }
+  }
+
+  private static ByteBuffer handoff(byte[] oldHash, byte[] newHash) {
+    ByteBuffer records = ByteBuffer.allocate(RECORD_LENGTH * 2);
+    records.put(RECORD_HANDOFF).put(oldHash).put(RECORD_ADD).put(newHash).flip();
+    return records;
+  }
+
+  /* Writes every unreleased handoff to the given journal and syncs it. */
+  private void writeHandoffs(FileChannel target) throws IOException {
+    ByteBuffer records = ByteBuffer.allocate(RECORD_LENGTH * 2 * handoffs.size());
+    for (Map.Entry<ByteBuffer, byte[]> entry : handoffs.entrySet()) {
+      records.put(handoff(entry.getValue(), entry.getKey().array()));
+    }
+    records.flip();
+    writeDurably(target, records);
+  }
+
+  /*
+   * Writes the records to the end of the journal and syncs it. If either fails the journal is cut
+   * back to where it was, as replay reads it in whole records and a partial one would shift every
+   * record appended after it.
+   */
+  private static void writeDurably(FileChannel target, ByteBuffer records) throws IOException {
+    long start = target.size();
+    try {
+      while (records.hasRemaining()) {
+        target.write(records);
+      }
+      target.force(false);
+    } catch (IOException e) {
+      try {
+        target.truncate(start);
+        target.position(start);
+      } catch (IOException truncateException) {
+        e.addSuppressed(truncateException);
+      }
+      records.rewind();
+      throw e;
+    }
+  }
+
+  private static void checkLength(byte[] hash) {
+    if (hash.length != HASH_LENGTH) {
+      throw new IllegalArgumentException("Hashes must be " + HASH_LENGTH + " bytes long.");
+    }
+  }
+
+  private static FileChannel openJournal(File journalFile) throws IOException {
+    return FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+  }
+}
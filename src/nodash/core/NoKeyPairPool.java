@@ -0,0 +1,211 @@
+/*
+ * Copyright 2014 David Horscroft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * NoKeyPairPool generates RSA key pairs ahead of time, so that creating a NoUser does not wait on
+ * key generation.
+ */
+
+package nodash.core;
+
+import java.io.Closeable;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nodash.exceptions.NoDashFatalException;
+
+/**
+ * A pool of RSA key pairs of {@link NoUtil#RSA_STRENGTH} bits, kept full by a daemon thread of
+ * minimum priority. {@link #take()} hands out a pooled key pair at once, and only generates one on
+ * the calling thread when the pool has run dry. Every key pair is handed out once.
+ *
+ * <p>
+ * The shared pool used by NoUser holds NODASH_KEYPAIR_POOL_DEPTH key pairs, or
+ * {@link #DEFAULT_DEPTH} if that is unset; a depth of zero turns pooling off. Other pools must be
+ * closed once they are no longer used, to stop their background thread.
+ */
+public final class NoKeyPairPool implements Closeable {
+  public static final int DEFAULT_DEPTH = 8;
+
+  private static final NoKeyPairPool SHARED = new NoKeyPairPool(setupDepth());
+
+  private final int depth;
+  private final BlockingQueue<KeyPair> pool;
+  private final Thread generator;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong generated = new AtomicLong();
+  private final AtomicLong generationNanos = new AtomicLong();
+
+  private static int setupDepth() {
+    String depthEnv = System.getenv("NODASH_KEYPAIR_POOL_DEPTH");
+    if (depthEnv == null) {
+      return DEFAULT_DEPTH;
+    } else {
+      return Integer.parseInt(depthEnv);
+    }
+  }
+
+  public static NoKeyPairPool getShared() {
+    return SHARED;
+  }
+
+  /**
+   * Creates a pool and starts filling it in the background.
+   *
+   * @param depth the number of key pairs to keep ready; zero generates every key pair on demand.
+   */
+  public NoKeyPairPool(int depth) {
+    if (depth < 0) {
+      throw new IllegalArgumentException("Pool depth cannot be negative.");
+    }
+    this.depth = depth;
+    if (depth == 0) {
+      this.pool = null;
+      this.generator = null;
+      return;
+    }
+    this.pool = new ArrayBlockingQueue<KeyPair>(depth);
+    this.generator = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        KeyPairGenerator kpg = createGenerator();
+        try {
+          while (true) {
+            pool.put(generate(kpg));
+          }
+        } catch (InterruptedException e) {
+          /* The pool is no longer refilled. */
+        }
+      }
+    }, "no-keypair-generator");
+    generator.setDaemon(true);
+    generator.setPriority(Thread.MIN_PRIORITY);
+    generator.start();
+  }
+
+  /**
+   * Stops the background thread and drops the pooled key pairs. Key pairs are still handed out
+   * afterwards, but each is generated on the calling thread.
+   */
+  @Override
+  public void close() {
+    if (generator == null) {
+      return;
+    }
+    /*
+     * Once interrupted, the generator's next put throws before it touches the queue, so nothing
+     * is added after the queue is cleared.
+     */
+    generator.interrupt();
+    pool.clear();
+  }
+
+  /**
+   * Takes a key pair from the pool, or generates one if the pool is empty.
+   *
+   * @return a key pair which has not been handed out before.
+   */
+  public KeyPair take() {
+    KeyPair keyPair = pool == null ? null : pool.poll();
+    if (keyPair != null) {
+      hits.incrementAndGet();
+      return keyPair;
+    }
+    misses.incrementAndGet();
+    return generate(createGenerator());
+  }
+
+  public int getDepth() {
+    return depth;
+  }
+
+  /**
+   * Returns the number of key pairs ready to be taken.
+   *
+   * @return the current fill of the pool.
+   */
+  public int size() {
+    return pool == null ? 0 : pool.size();
+  }
+
+  /**
+   * Returns the number of key pairs taken from the pool.
+   *
+   * @return the number of takes which did not wait on key generation.
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * Returns the number of key pairs generated on the calling thread because the pool was empty.
+   *
+   * @return the number of takes which waited on key generation.
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Returns the number of key pairs generated, both in the background and on demand.
+   *
+   * @return the number of key pairs generated.
+   */
+  public long getGenerated() {
+    return generated.get();
+  }
+
+  /**
+   * Returns the mean time taken to generate a key pair, which bounds the rate at which the pool
+   * refills.
+   *
+   * @return the mean generation time in milliseconds, or zero if none have been generated.
+   */
+  public double getAverageGenerationMillis() {
+    long count = generated.get();
+    return count == 0 ? 0 : generationNanos.get() / 1e6 / count;
+  }
+
+  private KeyPair generate(KeyPairGenerator kpg) {
+    long start = System.nanoTime();
+    KeyPair keyPair = kpg.generateKeyPair();
+    generationNanos.addAndGet(System.nanoTime() - start);
+    generated.incrementAndGet();
+    return keyPair;
+  }
+
+  private static KeyPairGenerator createGenerator() {
+    KeyPairGenerator kpg;
+    try {
+      kpg = KeyPairGenerator.getInstance(NoUtil.KEYPAIR_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new NoDashFatalException("Value for KEYPAIR_ALGORITHM is not valid.", e);
+    }
+
+    try {
+      kpg.initialize(NoUtil.RSA_STRENGTH,
+          SecureRandom.getInstance(NoUtil.SECURERANDOM_ALGORITHM, NoUtil.SECURERANDOM_PROVIDER));
+    } catch (NoSuchAlgorithmException e) {
+      throw new NoDashFatalException("Value for SECURERANDOM_ALGORITHM not valid.", e);
+    } catch (NoSuchProviderException e) {
+      throw new NoDashFatalException("Value for SECURERANDOM_PROVIDER not valid.", e);
+    }
+    return kpg;
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 David Horscroft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * NoMailbox is the storage contract used by NoDefaultAdapter for NoByteSets waiting on their
+ * recipient.
+ */
+
+package nodash.core;
+
+import java.io.IOException;
+import java.util.List;
+
+import nodash.models.NoByteSet;
+
+/**
+ * The NoMailbox interface holds byte sets per address until they are drained. Implementations must
+ * be safe to use from multiple threads, and must drain byte sets in the order they were added.
+ * Implementations with a retention age byte sets from the time they first arrived in a pool (see
+ * {@link NoByteSet#pooled}), and drain a byte set which is added back ahead of those which arrived
+ * after it.
+ *
+ * @param <A> the type of the addresses.
+ */
+public interface NoMailbox<A> {
+  /**
+   * Adds a byte set to the address's mailbox.
+   *
+   * @param address the address of the recipient.
+   * @param byteSet the byte set.
+   * @throws IOException - if the underlying storage cannot be written.
+   */
+  public void add(A address, NoByteSet byteSet) throws IOException;
+
+  /**
+   * Adds byte sets to the address's mailbox as one step; they are drained in the order given.
+   *
+   * @param address the address of the recipient.
+   * @param byteSets the byte sets.
+   * @throws IOException - if the underlying storage cannot be written.
+   */
+  public void addAll(A address, List<NoByteSet> byteSets) throws IOException;
+
+  /**
+   * Removes and returns every byte set waiting for the address.
+   *
+   * @param address the address of the recipient.
+   * @return the byte sets, oldest first; empty if there are none.
+   * @throws IOException - if the underlying storage cannot be read.
+   */
+  public List<NoByteSet> drain(A address) throws IOException;
+
+  /**
+   * Removes and returns the oldest byte sets waiting for the address, leaving the rest.
+   *
+   * @param address the address of the recipient.
+   * @param max the most byte sets to return; at least one.
+   * @return the byte sets, oldest first; empty if there are none.
+   * @throws IOException - if the underlying storage cannot be read.
+   */
+  public List<NoByteSet> drain(A address, int max) throws IOException;
+
+  /**
+   * Drops every byte set which has outlived the mailbox's retention. Mailboxes without a maximum
+   * age drop nothing.
+   *
+   * @param now the current time in milliseconds.
+   * @return the number of byte sets dropped.
+   */
+  public int sweep(long now);
+
+  /**
+   * Returns the number of addresses with byte sets waiting.
+   *
+   * @return the number of mailboxes.
+   */
+  public int addressCount();
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2014 David Horscroft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * NoMailboxRetention limits how long and how many NoByteSets a NoMailbox keeps, and counts those
+ * it lets go.
+ */
+
+package nodash.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import nodash.models.NoByteSet;
+
+/**
+ * The limits a mailbox keeps byte sets under, and the count of byte sets it has evicted to stay
+ * under them. A byte set is evicted once it is older than the maximum age, once its address holds
+ * more than the maximum count or bytes, or once the mailbox as a whole holds more than its byte
+ * budget; the oldest byte sets of the address, or of the mailbox, go first. A byte set's age counts
+ * from the time it first arrived in a pool, even if it has been drained and added back since. The
+ * size of a byte set is the length of its key and data.
+ *
+ * <p>
+ * A limit of {@link #NO_LIMIT} is not enforced. The counters belong to the mailbox the retention is
+ * given to, so every mailbox needs its own.
+ */
+public final class NoMailboxRetention {
+  public static final long NO_LIMIT = 0;
+
+  private final long maxAge;
+  private final long maxCount;
+  private final long maxBytes;
+  private final long maxTotalBytes;
+
+  private final AtomicLong expired = new AtomicLong();
+  private final AtomicLong evictedForAddress = new AtomicLong();
+  private final AtomicLong evictedForBudget = new AtomicLong();
+
+  /**
+   * Returns a retention which enforces no limits.
+   *
+   * @return a retention without limits.
+   */
+  public static NoMailboxRetention unlimited() {
+    return new NoMailboxRetention(NO_LIMIT, NO_LIMIT, NO_LIMIT, NO_LIMIT);
+  }
+
+  /**
+   * Creates a retention with the given limits; any may be {@link #NO_LIMIT}.
+   *
+   * @param maxAge the time in milliseconds a byte set is kept for.
+   * @param maxCount the number of byte sets kept for one address.
+   * @param maxBytes the bytes of byte sets kept for one address.
+   * @param maxTotalBytes the bytes of byte sets kept for every address together.
+   */
+  public NoMailboxRetention(long maxAge, long maxCount, long maxBytes, long maxTotalBytes) {
+    if (maxAge < 0 || maxCount < 0 || maxBytes < 0 || maxTotalBytes < 0) {
+      throw new IllegalArgumentException("Retention limits cannot be negative.");
+    }
+    this.maxAge = maxAge;
+    this.maxCount = maxCount;
+    this.maxBytes = maxBytes;
+    this.maxTotalBytes = maxTotalBytes;
+  }
+
+  public long getMaxAge() {
+    return maxAge;
+  }
+
+  public long getMaxCount() {
+    return maxCount;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public long getMaxTotalBytes() {
+    return maxTotalBytes;
+  }
+
+  public boolean isLimited() {
+    return maxAge != NO_LIMIT || maxCount != NO_LIMIT || maxBytes != NO_LIMIT
+        || maxTotalBytes != NO_LIMIT;
+  }
+
+  /**
+   * Returns the number of byte sets dropped for being older than the maximum age.
+   *
+   * @return the number of expired byte sets.
+   */
+  public long getExpired() {
+    return expired.get();
+  }
+
+  /**
+   * Returns the number of byte sets evicted because their address held too many, or too many
+   * bytes.
+   *
+   * @return the number of byte sets evicted by the per-address limits.
+   */
+  public long getEvictedForAddress() {
+    return evictedForAddress.get();
+  }
+
+  /**
+   * Returns the number of byte sets evicted to keep the mailbox within its byte budget.
+   *
+   * @return the number of byte sets evicted by the budget.
+   */
+  public long getEvictedForBudget() {
+    return evictedForBudget.get();
+  }
+
+  /**
+   * Returns the number of byte sets let go for any reason.
+   *
+   * @return the sum of the eviction counters.
+   */
+  public long getEvicted() {
+    return expired.get() + evictedForAddress.get() + evictedForBudget.get();
+  }
+
+  static long sizeOf(NoByteSet byteSet) {
+    return (byteSet.key == null ? 0 : byteSet.key.length)
+        + (byteSet.data == null ? 0 : byteSet.data.length);
+  }
+
+  /*
+   * Returns the time the byte set first arrived in a pool, stamping it with now if it has not
+   * arrived before. A time in the future is not believed.
+   */
+  static long arrivalOf(NoByteSet byteSet, long now) {
+    if (byteSet.pooled <= 0 || byteSet.pooled > now) {
+      byteSet.pooled = now;
+    }
+    return byteSet.pooled;
+  }
+
+  boolean isExpired(long written, long now) {
+    return maxAge != NO_LIMIT && now - written >= maxAge;
+  }
+
+  boolean isAddressOver(long count, long bytes) {
+    return (maxCount != NO_LIMIT && count > maxCount) || (maxBytes != NO_LIMIT && bytes > maxBytes);
+  }
+
+  boolean isBudgetOver(long totalBytes) {
+    return maxTotalBytes != NO_LIMIT && totalBytes > maxTotalBytes;
+  }
+
+  void countExpired() {
+    expired.incrementAndGet();
+  }
+
+  void countEvictedForAddress() {
+    evictedForAddress.incrementAndGet();
+  }
+
+  void countEvictedForBudget() {
+    evictedForBudget.incrementAndGet();
+  }
+}
@@ -0,0 +1,483 @@
+/*
+ * Copyright 2014 David Horscroft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * NoMappedHashStore keeps the hash file as a sorted array of 64 byte records and memory-maps it, so
+ * that lookups are binary searches over the mapping without reading or copying the file.
+ */
+
+package nodash.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+public final class NoMappedHashStore implements NoHashStore {
+  static final Comparator<byte[]> HASH_ORDER = new Comparator<byte[]>() {
+    @Override
+    public int compare(byte[] o1, byte[] o2) {
+      return NoMappedHashStore.compare(o1, o2);
+    }
+  };
+
+  private final File file;
+
+  /*
+   * The current read-only mapping. Writers replace the file atomically and swap the mapping, so
+   * readers never lock and an in-flight search always sees a consistent, sorted snapshot.
+   */
+  private volatile ByteBuffer records;
+
+  /**
+   * Opens (or creates) the sorted hash file at the given location. Files written by older versions
+   * in insertion order are sorted in place the first time they are opened. A single mapping is
+   * limited to 2GB, or roughly 33 million hashes.
+   *
+   * @param file the hash file.
+   * @throws IOException - if the file cannot be created, read or sorted.
+   */
+  public NoMappedHashStore(File file) throws IOException {
+    this.file = file;
+    if (!file.exists()) {
+      Files.createFile(file.toPath());
+    }
+    this.records = map(file);
+    if (!isSorted(records)) {
+      byte[][] hashes = copyAll(records);
+      Arrays.sort(hashes, HASH_ORDER);
+      writeAll(hashes);
+    }
+  }
+
+  @Override
+  public boolean contains(byte[] hash) {
+    if (hash.length != HASH_LENGTH) {
+      return false;
+    }
+    return search(records, hash) >= 0;
+  }
+
+  @Override
+  public boolean insert(byte[] hash) throws IOException {
+    checkLength(hash);
+    synchronized (this) {
+      ByteBuffer current = records;
+      int index = search(current, hash);
+      if (index >= 0) {
+        return false;
+      }
+      rewrite(current, -1, hash, -index - 1);
+      return true;
+    }
+  }
+
+  @Override
+  public boolean remove(byte[] hash) throws IOException {
+    checkLength(hash);
+    synchronized (this) {
+      ByteBuffer current = records;
+      int index = search(current, hash);
+      if (index < 0) {
+        return false;
+      }
+      rewrite(current, index, null, -1);
+      return true;
+    }
+  }
+
+  @Override
+  public void replace(byte[] oldHash, byte[] newHash) throws IOException {
+    checkLength(oldHash);
+    checkLength(newHash);
+    if (Arrays.equals(oldHash, newHash)) {
+      throw new IllegalArgumentException("Hashes to add and remove cannot be the same.");
+    }
+    synchronized (this) {
+      ByteBuffer current = records;
+      int oldIndex = search(current, oldHash);
+      int newIndex = search(current, newHash);
+      if (oldIndex < 0 && newIndex >= 0) {
+        return;
+      }
+      rewrite(current, oldIndex < 0 ? -1 : oldIndex, newIndex < 0 ? newHash : null,
+          -newIndex - 1);
+    }
+  }
+
+  @Override
+  public void sync() {
+    /* Every change is synced before it returns. */
+  }
+
+  @Override
+  public long count() {
+    return records.capacity() / HASH_LENGTH;
+  }
+
+  @Override
+  public byte[][] export() {
+    return copyAll(records);
+  }
+
+  @Override
+  public Iterator<ByteBuffer> iterator() {
+    return slices(records, new int[0], Collections.<ByteBuffer>emptyList());
+  }
+
+  @Override
+  public long transferTo(WritableByteChannel target) throws IOException {
+    try (FileChannel snapshot = openSnapshot()) {
+      return transferRanges(snapshot, new int[0], target);
+    }
+  }
+
+  /**
+   * Returns the current read-only mapping, which is never modified.
+   */
+  ByteBuffer snapshot() {
+    return records.duplicate();
+  }
+
+  /**
+   * Opens the hash file for reading. Writers replace the file rather than modify it, so the channel
+   * sees one complete version of the file however the store changes afterwards.
+   */
+  FileChannel openSnapshot() throws IOException {
+    return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+  }
+
+  /**
+   * Applies a batch of changes in a single pass over the file. Both arrays must be sorted in hash
+   * order; hashes to add which are already stored and hashes to remove which are not stored are
+   * ignored.
+   *
+   * @param sortedAdds the hashes to add.
+   * @param sortedRemoves the hashes to remove.
+   * @throws IOException - if the new file cannot be written.
+   */
+  synchronized void merge(byte[][] sortedAdds, byte[][] sortedRemoves) throws IOException {
+    ByteBuffer current = records;
+    int hashes = current.capacity() / HASH_LENGTH;
+    File temp = new File(file.getPath() + ".tmp");
+    try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      int runStart = 0;
+      int add = 0;
+      int remove = 0;
+      for (int x = 0; x < hashes; x++) {
+        while (add < sortedAdds.length && compare(current, x, sortedAdds[add]) > 0) {
+          writeRange(out, current, runStart, x);
+          runStart = x;
+          writeFully(out, ByteBuffer.wrap(sortedAdds[add++]));
+        }
+        if (add < sortedAdds.length && compare(current, x, sortedAdds[add]) == 0) {
+          add++;
+        }
+        while (remove < sortedRemoves.length && compare(current, x, sortedRemoves[remove]) > 0) {
+          remove++;
+        }
+        if (remove < sortedRemoves.length && compare(current, x, sortedRemoves[remove]) == 0) {
+          writeRange(out, current, runStart, x);
+          runStart = x + 1;
+          remove++;
+        }
+      }
+      writeRange(out, current, runStart, hashes);
+      while (add < sortedAdds.length) {
+        writeFully(out, ByteBuffer.wrap(sortedAdds[add++]));
+      }
+      out.force(true);
+    }
+    replaceWith(temp);
+  }
+
+  /**
+   * Writes a new sorted file made of the current records, minus the record at {@code skipIndex}
+   * (if not negative) and plus {@code add} inserted before the record at {@code addIndex}, then
+   * atomically replaces the hash file with it and remaps.
+   */
+  private void rewrite(ByteBuffer current, int skipIndex, byte[] add, int addIndex)
+      throws IOException {
+    int hashes = current.capacity() / HASH_LENGTH;
+    File temp = new File(file.getPath() + ".tmp");
+    try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      int cursor = 0;
+      if (add != null && (skipIndex < 0 || addIndex <= skipIndex)) {
+        writeRange(out, current, cursor, addIndex);
+        writeFully(out, ByteBuffer.wrap(add));
+        cursor = addIndex;
+      }
+      if (skipIndex >= 0) {
+        writeRange(out, current, cursor, skipIndex);
+        cursor = skipIndex + 1;
+        if (add != null && addIndex > skipIndex) {
+          writeRange(out, current, cursor, addIndex);
+          writeFully(out, ByteBuffer.wrap(add));
+          cursor = addIndex;
+        }
+      }
+      writeRange(out, current, cursor, hashes);
+      out.force(true);
+    }
+    replaceWith(temp);
+  }
+
+  private void writeAll(byte[][] sortedHashes) throws IOException {
+    File temp = new File(file.getPath() + ".tmp");
+    try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      byte[] previous = null;
+      for (byte[] hash : sortedHashes) {
+        if (previous == null || !Arrays.equals(previous, hash)) {
+          writeFully(out, ByteBuffer.wrap(hash));
+        }
+        previous = hash;
+      }
+      out.force(true);
+    }
+    replaceWith(temp);
+  }
+
+  private void replaceWith(File temp) throws IOException {
+    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+    records = map(file);
+  }
+
+  private static void writeRange(FileChannel out, ByteBuffer source, int from, int to)
+      throws IOException {
+    if (to <= from) {
+      return;
+    }
+    ByteBuffer range = source.duplicate();
+    range.limit(to * HASH_LENGTH);
+    range.position(from * HASH_LENGTH);
+    writeFully(out, range);
+  }
+
+  private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+  }
+
+  private static ByteBuffer map(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size % HASH_LENGTH != 0) {
+        throw new IOException("Hash file " + file + " is not a whole number of hashes.");
+      }
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Hash file " + file + " is too large to map.");
+      }
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+  }
+
+  private static byte[][] copyAll(ByteBuffer records) {
+    ByteBuffer source = records.duplicate();
+    int hashes = source.capacity() / HASH_LENGTH;
+    byte[][] export = new byte[hashes][HASH_LENGTH];
+    for (int x = 0; x < hashes; x++) {
+      source.get(export[x]);
+    }
+    return export;
+  }
+
+  private static boolean isSorted(ByteBuffer records) {
+    int hashes = records.capacity() / HASH_LENGTH;
+    for (int x = 1; x < hashes; x++) {
+      if (compare(records, x - 1, records, x) > 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns an iterator over read-only slices of the records, leaving out the records at the given
+   * indices and followed by the given extra hashes.
+   */
+  static Iterator<ByteBuffer> slices(ByteBuffer records, int[] sortedSkips,
+      List<ByteBuffer> extras) {
+    return new SliceIterator(records, sortedSkips, extras.iterator());
+  }
+
+  /**
+   * Transfers every record of the file except those at the given indices to the target, in as few
+   * {@link FileChannel#transferTo} calls as the skipped records allow.
+   *
+   * @return the number of bytes transferred.
+   */
+  static long transferRanges(FileChannel source, int[] sortedSkips, WritableByteChannel target)
+      throws IOException {
+    long hashes = source.size() / HASH_LENGTH;
+    long transferred = 0;
+    long runStart = 0;
+    for (int skip : sortedSkips) {
+      transferred += transferRange(source, runStart, skip, target);
+      runStart = skip + 1;
+    }
+    return transferred + transferRange(source, runStart, hashes, target);
+  }
+
+  private static long transferRange(FileChannel source, long from, long to,
+      WritableByteChannel target) throws IOException {
+    if (to <= from) {
+      return 0;
+    }
+    long position = from * HASH_LENGTH;
+    long end = to * HASH_LENGTH;
+    while (position < end) {
+      position += source.transferTo(position, end - position, target);
+    }
+    return end - from * HASH_LENGTH;
+  }
+
+  private static void checkLength(byte[] hash) {
+    if (hash.length != HASH_LENGTH) {
+      throw new IllegalArgumentException("Hashes must be " + HASH_LENGTH + " bytes long.");
+    }
+  }
+
+  /**
+   * Binary searches the sorted records for the given hash without copying.
+   *
+   * @return the index of the hash, or {@code -(insertion point) - 1} if it is not present.
+   */
+  static int search(ByteBuffer records, byte[] hash) {
+    int low = 0;
+    int high = records.capacity() / HASH_LENGTH - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int comparison = compare(records, middle, hash);
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -(low + 1);
+  }
+
+  /**
+   * Compares the record at the given index with a hash, treating both as unsigned big-endian
+   * numbers.
+   */
+  static int compare(ByteBuffer records, int index, byte[] hash) {
+    int offset = index * HASH_LENGTH;
+    for (int x = 0; x < HASH_LENGTH; x += 8) {
+      long recordLong = records.getLong(offset + x);
+      long hashLong = getLong(hash, x);
+      if (recordLong != hashLong) {
+        return Long.compareUnsigned(recordLong, hashLong);
+      }
+    }
+    return 0;
+  }
+
+  static int compare(ByteBuffer left, int leftIndex, ByteBuffer right, int rightIndex) {
+    int leftOffset = leftIndex * HASH_LENGTH;
+    int rightOffset = rightIndex * HASH_LENGTH;
+    for (int x = 0; x < HASH_LENGTH; x += 8) {
+      long leftLong = left.getLong(leftOffset + x);
+      long rightLong = right.getLong(rightOffset + x);
+      if (leftLong != rightLong) {
+        return Long.compareUnsigned(leftLong, rightLong);
+      }
+    }
+    return 0;
+  }
+
+  static int compare(byte[] left, byte[] right) {
+    for (int x = 0; x < HASH_LENGTH; x += 8) {
+      long leftLong = getLong(left, x);
+      long rightLong = getLong(right, x);
+      if (leftLong != rightLong) {
+        return Long.compareUnsigned(leftLong, rightLong);
+      }
+    }
+    return 0;
+  }
+
+  static long getLong(byte[] bytes, int offset) {
+    return ((bytes[offset] & 0xFFL) << 56)
+        | ((bytes[offset + 1] & 0xFFL) << 48)
+        | ((bytes[offset + 2] & 0xFFL) << 40)
+        | ((bytes[offset + 3] & 0xFFL) << 32)
+        | ((bytes[offset + 4] & 0xFFL) << 24)
+        | ((bytes[offset + 5] & 0xFFL) << 16)
+        | ((bytes[offset + 6] & 0xFFL) << 8)
+        | (bytes[offset + 7] & 0xFFL);
+  }
+
+  private static final class SliceIterator implements Iterator<ByteBuffer> {
+    private final ByteBuffer records;
+    private final int[] sortedSkips;
+    private final Iterator<ByteBuffer> extras;
+    private final int hashes;
+    private int index = 0;
+    private int skip = 0;
+
+    private SliceIterator(ByteBuffer records, int[] sortedSkips, Iterator<ByteBuffer> extras) {
+      this.records = records.asReadOnlyBuffer();
+      this.sortedSkips = sortedSkips;
+      this.extras = extras;
+      this.hashes = records.capacity() / HASH_LENGTH;
+      skipRecords();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return index < hashes || extras.hasNext();
+    }
+
+    @Override
+    public ByteBuffer next() {
+      if (index >= hashes) {
+        if (!extras.hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return extras.next();
+      }
+      ByteBuffer slice = records.duplicate();
+      slice.position(index * HASH_LENGTH);
+      slice.limit(index * HASH_LENGTH + HASH_LENGTH);
+      index++;
+      skipRecords();
+      return slice.slice();
+    }
+
+    private void skipRecords() {
+      while (skip < sortedSkips.length && sortedSkips[skip] <= index) {
+        if (sortedSkips[skip] == index) {
+          index++;
+        }
+        skip++;
+      }
+    }
+  }
+}
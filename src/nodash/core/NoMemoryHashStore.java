@@ -0,0 +1,186 @@
+/*
+ * Copyright 2014 David Horscroft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * NoMemoryHashStore answers hash lookups from an off-heap NoOffHeapHashSet and writes through to
+ * another NoHashStore, which is only kept for durability.
+ */
+
+package nodash.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public final class NoMemoryHashStore implements NoHashStore {
+  private final NoHashStore durable;
+  private final NoOffHeapHashSet hashes;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final Object writeLock = new Object();
+  private final AtomicLong count = new AtomicLong();
+
+  /**
+   * Loads every hash of the durable store into memory.
+   *
+   * @param durable the store that changes are written through to.
+   * @throws IOException - if the durable store cannot be read.
+   */
+  public NoMemoryHashStore(NoHashStore durable) throws IOException {
+    this.durable = durable;
+    byte[][] stored = durable.export();
+    this.hashes = new NoOffHeapHashSet(stored.length);
+    for (byte[] hash : stored) {
+      hashes.add(hash);
+    }
+    count.set(hashes.size());
+  }
+
+  @Override
+  public boolean contains(byte[] hash) {
+    lock.readLock().lock();
+    try {
+      return hashes.contains(hash);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean insert(byte[] hash) throws IOException {
+    /* Writers are serialized separately so lookups are not blocked while the durable store syncs. */
+    synchronized (writeLock) {
+      if (contains(hash)) {
+        return false;
+      }
+      durable.insert(hash);
+      lock.writeLock().lock();
+      try {
+        hashes.add(hash);
+      } finally {
+        lock.writeLock().unlock();
+      }
+      count.incrementAndGet();
+      return true;
+    }
+  }
+
+  @Override
+  public boolean remove(byte[] hash) throws IOException {
+    synchronized (writeLock) {
+      if (!contains(hash)) {
+        return false;
+      }
+      durable.remove(hash);
+      lock.writeLock().lock();
+      try {
+        hashes.remove(hash);
+      } finally {
+        lock.writeLock().unlock();
+      }
+      count.decrementAndGet();
+      return true;
+    }
+  }
+
+  @Override
+  public void replace(byte[] oldHash, byte[] newHash) throws IOException {
+    synchronized (writeLock) {
+      durable.replace(oldHash, newHash);
+      long change = 0;
+      lock.writeLock().lock();
+      try {
+        if (hashes.add(newHash)) {
+          change++;
+        }
+        if (hashes.remove(oldHash)) {
+          change--;
+        }
+      } finally {
+        lock.writeLock().unlock();
+      }
+      count.addAndGet(change);
+    }
+  }
+
+  @Override
+  public boolean insertReplacing(byte[] oldHash, byte[] newHash) throws IOException {
+    synchronized (writeLock) {
+      /* Written through even when already held, so the replacement is recorded. */
+      durable.insertReplacing(oldHash, newHash);
+      boolean added;
+      lock.writeLock().lock();
+      try {
+        added = hashes.add(newHash);
+      } finally {
+        lock.writeLock().unlock();
+      }
+      if (added) {
+        count.incrementAndGet();
+      }
+      return added;
+    }
+  }
+
+  @Override
+  public List<byte[][]> pendingReplacements() throws IOException {
+    return durable.pendingReplacements();
+  }
+
+  @Override
+  public void releaseReplacement(byte[] newHash) throws IOException {
+    durable.releaseReplacement(newHash);
+  }
+
+  @Override
+  public void sync() throws IOException {
+    durable.sync();
+  }
+
+  @Override
+  public long count() {
+    return count.get();
+  }
+
+  @Override
+  public byte[][] export() throws IOException {
+    return durable.export();
+  }
+
+  @Override
+  public Iterator<ByteBuffer> iterator() throws IOException {
+    return durable.iterator();
+  }
+
+  @Override
+  public long transferTo(WritableByteChannel target) throws IOException {
+    return durable.transferTo(target);
+  }
+
+  /**
+   * Returns the number of bytes of direct memory used to hold the hashes.
+   *
+   * @return the size of the in-memory table in bytes.
+   */
+  public long memoryUsage() {
+    lock.readLock().lock();
+    try {
+      return hashes.memoryUsage();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+}
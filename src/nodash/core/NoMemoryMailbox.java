@@ -0,0 +1,205 @@
+/*
+ * Copyright 2014 David Horscroft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * NoMemoryMailbox holds the NoByteSets waiting for each address until the addressed user logs in.
+ */
+
+package nodash.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import nodash.models.NoByteSet;
+
+/**
+ * A mailbox of byte sets per address which writers add to without a lock. Each mailbox is a linked
+ * stack which any number of threads push onto with a compare-and-set; draining swaps the whole
+ * stack out in one atomic step and reverses it, so byte sets come out in the order they went in.
+ *
+ * <p>
+ * A drained mailbox is closed before it is dropped from the map. A writer which finds it closed
+ * starts a new mailbox for the address instead, so no byte set is ever pushed onto a mailbox that
+ * has been let go.
+ *
+ * <p>
+ * A stack can only be taken whole, so draining part of a mailbox keeps the reversed remainder on
+ * the reader's side of the mailbox, and later drains take from it before swapping the stack out
+ * again. Drains of one address hold the mailbox's lock for this; writers never take it.
+ *
+ * @param <A> the type of the addresses.
+ */
+public final class NoMemoryMailbox<A> implements NoMailbox<A> {
+  private static final class Node {
+    private final NoByteSet byteSet;
+    private Node next;
+
+    private Node(NoByteSet byteSet) {
+      this.byteSet = byteSet;
+    }
+  }
+
+  private static final class Mailbox {
+    private final AtomicReference<Node> stack = new AtomicReference<Node>();
+    /* Swapped out by a partial drain and not yet returned, oldest first; guarded by this. */
+    private Node taken;
+  }
+
+  /* Marks a mailbox which has been drained and is being removed from the map. */
+  private static final Node CLOSED = new Node(null);
+
+  private final ConcurrentMap<A, Mailbox> mailboxes = new ConcurrentHashMap<A, Mailbox>();
+
+  @Override
+  public void add(A address, NoByteSet byteSet) {
+    Node node = new Node(byteSet);
+    push(address, node, node);
+  }
+
+  @Override
+  public void addAll(A address, List<NoByteSet> byteSets) {
+    if (byteSets.isEmpty()) {
+      return;
+    }
+    Node last = null;
+    Node first = null;
+    for (NoByteSet byteSet : byteSets) {
+      Node node = new Node(byteSet);
+      node.next = first;
+      first = node;
+      if (last == null) {
+        last = node;
+      }
+    }
+    push(address, first, last);
+  }
+
+  @Override
+  public List<NoByteSet> drain(A address) {
+    List<NoByteSet> result = new ArrayList<NoByteSet>();
+    Mailbox mailbox = mailboxes.get(address);
+    if (mailbox == null) {
+      return result;
+    }
+    synchronized (mailbox) {
+      Node head = mailbox.stack.getAndSet(CLOSED);
+      mailboxes.remove(address, mailbox);
+      if (head == CLOSED) {
+        return result;
+      }
+      for (Node node = mailbox.taken; node != null; node = node.next) {
+        result.add(node.byteSet);
+      }
+      mailbox.taken = null;
+      for (Node node = reverse(head); node != null; node = node.next) {
+        result.add(node.byteSet);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public List<NoByteSet> drain(A address, int max) {
+    checkMax(max);
+    List<NoByteSet> result = new ArrayList<NoByteSet>();
+    Mailbox mailbox = mailboxes.get(address);
+    if (mailbox == null) {
+      return result;
+    }
+    synchronized (mailbox) {
+      while (result.size() < max) {
+        if (mailbox.taken == null) {
+          Node head = mailbox.stack.get();
+          if (head == null || head == CLOSED) {
+            break;
+          }
+          if (!mailbox.stack.compareAndSet(head, null)) {
+            continue;
+          }
+          mailbox.taken = reverse(head);
+        }
+        result.add(mailbox.taken.byteSet);
+        mailbox.taken = mailbox.taken.next;
+      }
+      /* An emptied mailbox is closed, unless a writer has pushed onto it since. */
+      if (mailbox.taken == null && mailbox.stack.compareAndSet(null, CLOSED)) {
+        mailboxes.remove(address, mailbox);
+      }
+    }
+    return result;
+  }
+
+  /* Byte sets are kept until they are drained. */
+  @Override
+  public int sweep(long now) {
+    return 0;
+  }
+
+  /**
+   * Returns the number of addresses with a mailbox. Drained mailboxes are dropped, so this is
+   * roughly the number of addresses with byte sets waiting.
+   *
+   * @return the number of mailboxes.
+   */
+  @Override
+  public int addressCount() {
+    return mailboxes.size();
+  }
+
+  static void checkMax(int max) {
+    if (max < 1) {
+      throw new IllegalArgumentException("At least one byte set must be drained.");
+    }
+  }
+
+  /* Pushes the chain from first to last, where first is the newest, onto the address's stack. */
+  private void push(A address, Node first, Node last) {
+    if (address == null) {
+      throw new NullPointerException("Address cannot be null.");
+    }
+    while (true) {
+      Mailbox mailbox = mailboxes.get(address);
+      if (mailbox == null) {
+        Mailbox created = new Mailbox();
+        mailbox = mailboxes.putIfAbsent(address, created);
+        if (mailbox == null) {
+          mailbox = created;
+        }
+      }
+      Node head = mailbox.stack.get();
+      while (head != CLOSED) {
+        last.next = head;
+        if (mailbox.stack.compareAndSet(head, first)) {
+          return;
+        }
+        head = mailbox.stack.get();
+      }
+      /* Drained under us; wait for it to leave the map, then start a new mailbox. */
+      mailboxes.remove(address, mailbox);
+    }
+  }
+
+  /* Reverses a chain taken off a stack, so that it runs oldest first. */
+  private static Node reverse(Node head) {
+    Node reversed = null;
+    while (head != null) {
+      Node next = head.next;
+      head.next = reversed;
+      reversed = head;
+      head = next;
+    }
+    return reversed;
+  }
+}
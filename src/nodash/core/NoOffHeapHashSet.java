@@ -0,0 +1,348 @@
+/*
+ * Copyright 2014 David Horscroft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * NoOffHeapHashSet is an open-addressing set of 64 byte hashes stored in a direct buffer, with no
+ * per-entry objects.
+ */
+
+package nodash.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A linear-probing hash set of 64 byte digests held outside of the Java heap. Since SHA-512 digests
+ * are uniformly distributed their leading bytes are used as the slot index directly, and an
+ * all-zero slot marks an empty one (the all-zero digest itself is tracked separately). Removals
+ * use backward-shift deletion, so there are no tombstones.
+ *
+ * <p>
+ * The table doubles when it is 80% full and halves when it falls under 20%, so a growing set costs
+ * 80 to 160 bytes of direct memory per hash. A single table holds at most about 13 million hashes.
+ * A set created with values keeps a long alongside each hash, at 10 to 20 more bytes per hash.
+ * It is not thread-safe; callers must synchronize access.
+ */
+public final class NoOffHeapHashSet {
+  private static final int HASH_LENGTH = NoHashStore.HASH_LENGTH;
+  private static final int MINIMUM_CAPACITY = 16;
+  private static final double MAXIMUM_LOAD = 0.8;
+
+  private final int slotLength;
+  private final boolean hasValues;
+  private ByteBuffer slots;
+  private int mask;
+  private int size;
+  private boolean containsZero;
+  private long zeroValue;
+
+  public NoOffHeapHashSet() {
+    this(0);
+  }
+
+  public NoOffHeapHashSet(long expectedSize) {
+    this(expectedSize, false);
+  }
+
+  /**
+   * Creates a set sized to hold the expected number of hashes without growing.
+   *
+   * @param expectedSize the number of hashes expected to be added.
+   * @param withValues whether a long value is kept alongside each hash.
+   */
+  public NoOffHeapHashSet(long expectedSize, boolean withValues) {
+    this.hasValues = withValues;
+    this.slotLength = withValues ? HASH_LENGTH + 8 : HASH_LENGTH;
+    allocate(capacityFor(expectedSize));
+  }
+
+  public boolean contains(byte[] hash) {
+    if (hash.length != HASH_LENGTH) {
+      return false;
+    }
+    if (isZero(hash)) {
+      return containsZero;
+    }
+    return find(hash) >= 0;
+  }
+
+  public boolean add(byte[] hash) {
+    return insert(hash, 0, false);
+  }
+
+  /**
+   * Adds the hash if it is not present, and sets the value kept alongside it.
+   *
+   * @param hash the 64 byte hash.
+   * @param value the value to keep with the hash.
+   * @return true if the hash was added, false if it was already present.
+   */
+  public boolean put(byte[] hash, long value) {
+    checkValues();
+    return insert(hash, value, true);
+  }
+
+  /**
+   * Returns the value kept alongside the hash.
+   *
+   * @param hash the 64 byte hash.
+   * @param missing the value to return if the hash is not present.
+   * @return the value of the hash, or {@code missing} if it is not present.
+   */
+  public long getValue(byte[] hash, long missing) {
+    checkValues();
+    if (hash.length != HASH_LENGTH) {
+      return missing;
+    }
+    if (isZero(hash)) {
+      return containsZero ? zeroValue : missing;
+    }
+    int slot = find(hash);
+    return slot >= 0 ? slots.getLong(slot * slotLength + HASH_LENGTH) : missing;
+  }
+
+  private boolean insert(byte[] hash, long value, boolean setValue) {
+    checkLength(hash);
+    if (isZero(hash)) {
+      boolean added = !containsZero;
+      containsZero = true;
+      if (setValue) {
+        zeroValue = value;
+      }
+      return added;
+    }
+    int slot = find(hash);
+    if (slot >= 0) {
+      if (setValue) {
+        slots.putLong(slot * slotLength + HASH_LENGTH, value);
+      }
+      return false;
+    }
+    if (size + 1 > (mask + 1) * MAXIMUM_LOAD) {
+      resize((mask + 1) * 2L);
+      slot = find(hash);
+    }
+    slot = -slot - 1;
+    for (int x = 0; x < HASH_LENGTH; x += 8) {
+      slots.putLong(slot * slotLength + x, NoMappedHashStore.getLong(hash, x));
+    }
+    if (hasValues) {
+      slots.putLong(slot * slotLength + HASH_LENGTH, value);
+    }
+    size++;
+    return true;
+  }
+
+  public boolean remove(byte[] hash) {
+    checkLength(hash);
+    if (isZero(hash)) {
+      boolean removed = containsZero;
+      containsZero = false;
+      return removed;
+    }
+    int slot = find(hash);
+    if (slot < 0) {
+      return false;
+    }
+    clear(slot);
+    shrink();
+    return true;
+  }
+
+  /**
+   * Removes every hash whose value is below the given bound, in a single pass over the table.
+   *
+   * @param bound the smallest value which is kept.
+   * @return the number of hashes removed.
+   */
+  public int removeBelow(long bound) {
+    checkValues();
+    int removed = 0;
+    if (containsZero && zeroValue < bound) {
+      containsZero = false;
+      removed++;
+    }
+    int slot = 0;
+    while (slot <= mask) {
+      /*
+       * Clearing a slot only pulls later entries back into it, so it is checked again before
+       * moving on. Entries pulled round from the start of the table have been kept already.
+       */
+      if (!isEmpty(slot) && slots.getLong(slot * slotLength + HASH_LENGTH) < bound) {
+        clear(slot);
+        removed++;
+      } else {
+        slot++;
+      }
+    }
+    shrink();
+    return removed;
+  }
+
+  public long size() {
+    return containsZero ? size + 1 : size;
+  }
+
+  /**
+   * Returns the number of bytes of direct memory held by the table.
+   *
+   * @return the size of the table in bytes.
+   */
+  public long memoryUsage() {
+    return slots.capacity();
+  }
+
+  /**
+   * Finds the slot holding the hash.
+   *
+   * @return the slot index, or {@code -(first empty slot) - 1} if the hash is not present.
+   */
+  private int find(byte[] hash) {
+    long first = NoMappedHashStore.getLong(hash, 0);
+    int slot = index(first);
+    while (true) {
+      int offset = slot * slotLength;
+      long stored = slots.getLong(offset);
+      if (stored == first && matches(offset, hash)) {
+        return slot;
+      }
+      if (stored == 0 && isEmpty(slot)) {
+        return -slot - 1;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private boolean matches(int offset, byte[] hash) {
+    for (int x = 8; x < HASH_LENGTH; x += 8) {
+      if (slots.getLong(offset + x) != NoMappedHashStore.getLong(hash, x)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean isEmpty(int slot) {
+    int offset = slot * slotLength;
+    for (int x = 0; x < HASH_LENGTH; x += 8) {
+      if (slots.getLong(offset + x) != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /* Empties the slot by backward-shift deletion, leaving the table at its current capacity. */
+  private void clear(int slot) {
+    int hole = slot;
+    int next = hole;
+    while (true) {
+      next = (next + 1) & mask;
+      if (isEmpty(next)) {
+        break;
+      }
+      int home = home(next);
+      boolean staysPut = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+      if (!staysPut) {
+        copySlot(next, hole);
+        hole = next;
+      }
+    }
+    clearSlot(hole);
+    size--;
+  }
+
+  private void shrink() {
+    while (mask + 1 > MINIMUM_CAPACITY && size < (mask + 1) * MAXIMUM_LOAD / 4) {
+      resize((mask + 1) / 2);
+    }
+  }
+
+  private int home(int slot) {
+    return index(slots.getLong(slot * slotLength));
+  }
+
+  private int index(long first) {
+    return (int) (first ^ (first >>> 32)) & mask;
+  }
+
+  private void copySlot(int from, int to) {
+    for (int x = 0; x < slotLength; x += 8) {
+      slots.putLong(to * slotLength + x, slots.getLong(from * slotLength + x));
+    }
+  }
+
+  private void clearSlot(int slot) {
+    for (int x = 0; x < slotLength; x += 8) {
+      slots.putLong(slot * slotLength + x, 0);
+    }
+  }
+
+  private void resize(long capacity) {
+    ByteBuffer old = slots;
+    int oldCapacity = mask + 1;
+    allocate(capacity);
+    for (int slot = 0; slot < oldCapacity; slot++) {
+      int offset = slot * slotLength;
+      boolean empty = true;
+      for (int x = 0; x < HASH_LENGTH && empty; x += 8) {
+        empty = old.getLong(offset + x) == 0;
+      }
+      if (empty) {
+        continue;
+      }
+      int target = index(old.getLong(offset));
+      while (!isEmpty(target)) {
+        target = (target + 1) & mask;
+      }
+      for (int x = 0; x < slotLength; x += 8) {
+        slots.putLong(target * slotLength + x, old.getLong(offset + x));
+      }
+    }
+  }
+
+  private void allocate(long capacity) {
+    if (capacity * slotLength > Integer.MAX_VALUE) {
+      throw new IllegalStateException("Hash table cannot grow past " + (mask + 1) + " slots.");
+    }
+    slots = ByteBuffer.allocateDirect((int) (capacity * slotLength));
+    mask = (int) capacity - 1;
+  }
+
+  private static long capacityFor(long expectedSize) {
+    long capacity = MINIMUM_CAPACITY;
+    while (capacity * MAXIMUM_LOAD < expectedSize) {
+      capacity *= 2;
+    }
+    return capacity;
+  }
+
+  private static boolean isZero(byte[] hash) {
+    for (byte hashByte : hash) {
+      if (hashByte != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void checkValues() {
+    if (!hasValues) {
+      throw new IllegalStateException("This set does not keep values.");
+    }
+  }
+
+  private static void checkLength(byte[] hash) {
+    if (hash.length != HASH_LENGTH) {
+      throw new IllegalArgumentException("Hashes must be " + HASH_LENGTH + " bytes long.");
+    }
+  }
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright 2014 David Horscroft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * NoPassivatingAdapter wraps another NoAdapter and moves idle NoSessions out of memory into
+ * encrypted files, reloading them when they are next used.
+ */
+
+package nodash.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+
+import nodash.exceptions.NoAdapterException;
+import nodash.exceptions.NoDashFatalException;
+import nodash.exceptions.NoSessionExpiredException;
+import nodash.exceptions.NoUserAlreadyOnlineException;
+import nodash.exceptions.NoUserNotValidException;
+import nodash.models.NoByteSet;
+import nodash.models.NoFingerprint;
+import nodash.models.NoSession;
+
+/**
+ * A NoAdapter decorator which passivates sessions: once a session has gone unused for the idle
+ * time, it is serialized, encrypted with the server secret and written to a file, and the wrapped
+ * adapter lets go of it. The next call naming the session's cookie reads it back and hands it to
+ * the wrapped adapter again, so callers never see the difference.
+ *
+ * <p>
+ * A passivated session which expires is read back once more, so that the byte sets it took from
+ * the pool can be returned, as the wrapped adapter would do for a session it evicts. Every other
+ * call goes straight through to the wrapped adapter. Sessions do not outlive the process, so any
+ * files left in the directory are deleted when the adapter is created.
+ *
+ * <p>
+ * The idle time should be far longer than any single NoCore call, since a session is only
+ * marked as used when it is looked up. An adapter which sweeps in the background must be closed
+ * once it is no longer used, or the background thread keeps sweeping it.
+ */
+public class NoPassivatingAdapter implements NoAdapter, Closeable {
+  public static final long DEFAULT_IDLE_TIME = 1000 * 60 * 5;
+  public static final long SWEEP_INTERVAL = 1000;
+
+  private static final String SESSION_SUFFIX = ".session";
+
+  private static final ScheduledExecutorService PASSIVATOR =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "no-session-passivator");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  /* A session the adapter has seen; its fields are guarded by the entry's own lock. */
+  private static final class Tracked {
+    private final File file;
+    private final long expiry;
+    private long lastUsed;
+    private boolean passivated;
+
+    private Tracked(File file, long expiry, long lastUsed) {
+      this.file = file;
+      this.expiry = expiry;
+      this.lastUsed = lastUsed;
+    }
+  }
+
+  private final NoAdapter adapter;
+  private final File directory;
+  private final long idleTime;
+  private final ConcurrentMap<ByteBuffer, Tracked> tracked =
+      new ConcurrentHashMap<ByteBuffer, Tracked>();
+  private final ScheduledFuture<?> sweeper;
+
+  public NoPassivatingAdapter(NoAdapter adapter, File directory) {
+    this(adapter, directory, DEFAULT_IDLE_TIME, true);
+  }
+
+  /**
+   * Wraps the given adapter.
+   *
+   * @param adapter the adapter which holds live sessions and serves every other call.
+   * @param directory the directory passivated sessions are written to.
+   * @param idleTime the time in milliseconds a session must go unused before it is passivated.
+   * @param background true to passivate sessions from a background thread every
+   *        {@link #SWEEP_INTERVAL} milliseconds; false if the caller will call
+   *        {@link #sweep(long)} itself.
+   */
+  public NoPassivatingAdapter(NoAdapter adapter, File directory, long idleTime,
+      boolean background) {
+    if (idleTime < 1) {
+      throw new IllegalArgumentException("Idle time must be at least one millisecond.");
+    }
+    this.adapter = adapter;
+    this.directory = directory;
+    this.idleTime = idleTime;
+    try {
+      Files.createDirectories(directory.toPath());
+      File[] stale = directory.listFiles(new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+          return name.endsWith(SESSION_SUFFIX);
+        }
+      });
+      if (stale != null) {
+        for (File file : stale) {
+          Files.delete(file.toPath());
+        }
+      }
+    } catch (IOException e) {
+      throw new NoDashFatalException("Could not prepare the session directory.", e);
+    }
+
+    if (background) {
+      sweeper = PASSIVATOR.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            sweep(System.currentTimeMillis());
+          } catch (NoAdapterException e) {
+            /* Sessions which could not be moved are tried again on the next sweep. */
+          }
+        }
+      }, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+    } else {
+      sweeper = null;
+    }
+  }
+
+  /**
+   * Stops the background sweeps, if any. Sessions are still passivated by {@link #sweep(long)},
+   * and every other call keeps working.
+   */
+  @Override
+  public void close() {
+    if (sweeper != null) {
+      sweeper.cancel(false);
+    }
+  }
+
+  /**
+   * Passivates every session which has gone unused for the idle time, and drops passivated
+   * sessions which have expired, returning their byte sets to the pool.
+   *
+   * @param now the current time in milliseconds.
+   * @return the number of sessions passivated.
+   * @throws NoAdapterException - if a session could not be moved to or from its file.
+   */
+  public int sweep(long now) throws NoAdapterException {
+    int passivated = 0;
+    for (Map.Entry<ByteBuffer, Tracked> entry : tracked.entrySet()) {
+      ByteBuffer cookie = entry.getKey();
+      Tracked session = entry.getValue();
+      synchronized (session) {
+        if (session.expiry < now) {
+          if (tracked.remove(cookie, session) && session.passivated) {
+            expire(session);
+          }
+        } else if (!session.passivated && now - session.lastUsed >= idleTime) {
+          if (passivate(cookie, session)) {
+            passivated++;
+          } else {
+            tracked.remove(cookie, session);
+          }
+        }
+      }
+    }
+    return passivated;
+  }
+
+  /**
+   * Returns the number of sessions currently held on disk.
+   *
+   * @return the number of passivated sessions.
+   */
+  public int passivatedCount() {
+    int count = 0;
+    for (Tracked session : tracked.values()) {
+      synchronized (session) {
+        if (session.passivated) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public void addNoSession(NoSession session) throws NoAdapterException {
+    adapter.addNoSession(session);
+    File file = new File(directory, session.getUuid() + SESSION_SUFFIX);
+    tracked.put(ByteBuffer.wrap(session.getCookie()),
+        new Tracked(file, session.getExpiry(), System.currentTimeMillis()));
+  }
+
+  @Override
+  public boolean containsNoSession(byte[] encryptedUuid) throws NoAdapterException {
+    activate(encryptedUuid);
+    return adapter.containsNoSession(encryptedUuid);
+  }
+
+  @Override
+  public void shredNoSession(byte[] encryptedUuid) throws NoAdapterException {
+    Tracked session = tracked.remove(ByteBuffer.wrap(encryptedUuid));
+    if (session != null) {
+      synchronized (session) {
+        if (session.passivated) {
+          session.passivated = false;
+          delete(session.file);
+          return;
+        }
+      }
+    }
+    adapter.shredNoSession(encryptedUuid);
+  }
+
+  @Override
+  public NoSession getNoSession(byte[] encryptedUuid) throws NoAdapterException,
+      NoSessionExpiredException {
+    activate(encryptedUuid);
+    return adapter.getNoSession(encryptedUuid);
+  }
+
+  @Override
+  public NoSession resolveNoSession(byte[] encryptedUuid) throws NoAdapterException {
+    activate(encryptedUuid);
+    return adapter.resolveNoSession(encryptedUuid);
+  }
+
+  @Override
+  public void insertHash(byte[] hash) throws NoAdapterException {
+    adapter.insertHash(hash);
+  }
+
+  @Override
+  public void removeHash(byte[] hash) throws NoAdapterException {
+    adapter.removeHash(hash);
+  }
+
+  @Override
+  public void replaceHash(byte[] oldHash, byte[] newHash) throws NoAdapterException {
+    adapter.replaceHash(oldHash, newHash);
+  }
+
+  @Override
+  public void checkHash(byte[] hash) throws NoAdapterException, NoUserNotValidException {
+    adapter.checkHash(hash);
+  }
+
+  @Override
+  public byte[][] exportHashes() throws NoAdapterException {
+    return adapter.exportHashes();
+  }
+
+  @Override
+  public Iterator<ByteBuffer> iterateHashes() throws NoAdapterException {
+    return adapter.iterateHashes();
+  }
+
+  @Override
+  public long transferHashes(WritableByteChannel target) throws NoAdapterException {
+    return adapter.transferHashes(target);
+  }
+
+  @Override
+  public long hashCount() throws NoAdapterException {
+    return adapter.hashCount();
+  }
+
+  @Override
+  public void goOnline(byte[] hash) throws NoAdapterException, NoUserAlreadyOnlineException {
+    adapter.goOnline(hash);
+  }
+
+  @Override
+  public void goOnline(byte[] hash, long expiry) throws NoAdapterException,
+      NoUserAlreadyOnlineException {
+    adapter.goOnline(hash, expiry);
+  }
+
+  @Override
+  public boolean isOnline(byte[] hash) throws NoAdapterException {
+    return adapter.isOnline(hash);
+  }
+
+  @Override
+  public void goOffline(byte[] hash) throws NoAdapterException {
+    adapter.goOffline(hash);
+  }
+
+  @Override
+  public List<NoByteSet> pollNoByteSets(NoFingerprint address) throws NoAdapterException {
+    return adapter.pollNoByteSets(address);
+  }
+
+  @Override
+  public List<NoByteSet> pollNoByteSets(NoFingerprint address, int max)
+      throws NoAdapterException {
+    return adapter.pollNoByteSets(address, max);
+  }
+
+  @Override
+  public void addNoByteSet(NoByteSet byteSet, NoFingerprint address)
+      throws NoAdapterException {
+    adapter.addNoByteSet(byteSet, address);
+  }
+
+  @Override
+  public void addNoByteSets(List<NoByteSet> byteSets, NoFingerprint address)
+      throws NoAdapterException {
+    adapter.addNoByteSets(byteSets, address);
+  }
+
+  /* Marks the session as used, first moving it back into the wrapped adapter if it is on disk. */
+  private void activate(byte[] cookie) throws NoAdapterException {
+    Tracked session = tracked.get(ByteBuffer.wrap(cookie));
+    if (session == null) {
+      return;
+    }
+    synchronized (session) {
+      if (session.passivated) {
+        adapter.addNoSession(read(session.file));
+        session.passivated = false;
+        delete(session.file);
+      }
+      session.lastUsed = System.currentTimeMillis();
+    }
+  }
+
+  private boolean passivate(ByteBuffer cookie, Tracked session) throws NoAdapterException {
+    byte[] cookieBytes = new byte[cookie.remaining()];
+    cookie.duplicate().get(cookieBytes);
+    NoSession live = adapter.resolveNoSession(cookieBytes);
+    if (live == null) {
+      /* Evicted or shredded by the wrapped adapter itself. */
+      return false;
+    }
+    write(session.file, live);
+    adapter.shredNoSession(cookieBytes);
+    session.passivated = true;
+    return true;
+  }
+
+  private void expire(Tracked session) throws NoAdapterException {
+    NoSession expired = read(session.file);
+    session.passivated = false;
+    delete(session.file);
+    expired.close();
+    List<NoByteSet> incoming = expired.getIncomingSafe();
+    if (incoming != null && !incoming.isEmpty()) {
+      adapter.addNoByteSets(incoming, expired.getNoUserSafe().getFingerprint());
+    }
+  }
+
+  private static void write(File file, NoSession session) throws NoAdapterException {
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      ObjectOutputStream oos = new ObjectOutputStream(baos);
+      oos.writeObject(session);
+      oos.close();
+      Files.write(file.toPath(), NoUtil.encrypt(baos.toByteArray()));
+    } catch (IOException e) {
+      throw new NoAdapterException("Could not passivate session.", e);
+    }
+  }
+
+  private static NoSession read(File file) throws NoAdapterException {
+    try {
+      byte[] decrypted = NoUtil.decrypt(Files.readAllBytes(file.toPath()));
+      ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(decrypted));
+      NoSession session = (NoSession) ois.readObject();
+      ois.close();
+      return session;
+    } catch (IOException e) {
+      throw new NoAdapterException("Could not reload passivated session.", e);
+    } catch (ClassNotFoundException e) {
+      throw new NoDashFatalException("Passivated session is of an unknown class.", e);
+    } catch (IllegalBlockSizeException | BadPaddingException e) {
+      throw new NoDashFatalException("Could not decrypt passivated session.", e);
+    }
+  }
+
+  private static void delete(File file) throws NoAdapterException {
+    try {
+      Files.deleteIfExists(file.toPath());
+    } catch (IOException e) {
+      throw new NoAdapterException("Could not delete passivated session.", e);
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014 David Horscroft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * NoPresenceSet holds the hashes of the users who are currently online, keyed by the raw digest.
+ */
+
+package nodash.core;
+
+/**
+ * A concurrent set of 64 byte digests, split into independently locked segments of
+ * NoOffHeapHashSet. The segment is picked from digest bytes which the tables themselves do not use
+ * for their slot index, so both stay evenly spread. Lookups and changes work on the caller's array
+ * and allocate nothing unless a segment has to grow or shrink.
+ *
+ * <p>
+ * Every hash is held on a lease which lapses at an expiry time. A lapsed lease no longer counts as
+ * present and may be taken over straight away; {@link #sweep(long)} reclaims the memory of lapsed
+ * leases, so the set stays as large as the number of live leases. The expiry is the value kept with
+ * the hash, so taking a lease allocates nothing beyond the segment's own table, and a sweep walks
+ * each segment's table in turn under that segment's lock alone.
+ */
+public final class NoPresenceSet {
+  public static final int DEFAULT_SEGMENTS = 64;
+
+  private final NoOffHeapHashSet[] segments;
+  private final int shift;
+
+  public NoPresenceSet() {
+    this(DEFAULT_SEGMENTS);
+  }
+
+  /**
+   * Creates an empty set.
+   *
+   * @param segmentCount the number of independently locked segments; must be a power of two.
+   */
+  public NoPresenceSet(int segmentCount) {
+    if (segmentCount < 1 || Integer.bitCount(segmentCount) != 1) {
+      throw new IllegalArgumentException("Segment count must be a power of two.");
+    }
+    this.segments = new NoOffHeapHashSet[segmentCount];
+    for (int x = 0; x < segmentCount; x++) {
+      segments[x] = new NoOffHeapHashSet(0, true);
+    }
+    this.shift = 64 - Integer.numberOfTrailingZeros(segmentCount);
+  }
+
+  /**
+   * Adds the hash on a lease which never lapses, unless it is already present.
+   *
+   * @param hash the 64 byte digest.
+   * @return true if the hash was added, false if it was already present.
+   */
+  public boolean putIfAbsent(byte[] hash) {
+    return putIfAbsent(hash, Long.MAX_VALUE);
+  }
+
+  /**
+   * Adds the hash on a lease lapsing at the given time, unless it is present on a live lease, as a
+   * single atomic step. A lapsed lease is taken over.
+   *
+   * @param hash the 64 byte digest.
+   * @param expiry the time in milliseconds after which the lease lapses.
+   * @return true if the hash was added, false if it was already present.
+   */
+  public boolean putIfAbsent(byte[] hash, long expiry) {
+    NoOffHeapHashSet segment = segmentFor(hash);
+    long now = System.currentTimeMillis();
+    synchronized (segment) {
+      if (segment.getValue(hash, Long.MIN_VALUE) >= now) {
+        return false;
+      }
+      segment.put(hash, expiry);
+    }
+    return true;
+  }
+
+  /**
+   * Checks whether the hash is present on a live lease.
+   *
+   * @param hash the 64 byte digest.
+   * @return true if the hash is present and its lease has not lapsed.
+   */
+  public boolean contains(byte[] hash) {
+    if (hash.length != NoHashStore.HASH_LENGTH) {
+      return false;
+    }
+    NoOffHeapHashSet segment = segmentFor(hash);
+    long now = System.currentTimeMillis();
+    synchronized (segment) {
+      return segment.getValue(hash, Long.MIN_VALUE) >= now;
+    }
+  }
+
+  public boolean remove(byte[] hash) {
+    NoOffHeapHashSet segment = segmentFor(hash);
+    synchronized (segment) {
+      return segment.remove(hash);
+    }
+  }
+
+  /**
+   * Removes every hash whose lease lapsed before the given time.
+   *
+   * @param now the current time in milliseconds.
+   * @return the number of hashes removed.
+   */
+  public int sweep(long now) {
+    int removed = 0;
+    for (NoOffHeapHashSet segment : segments) {
+      synchronized (segment) {
+        removed += segment.removeBelow(now);
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * Returns the number of hashes present, including those on lapsed leases not yet swept. Segments
+   * are counted one after the other, so the result is only exact while the set is not being
+   * changed.
+   *
+   * @return the number of hashes present.
+   */
+  public long size() {
+    long size = 0;
+    for (NoOffHeapHashSet segment : segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+
+  private NoOffHeapHashSet segmentFor(byte[] hash) {
+    if (hash.length != NoHashStore.HASH_LENGTH) {
+      throw new IllegalArgumentException("Hashes must be " + NoHashStore.HASH_LENGTH
+          + " bytes long.");
+    }
+    if (shift == 64) {
+      return segments[0];
+    }
+    return segments[(int) (NoMappedHashStore.getLong(hash, 8) >>> shift)];
+  }
+}
@@ -0,0 +1,655 @@
+/*
+ * Copyright 2014 David Horscroft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * NoSegmentMailbox keeps the NoByteSets waiting for each address in memory-mapped segment files, so
+ * that they survive a restart and do not sit on the heap.
+ */
+
+package nodash.core;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import nodash.models.NoByteSet;
+import nodash.models.NoFingerprint;
+
+/**
+ * A mailbox which appends byte sets to a log of memory-mapped segment files and keeps only an
+ * index of their offsets on the heap. Draining an address reads its byte sets back out of the
+ * mapping and marks their records dead in place.
+ *
+ * <p>
+ * Once the segment being written to is full a new one is started, and the full one is sealed.
+ * A sealed segment with no live records left is deleted; one whose live records have fallen below
+ * the compaction ratio of its length is compacted in the background, by copying them to the end of
+ * the log and deleting the segment.
+ *
+ * <p>
+ * Every record carries a sequence number, which orders the byte sets of an address however often
+ * they have been moved. Records reach the file as soon as they are written to the mapping, so they
+ * survive the process; {@link #sync()} must be called for them to survive the machine.
+ *
+ * <p>
+ * The retention's budget counts the byte sets on disk rather than on the heap. Byte sets are
+ * ordered by the time they first arrived, which every record keeps, so moving a record or draining
+ * and adding back its byte set changes neither its age nor its place among the byte sets of its
+ * address.
+ */
+public final class NoSegmentMailbox implements NoMailbox<NoFingerprint> {
+  public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+  public static final double DEFAULT_COMPACTION_RATIO = 0.5;
+
+  private static final String SEGMENT_SUFFIX = ".segment";
+
+  /* Segment files are zero-filled, so an empty status marks the end of the written records. */
+  private static final byte RECORD_EMPTY = 0;
+  private static final byte RECORD_LIVE = 1;
+  private static final byte RECORD_DEAD = 2;
+
+  /* Status, sequence number, time written, address, key length and data length. */
+  private static final int HEADER_LENGTH = 1 + 8 + 8 + NoFingerprint.LENGTH + 4 + 4;
+
+  /* One low-priority thread compacts every segment mailbox, however many are open. */
+  private static final ExecutorService COMPACTOR =
+      Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "no-mailbox-compactor");
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      });
+
+  private static final class Segment {
+    private final long id;
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final Set<Entry> live = new LinkedHashSet<Entry>();
+    private int position;
+    private long liveBytes;
+
+    private Segment(long id, File file, MappedByteBuffer buffer) {
+      this.id = id;
+      this.file = file;
+      this.buffer = buffer;
+    }
+  }
+
+  /* Where one live record is; moved by compaction, so it is only touched under the mailbox lock. */
+  private static final class Entry {
+    private final NoFingerprint address;
+    private final long sequence;
+    private final long written;
+    private final int length;
+    private final long size;
+    private Segment segment;
+    private int offset;
+
+    private Entry(NoFingerprint address, long sequence, long written, int length, long size,
+        Segment segment, int offset) {
+      this.address = address;
+      this.sequence = sequence;
+      this.written = written;
+      this.length = length;
+      this.size = size;
+      this.segment = segment;
+      this.offset = offset;
+    }
+  }
+
+  /* Byte sets which arrived in the same millisecond keep the order they were added in. */
+  private static final Comparator<Entry> AGE_ORDER = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry o1, Entry o2) {
+      int order = Long.compare(o1.written, o2.written);
+      return order != 0 ? order : Long.compare(o1.sequence, o2.sequence);
+    }
+  };
+
+  /* The live records of one address, oldest first. */
+  private static final class Box {
+    private final NavigableSet<Entry> entries = new TreeSet<Entry>(AGE_ORDER);
+    private long bytes;
+  }
+
+  private final File directory;
+  private final int segmentSize;
+  private final double compactionRatio;
+  private final NoMailboxRetention retention;
+  private final AtomicBoolean compactionScheduled = new AtomicBoolean(false);
+
+  /* Everything below is guarded by the mailbox's own lock. */
+  private final Map<NoFingerprint, Box> index = new HashMap<NoFingerprint, Box>();
+  private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+  private final NavigableSet<Entry> ages = new TreeSet<Entry>(AGE_ORDER);
+  private Segment active;
+  private long nextSequence = 0;
+  private long totalBytes = 0;
+
+  public NoSegmentMailbox(File directory) throws IOException {
+    this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_COMPACTION_RATIO);
+  }
+
+  public NoSegmentMailbox(File directory, int segmentSize, double compactionRatio)
+      throws IOException {
+    this(directory, segmentSize, compactionRatio, NoMailboxRetention.unlimited());
+  }
+
+  /**
+   * Opens (or creates) the segment log in the given directory, reading back every live record.
+   *
+   * @param directory the directory the segment files are kept in.
+   * @param segmentSize the length in bytes of a segment file; larger byte sets get a segment of
+   *        their own.
+   * @param compactionRatio the fraction of a sealed segment which must still be live for it to be
+   *        left alone; zero only deletes segments once they are empty.
+   * @param retention the limits byte sets are kept under, which are also applied to the records
+   *        read back.
+   * @throws IOException - if the directory cannot be created or a segment cannot be read.
+   */
+  public NoSegmentMailbox(File directory, int segmentSize, double compactionRatio,
+      NoMailboxRetention retention) throws IOException {
+    if (segmentSize < HEADER_LENGTH) {
+      throw new IllegalArgumentException("Segment size must be at least " + HEADER_LENGTH
+          + " bytes.");
+    }
+    if (compactionRatio < 0 || compactionRatio > 1) {
+      throw new IllegalArgumentException("Compaction ratio must be between zero and one.");
+    }
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.compactionRatio = compactionRatio;
+    this.retention = retention;
+    Files.createDirectories(directory.toPath());
+    recover();
+  }
+
+  @Override
+  public synchronized void add(NoFingerprint address, NoByteSet byteSet) throws IOException {
+    checkAddress(address);
+    enforce(append(address, byteSet, System.currentTimeMillis()));
+  }
+
+  @Override
+  public synchronized void addAll(NoFingerprint address, List<NoByteSet> byteSets)
+      throws IOException {
+    checkAddress(address);
+    if (byteSets.isEmpty()) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    Box box = null;
+    for (NoByteSet byteSet : byteSets) {
+      box = append(address, byteSet, now);
+    }
+    enforce(box);
+  }
+
+  @Override
+  public List<NoByteSet> drain(NoFingerprint address) {
+    List<NoByteSet> result = new ArrayList<NoByteSet>();
+    boolean compactionDue = false;
+    synchronized (this) {
+      Box box = index.remove(address);
+      if (box == null) {
+        return result;
+      }
+      long now = System.currentTimeMillis();
+      for (Entry entry : box.entries) {
+        ages.remove(entry);
+        if (retention.isExpired(entry.written, now)) {
+          retention.countExpired();
+        } else {
+          result.add(read(entry));
+        }
+        totalBytes -= entry.size;
+        compactionDue |= kill(entry);
+      }
+    }
+    if (compactionDue) {
+      scheduleCompaction();
+    }
+    return result;
+  }
+
+  @Override
+  public List<NoByteSet> drain(NoFingerprint address, int max) {
+    NoMemoryMailbox.checkMax(max);
+    List<NoByteSet> result = new ArrayList<NoByteSet>();
+    boolean compactionDue = false;
+    synchronized (this) {
+      Box box = index.get(address);
+      if (box == null) {
+        return result;
+      }
+      long now = System.currentTimeMillis();
+      while (result.size() < max && !box.entries.isEmpty()) {
+        Entry entry = box.entries.pollFirst();
+        ages.remove(entry);
+        box.bytes -= entry.size;
+        if (retention.isExpired(entry.written, now)) {
+          retention.countExpired();
+        } else {
+          result.add(read(entry));
+        }
+        totalBytes -= entry.size;
+        compactionDue |= kill(entry);
+      }
+      if (box.entries.isEmpty()) {
+        index.remove(address);
+      }
+    }
+    if (compactionDue) {
+      scheduleCompaction();
+    }
+    return result;
+  }
+
+  @Override
+  public synchronized int sweep(long now) {
+    int expired = 0;
+    Entry oldest = oldest();
+    while (oldest != null && retention.isExpired(oldest.written, now)) {
+      discard(oldest);
+      retention.countExpired();
+      expired++;
+      oldest = oldest();
+    }
+    return expired;
+  }
+
+  @Override
+  public synchronized int addressCount() {
+    return index.size();
+  }
+
+  public NoMailboxRetention getRetention() {
+    return retention;
+  }
+
+  /**
+   * Returns the bytes of every byte set held, as counted against the budget.
+   *
+   * @return the total size of the byte sets held.
+   */
+  public synchronized long totalBytes() {
+    return totalBytes;
+  }
+
+  /**
+   * Returns the number of segment files, including the one being written to.
+   *
+   * @return the number of segments.
+   */
+  public synchronized int segmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * Forces every record written so far out to the disk.
+   */
+  public synchronized void sync() {
+    for (Segment segment : segments.values()) {
+      segment.buffer.force();
+    }
+  }
+
+  /**
+   * Compacts every sealed segment below the compaction ratio on the calling thread. This normally
+   * happens in the background once a drain leaves a segment below the ratio.
+   *
+   * @throws IOException - if a new segment cannot be created or an old one deleted.
+   */
+  public void compact() throws IOException {
+    List<Long> candidates;
+    synchronized (this) {
+      candidates = new ArrayList<Long>(segments.keySet());
+    }
+    /* One segment at a time, so writers and drains wait on at most one segment's copy. */
+    for (Long id : candidates) {
+      synchronized (this) {
+        Segment segment = segments.get(id);
+        if (segment == null || segment == active || !isSparse(segment)) {
+          continue;
+        }
+        List<Entry> moving = new ArrayList<Entry>(segment.live);
+        Set<Segment> written = new LinkedHashSet<Segment>();
+        for (Entry entry : moving) {
+          move(entry);
+          written.add(entry.segment);
+        }
+        /*
+         * The copies are made durable first, so a crash leaves a record twice but never lost. They
+         * may have filled more than one segment, as a full active segment is sealed mid-copy.
+         */
+        for (Segment target : written) {
+          target.buffer.force();
+        }
+        delete(segment);
+      }
+    }
+  }
+
+  private Box append(NoFingerprint address, NoByteSet byteSet, long now) throws IOException {
+    int keyLength = byteSet.key == null ? -1 : byteSet.key.length;
+    int dataLength = byteSet.data == null ? -1 : byteSet.data.length;
+    int length = HEADER_LENGTH + Math.max(keyLength, 0) + Math.max(dataLength, 0);
+    long written = NoMailboxRetention.arrivalOf(byteSet, now);
+    Segment segment = reserve(length);
+    int offset = segment.position;
+
+    ByteBuffer record = segment.buffer.duplicate();
+    record.position(offset + 1);
+    record.putLong(nextSequence);
+    record.putLong(written);
+    record.put(address.getBytes());
+    record.putInt(keyLength);
+    record.putInt(dataLength);
+    if (byteSet.key != null) {
+      record.put(byteSet.key);
+    }
+    if (byteSet.data != null) {
+      record.put(byteSet.data);
+    }
+    /* The status goes in last, so a record cut short by a crash is never read back as live. */
+    segment.buffer.put(offset, RECORD_LIVE);
+
+    Entry entry = new Entry(address, nextSequence++, written, length,
+        NoMailboxRetention.sizeOf(byteSet), segment, offset);
+    track(entry);
+    return file(entry);
+  }
+
+  /* Adds a live record to its address's box. */
+  private Box file(Entry entry) {
+    Box box = index.get(entry.address);
+    if (box == null) {
+      box = new Box();
+      index.put(entry.address, box);
+    }
+    box.entries.add(entry);
+    ages.add(entry);
+    box.bytes += entry.size;
+    totalBytes += entry.size;
+    return box;
+  }
+
+  /* Evicts the oldest byte sets of the address, then of the mailbox, until both are in limits. */
+  private void enforce(Box box) {
+    while (!box.entries.isEmpty()
+        && retention.isAddressOver(box.entries.size(), box.bytes)) {
+      discard(box.entries.first());
+      retention.countEvictedForAddress();
+    }
+    while (retention.isBudgetOver(totalBytes)) {
+      discard(oldest());
+      retention.countEvictedForBudget();
+    }
+  }
+
+  /* Returns the live record which arrived first, or null if there is none. */
+  private Entry oldest() {
+    return ages.isEmpty() ? null : ages.first();
+  }
+
+  /* Drops a live record which is not being drained, and schedules a compaction if one is due. */
+  private void discard(Entry entry) {
+    Box box = index.get(entry.address);
+    box.entries.remove(entry);
+    ages.remove(entry);
+    box.bytes -= entry.size;
+    if (box.entries.isEmpty()) {
+      index.remove(entry.address);
+    }
+    totalBytes -= entry.size;
+    if (kill(entry)) {
+      scheduleCompaction();
+    }
+  }
+
+  /* Copies a live record to the end of the log, keeping its sequence number. */
+  private void move(Entry entry) throws IOException {
+    Segment segment = reserve(entry.length);
+    int offset = segment.position;
+    ByteBuffer source = entry.segment.buffer.duplicate();
+    source.limit(entry.offset + entry.length);
+    source.position(entry.offset + 1);
+    ByteBuffer target = segment.buffer.duplicate();
+    target.position(offset + 1);
+    target.put(source);
+    segment.buffer.put(offset, RECORD_LIVE);
+
+    entry.segment.live.remove(entry);
+    entry.segment.liveBytes -= entry.length;
+    entry.segment = segment;
+    entry.offset = offset;
+    track(entry);
+  }
+
+  /* Returns the active segment with room for the given length, starting a new one if needed. */
+  private Segment reserve(int length) throws IOException {
+    if (active == null || active.buffer.capacity() - active.position < length) {
+      long id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+      Segment sealed = active;
+      active = createSegment(id, Math.max(segmentSize, length));
+      if (sealed != null && sealed.live.isEmpty()) {
+        delete(sealed);
+      }
+    }
+    return active;
+  }
+
+  private void track(Entry entry) {
+    entry.segment.live.add(entry);
+    entry.segment.liveBytes += entry.length;
+    entry.segment.position = Math.max(entry.segment.position, entry.offset + entry.length);
+  }
+
+  /* Marks a drained record dead, and says whether its segment is now due a compaction. */
+  private boolean kill(Entry entry) {
+    Segment segment = entry.segment;
+    segment.buffer.put(entry.offset, RECORD_DEAD);
+    segment.live.remove(entry);
+    segment.liveBytes -= entry.length;
+    if (segment == active) {
+      return false;
+    }
+    if (segment.live.isEmpty()) {
+      try {
+        delete(segment);
+      } catch (IOException e) {
+        /* The file holds no live records, so it is read back as empty and deleted again. */
+      }
+      return false;
+    }
+    return isSparse(segment);
+  }
+
+  private boolean isSparse(Segment segment) {
+    return segment.liveBytes < segment.position * compactionRatio;
+  }
+
+  private static NoByteSet read(Entry entry) {
+    ByteBuffer record = entry.segment.buffer.duplicate();
+    record.position(entry.offset + HEADER_LENGTH - 8);
+    int keyLength = record.getInt();
+    int dataLength = record.getInt();
+    byte[] key = null;
+    if (keyLength >= 0) {
+      key = new byte[keyLength];
+      record.get(key);
+    }
+    byte[] data = null;
+    if (dataLength >= 0) {
+      data = new byte[dataLength];
+      record.get(data);
+    }
+    NoByteSet byteSet = new NoByteSet(key, data);
+    byteSet.pooled = entry.written;
+    return byteSet;
+  }
+
+  private void delete(Segment segment) throws IOException {
+    segments.remove(segment.id);
+    /* The mapping is released by the collector; the file goes now. */
+    Files.deleteIfExists(segment.file.toPath());
+  }
+
+  private Segment createSegment(long id, int length) throws IOException {
+    File file = new File(directory, String.format("%016x", id) + SEGMENT_SUFFIX);
+    Segment segment = new Segment(id, file, map(file, length));
+    segments.put(id, segment);
+    return segment;
+  }
+
+  private static MappedByteBuffer map(File file, long length) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+    }
+  }
+
+  /*
+   * Reads every segment back in order of id. A crash during compaction can leave a record both in
+   * its old segment and at the end of the log; the later copy is marked dead.
+   */
+  private void recover() throws IOException {
+    File[] files = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    if (files == null) {
+      throw new IOException("Could not list mailbox directory " + directory + ".");
+    }
+    Arrays.sort(files);
+    Set<Long> seen = new HashSet<Long>();
+    for (File file : files) {
+      String name = file.getName();
+      long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()), 16);
+      long length = file.length();
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException("Segment " + file + " is too large to map.");
+      }
+      Segment segment = new Segment(id, file, map(file, length));
+      segments.put(id, segment);
+      scan(segment, seen);
+    }
+    if (!segments.isEmpty()) {
+      active = segments.lastEntry().getValue();
+    }
+    List<Segment> sealed = new ArrayList<Segment>(segments.values());
+    sealed.remove(active);
+    boolean compactionDue = false;
+    for (Segment segment : sealed) {
+      if (segment.live.isEmpty()) {
+        delete(segment);
+      } else {
+        compactionDue |= isSparse(segment);
+      }
+    }
+    if (compactionDue) {
+      scheduleCompaction();
+    }
+
+    /* The limits may have been lowered, or the byte sets aged, since the log was written. */
+    sweep(System.currentTimeMillis());
+    for (Box box : new ArrayList<Box>(index.values())) {
+      enforce(box);
+    }
+  }
+
+  private void scan(Segment segment, Set<Long> seen) {
+    ByteBuffer records = segment.buffer.duplicate();
+    int offset = 0;
+    while (records.capacity() - offset >= HEADER_LENGTH) {
+      byte status = records.get(offset);
+      if (status == RECORD_EMPTY) {
+        break;
+      }
+      records.position(offset + 1);
+      long sequence = records.getLong();
+      long written = records.getLong();
+      byte[] address = new byte[NoFingerprint.LENGTH];
+      records.get(address);
+      int keyLength = records.getInt();
+      int dataLength = records.getInt();
+      long length = (long) HEADER_LENGTH + Math.max(keyLength, 0) + Math.max(dataLength, 0);
+      if (offset + length > records.capacity()) {
+        /* Torn by a crash; nothing was written after it. */
+        break;
+      }
+      segment.position = offset + (int) length;
+      if (status == RECORD_LIVE) {
+        if (seen.add(sequence)) {
+          long size = Math.max(keyLength, 0) + Math.max(dataLength, 0);
+          Entry entry = new Entry(NoFingerprint.fromBytes(address), sequence, written,
+              (int) length, size, segment, offset);
+          track(entry);
+          file(entry);
+        } else {
+          segment.buffer.put(offset, RECORD_DEAD);
+        }
+      }
+      nextSequence = Math.max(nextSequence, sequence + 1);
+      offset = segment.position;
+    }
+  }
+
+  private static void checkAddress(NoFingerprint address) {
+    if (address == null) {
+      throw new NullPointerException("Address cannot be null.");
+    }
+  }
+
+  private void scheduleCompaction() {
+    if (!compactionScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    COMPACTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        compactionScheduled.set(false);
+        try {
+          compact();
+        } catch (IOException e) {
+          /* The sparse segments are kept and retried by the next compaction. */
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 David Horscroft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * NoSessionStore holds the live NoSessions of the NoDefaultAdapter and evicts them once they
+ * expire.
+ */
+
+package nodash.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import nodash.models.NoSession;
+
+/**
+ * A concurrent map of sessions keyed by their raw session ID, with every session scheduled in a
+ * NoTimerWheel at its expiry. {@link #sweep(long)} evicts the sessions which have expired, so the
+ * store only holds sessions which are still live. It is safe to use from multiple threads.
+ */
+public final class NoSessionStore {
+  public static final long SWEEP_INTERVAL = 1000;
+
+  private final ConcurrentMap<ByteBuffer, NoSession> sessions =
+      new ConcurrentHashMap<ByteBuffer, NoSession>();
+  private final NoTimerWheel<ByteBuffer> expiries =
+      new NoTimerWheel<ByteBuffer>(SWEEP_INTERVAL, System.currentTimeMillis());
+
+  /**
+   * Adds the session, scheduling it to be evicted at its expiry.
+   *
+   * @param id the raw session ID.
+   * @param session the session to add.
+   * @return true if the session was added, false if a session with the ID already exists.
+   */
+  public boolean add(ByteBuffer id, NoSession session) {
+    if (sessions.putIfAbsent(id, session) != null) {
+      return false;
+    }
+    expiries.schedule(id, session.getExpiry());
+    return true;
+  }
+
+  /**
+   * Returns the session with the given ID. A session which has expired but was not yet swept is
+   * still returned; {@link NoSession#check()} reports it as expired.
+   *
+   * @param id the raw session ID.
+   * @return the session, or null if there is no such session.
+   */
+  public NoSession get(ByteBuffer id) {
+    return sessions.get(id);
+  }
+
+  /**
+   * Removes the session with the given ID.
+   *
+   * @param id the raw session ID.
+   * @return the removed session, or null if there was no such session.
+   */
+  public NoSession remove(ByteBuffer id) {
+    return sessions.remove(id);
+  }
+
+  /**
+   * Evicts every session which expired before the given time. Each session is either evicted here
+   * or removed by {@link #remove(ByteBuffer)}, never both.
+   *
+   * @param now the current time in milliseconds.
+   * @return the evicted sessions.
+   */
+  public List<NoSession> sweep(long now) {
+    List<NoSession> evicted = new ArrayList<NoSession>();
+    for (ByteBuffer id : expiries.advance(now)) {
+      NoSession session = sessions.get(id);
+      if (session == null) {
+        /* Removed before it expired. */
+        continue;
+      }
+      if (session.getExpiry() >= now) {
+        expiries.schedule(id, session.getExpiry());
+      } else if (sessions.remove(id, session)) {
+        evicted.add(session);
+      }
+    }
+    return evicted;
+  }
+
+  public int size() {
+    return sessions.size();
+  }
+}
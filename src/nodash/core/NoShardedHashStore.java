@@ -0,0 +1,257 @@
+/*
+ * Copyright 2014 David Horscroft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * NoShardedHashStore splits the user hashes over several independent NoHashStores by the leading
+ * bits of the digest, so that operations on different shards never wait on each other.
+ */
+
+package nodash.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class NoShardedHashStore implements NoHashStore {
+  public static final int MAXIMUM_SHARDS = 256;
+
+  private final NoHashStore[] shards;
+  private final Object[] stripes;
+  private final int shift;
+  private final AtomicLong count;
+
+  /**
+   * Creates a store over the given shards. Shard {@code i} holds the hashes whose leading bits,
+   * read as a number, equal {@code i}.
+   *
+   * <p>
+   * A replace which moves a hash between shards stores the new hash with
+   * {@link NoHashStore#insertReplacing(byte[], byte[])}, so shards which keep the replacement
+   * durable until it is released make the replace atomic. Replacements left unreleased by a crash
+   * are finished here, before the store is used.
+   *
+   * @param shards the shard stores; the number of shards must be a power of two no larger than
+   *        256.
+   * @throws IOException - if the shards cannot be counted, or an unfinished replace cannot be
+   *         finished.
+   */
+  public NoShardedHashStore(NoHashStore[] shards) throws IOException {
+    int bits = Integer.numberOfTrailingZeros(shards.length);
+    if (shards.length > MAXIMUM_SHARDS || Integer.bitCount(shards.length) != 1) {
+      throw new IllegalArgumentException("Shard count must be a power of two up to "
+          + MAXIMUM_SHARDS + ".");
+    }
+    this.shards = shards.clone();
+    this.stripes = new Object[shards.length];
+    for (int x = 0; x < stripes.length; x++) {
+      stripes[x] = new Object();
+    }
+    this.shift = 8 - bits;
+
+    for (NoHashStore shard : this.shards) {
+      for (byte[][] replacement : shard.pendingReplacements()) {
+        NoHashStore oldShard = this.shards[shardOf(replacement[0])];
+        if (oldShard != shard && oldShard.remove(replacement[0])) {
+          oldShard.sync();
+        }
+        shard.releaseReplacement(replacement[1]);
+      }
+    }
+
+    long initialCount = 0;
+    for (NoHashStore shard : this.shards) {
+      initialCount += shard.count();
+    }
+    this.count = new AtomicLong(initialCount);
+  }
+
+  /**
+   * Returns the shard index for the given hash.
+   *
+   * @param hash the 64 byte user hash.
+   * @return the index of the shard holding the hash.
+   */
+  public int shardOf(byte[] hash) {
+    return (hash[0] & 0xFF) >>> shift;
+  }
+
+  @Override
+  public boolean contains(byte[] hash) throws IOException {
+    if (hash.length != HASH_LENGTH) {
+      return false;
+    }
+    return shards[shardOf(hash)].contains(hash);
+  }
+
+  @Override
+  public boolean insert(byte[] hash) throws IOException {
+    checkLength(hash);
+    int shard = shardOf(hash);
+    synchronized (stripes[shard]) {
+      if (!shards[shard].insert(hash)) {
+        return false;
+      }
+      count.incrementAndGet();
+      return true;
+    }
+  }
+
+  @Override
+  public boolean remove(byte[] hash) throws IOException {
+    checkLength(hash);
+    int shard = shardOf(hash);
+    synchronized (stripes[shard]) {
+      if (!shards[shard].remove(hash)) {
+        return false;
+      }
+      count.decrementAndGet();
+      return true;
+    }
+  }
+
+  @Override
+  public void replace(byte[] oldHash, byte[] newHash) throws IOException {
+    checkLength(oldHash);
+    checkLength(newHash);
+    int oldShard = shardOf(oldHash);
+    int newShard = shardOf(newHash);
+    if (oldShard == newShard) {
+      synchronized (stripes[oldShard]) {
+        /* Shard counts are cheap, and cannot move while the stripe is held. */
+        long before = shards[oldShard].count();
+        shards[oldShard].replace(oldHash, newHash);
+        count.addAndGet(shards[oldShard].count() - before);
+      }
+      return;
+    }
+
+    /*
+     * The new hash goes in with a record of the old one, and that is made durable before the old
+     * hash comes out, so a crash in between leaves the replace for the constructor to finish. A
+     * concurrent lookup may briefly see both hashes, but never neither. Both syncs go through the
+     * shards' group commit; the replacement is only released once the removal is durable too.
+     */
+    synchronized (stripes[newShard]) {
+      if (shards[newShard].insertReplacing(oldHash, newHash)) {
+        count.incrementAndGet();
+      }
+    }
+    shards[newShard].sync();
+    synchronized (stripes[oldShard]) {
+      if (shards[oldShard].remove(oldHash)) {
+        count.decrementAndGet();
+      }
+    }
+    shards[oldShard].sync();
+    shards[newShard].releaseReplacement(newHash);
+  }
+
+  /**
+   * Syncs every shard. Shards with nothing waiting to be written return straight away.
+   */
+  @Override
+  public void sync() throws IOException {
+    for (NoHashStore shard : shards) {
+      shard.sync();
+    }
+  }
+
+  /**
+   * Syncs only the shards holding the given hashes, so a caller never waits on the commit delay of
+   * a shard it did not change.
+   */
+  @Override
+  public void sync(byte[]... hashes) throws IOException {
+    boolean[] synced = new boolean[shards.length];
+    for (byte[] hash : hashes) {
+      int shard = shardOf(hash);
+      if (!synced[shard]) {
+        synced[shard] = true;
+        shards[shard].sync();
+      }
+    }
+  }
+
+  @Override
+  public long count() {
+    return count.get();
+  }
+
+  @Override
+  public byte[][] export() throws IOException {
+    byte[][][] exports = new byte[shards.length][][];
+    int total = 0;
+    for (int x = 0; x < shards.length; x++) {
+      exports[x] = shards[x].export();
+      total += exports[x].length;
+    }
+    byte[][] export = new byte[total][];
+    int offset = 0;
+    for (byte[][] shardExport : exports) {
+      System.arraycopy(shardExport, 0, export, offset, shardExport.length);
+      offset += shardExport.length;
+    }
+    return export;
+  }
+
+  @Override
+  public Iterator<ByteBuffer> iterator() throws IOException {
+    /* Every shard is snapshotted up front, so the iterator does not see later changes. */
+    final List<Iterator<ByteBuffer>> iterators = new ArrayList<Iterator<ByteBuffer>>();
+    for (NoHashStore shard : shards) {
+      iterators.add(shard.iterator());
+    }
+    return new Iterator<ByteBuffer>() {
+      private int shard = 0;
+
+      @Override
+      public boolean hasNext() {
+        while (shard < iterators.size() && !iterators.get(shard).hasNext()) {
+          shard++;
+        }
+        return shard < iterators.size();
+      }
+
+      @Override
+      public ByteBuffer next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return iterators.get(shard).next();
+      }
+    };
+  }
+
+  @Override
+  public long transferTo(WritableByteChannel target) throws IOException {
+    long transferred = 0;
+    for (NoHashStore shard : shards) {
+      transferred += shard.transferTo(target);
+    }
+    return transferred;
+  }
+
+  public int getShardCount() {
+    return shards.length;
+  }
+
+  private static void checkLength(byte[] hash) {
+    if (hash.length != HASH_LENGTH) {
+      throw new IllegalArgumentException("Hashes must be " + HASH_LENGTH + " bytes long.");
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2014 David Horscroft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * NoTimerWheel schedules items to expire at a deadline, for sweeping leases and sessions.
+ */
+
+package nodash.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timer wheel: four levels of 64 slots, where every slot of one level spans a whole
+ * turn of the level below it. Scheduling an item and expiring one cost constant time however many
+ * items are waiting; an item is moved down a level at most three times before it expires. With a
+ * tick of one second the wheel spans about 194 days, and items due later than that wait in the top
+ * level until they come into range.
+ *
+ * <p>
+ * Items cannot be cancelled. Callers which change or drop a deadline should check, when the old
+ * deadline expires, whether it still applies. It is safe to use from multiple threads.
+ */
+public final class NoTimerWheel<T> {
+  private static final int SLOT_BITS = 6;
+  private static final int SLOTS = 1 << SLOT_BITS;
+  private static final int LEVELS = 4;
+  private static final long SPAN = 1L << (SLOT_BITS * LEVELS);
+
+  private static final class Entry<T> {
+    private final T item;
+    private final long tick;
+    private Entry<T> next;
+
+    private Entry(T item, long tick) {
+      this.item = item;
+      this.tick = tick;
+    }
+  }
+
+  private final long tickMillis;
+  private final Entry<?>[][] wheels = new Entry<?>[LEVELS][SLOTS];
+  private long currentTick;
+  private int size;
+
+  /**
+   * Creates an empty wheel.
+   *
+   * @param tickMillis the resolution of the wheel in milliseconds; items expire at most this long
+   *        after their deadline.
+   * @param nowMillis the current time in milliseconds.
+   */
+  public NoTimerWheel(long tickMillis, long nowMillis) {
+    if (tickMillis < 1) {
+      throw new IllegalArgumentException("Ticks must be at least one millisecond long.");
+    }
+    this.tickMillis = tickMillis;
+    this.currentTick = nowMillis / tickMillis;
+  }
+
+  /**
+   * Schedules the item to expire once the given time has passed.
+   *
+   * @param item the item to schedule.
+   * @param deadlineMillis the time in milliseconds after which the item expires.
+   */
+  public synchronized void schedule(T item, long deadlineMillis) {
+    /* Rounded up, so an item never expires before its deadline has passed. */
+    long tick = deadlineMillis / tickMillis + 1;
+    place(new Entry<T>(item, Math.max(tick, currentTick + 1)));
+    size++;
+  }
+
+  /**
+   * Moves the wheel on to the given time and returns every item whose deadline has passed.
+   *
+   * @param nowMillis the current time in milliseconds.
+   * @return the expired items, in no particular order.
+   */
+  public synchronized List<T> advance(long nowMillis) {
+    List<T> expired = new ArrayList<T>();
+    long targetTick = nowMillis / tickMillis;
+    while (currentTick < targetTick && size > 0) {
+      currentTick++;
+      for (int level = LEVELS - 1; level > 0; level--) {
+        if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+          cascade(level, expired);
+        }
+      }
+      Entry<T> entry = take(0, (int) (currentTick & (SLOTS - 1)));
+      while (entry != null) {
+        expired.add(entry.item);
+        size--;
+        entry = entry.next;
+      }
+    }
+    /* An empty wheel has nothing to move, so it jumps straight to the target. */
+    currentTick = Math.max(currentTick, targetTick);
+    return expired;
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  private void cascade(int level, List<T> expired) {
+    Entry<T> entry = take(level, (int) ((currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1)));
+    while (entry != null) {
+      Entry<T> next = entry.next;
+      if (entry.tick <= currentTick) {
+        expired.add(entry.item);
+        size--;
+      } else {
+        place(entry);
+      }
+      entry = next;
+    }
+  }
+
+  private void place(Entry<T> entry) {
+    long delta = entry.tick - currentTick;
+    /* Items out of range are parked in the last slot the top level can reach. */
+    long tick = delta < SPAN ? entry.tick : currentTick + SPAN - 1;
+    delta = tick - currentTick;
+    int level = 0;
+    while (delta >= (1L << (SLOT_BITS * (level + 1)))) {
+      level++;
+    }
+    int slot = (int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+    @SuppressWarnings("unchecked")
+    Entry<T> head = (Entry<T>) wheels[level][slot];
+    entry.next = head;
+    wheels[level][slot] = entry;
+  }
+
+  private Entry<T> take(int level, int slot) {
+    @SuppressWarnings("unchecked")
+    Entry<T> head = (Entry<T>) wheels[level][slot];
+    wheels[level][slot] = null;
+    return head;
+  }
+}
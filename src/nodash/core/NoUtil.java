@@ -25,10 +25,12 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
+import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
@@ -51,7 +53,71 @@ public final class NoUtil {
   public static final String SECURERANDOM_PROVIDER = "SUN";
   public static final int RSA_STRENGTH = setupRsaStrength();
   public static final int AES_STRENGTH = 256;
+  public static final String MAC_TYPE = "HmacSHA256";
+  public static final int COOKIE_TAG_LENGTH = 16;
+
+  private static final SecretKey COOKIE_KEY = setupCookieKey();
+  private static final ThreadLocal<Mac> COOKIE_MAC = new ThreadLocal<Mac>() {
+    @Override
+    protected Mac initialValue() {
+      return NoUtil.createMac(COOKIE_KEY);
+    }
+  };
   public static final byte BLANK_BYTE = 'A';
+
+  /*
+   * Cipher.getInstance and friends search the security providers on every call, so each thread
+   * keeps its own instances. The server key ciphers are initialised once and reused as they are,
+   * since ECB mode takes no IV; those which take a per-call key are initialised on every use.
+   */
+  private static final byte[] SECRET_SALT = SECRET_KEY.getEncoded();
+  private static final ThreadLocal<Cipher> SERVER_ENCRYPT = new ThreadLocal<Cipher>() {
+    @Override
+    protected Cipher initialValue() {
+      Cipher cipher = NoUtil.createCipher(CIPHER_TYPE, "CIPHER_TYPE");
+      return NoUtil.initCipher(cipher, Cipher.ENCRYPT_MODE, SECRET_KEY);
+    }
+  };
+  private static final ThreadLocal<Cipher> SERVER_DECRYPT = new ThreadLocal<Cipher>() {
+    @Override
+    protected Cipher initialValue() {
+      Cipher cipher = NoUtil.createCipher(CIPHER_TYPE, "CIPHER_TYPE");
+      return NoUtil.initCipher(cipher, Cipher.DECRYPT_MODE, SECRET_KEY);
+    }
+  };
+  private static final ThreadLocal<Cipher> AES_CIPHER = new ThreadLocal<Cipher>() {
+    @Override
+    protected Cipher initialValue() {
+      return NoUtil.createCipher(CIPHER_TYPE, "CIPHER_TYPE");
+    }
+  };
+  private static final ThreadLocal<Cipher> RSA_CIPHER = new ThreadLocal<Cipher>() {
+    @Override
+    protected Cipher initialValue() {
+      return NoUtil.createCipher(CIPHER_RSA_TYPE, "CIPHER_RSA_TYPE");
+    }
+  };
+  private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance(NoUtil.DIGEST_TYPE);
+      } catch (NoSuchAlgorithmException e) {
+        throw new NoDashFatalException("Value for DIGEST_TYPE not valid.", e);
+      }
+    }
+  };
+  private static final ThreadLocal<SecretKeyFactory> PBE_FACTORY =
+      new ThreadLocal<SecretKeyFactory>() {
+        @Override
+        protected SecretKeyFactory initialValue() {
+          try {
+            return SecretKeyFactory.getInstance(NoUtil.PBE_TYPE);
+          } catch (NoSuchAlgorithmException e) {
+            throw new NoDashFatalException("Value for PBE_TYPE is not valid.", e);
+          }
+        }
+      };
   
   private static SecretKey setupSecretKey() {
     String secretEnv = System.getenv("NODASH_SECRET");
@@ -63,6 +129,47 @@ public final class NoUtil {
     }
   }
 
+  private static SecretKey setupCookieKey() {
+    /* Cookies are tagged with a key of their own, derived from the secret, and never with it. */
+    Mac mac = NoUtil.createMac(new SecretKeySpec(SECRET_KEY.getEncoded(), NoUtil.MAC_TYPE));
+    byte[] derived = mac.doFinal(NoUtil.toBytes("nodash session cookie"));
+    return new SecretKeySpec(derived, NoUtil.MAC_TYPE);
+  }
+
+  private static Mac createMac(SecretKey key) {
+    Mac mac;
+    try {
+      mac = Mac.getInstance(NoUtil.MAC_TYPE);
+    } catch (NoSuchAlgorithmException e) {
+      throw new NoDashFatalException("Value for MAC_TYPE is not valid.", e);
+    }
+    try {
+      mac.init(key);
+    } catch (InvalidKeyException e) {
+      throw new NoDashFatalException("Cookie key is invalid.", e);
+    }
+    return mac;
+  }
+
+  private static Cipher createCipher(String type, String name) {
+    try {
+      return Cipher.getInstance(type);
+    } catch (NoSuchAlgorithmException e) {
+      throw new NoDashFatalException("Value for " + name + " is not valid (no such algorithm).", e);
+    } catch (NoSuchPaddingException e) {
+      throw new NoDashFatalException("Value for " + name + " is not valid (no such padding).", e);
+    }
+  }
+
+  private static Cipher initCipher(Cipher cipher, int mode, SecretKey key) {
+    try {
+      cipher.init(mode, key);
+    } catch (InvalidKeyException e) {
+      throw new NoDashFatalException("Secret key is invalid.", e);
+    }
+    return cipher;
+  }
+
   private static int setupRsaStrength() {
     String secretEnv = System.getenv("NODASH_RSA_STRENGTH");
     if (secretEnv == null) {
@@ -109,16 +216,10 @@ public final class NoUtil {
   }
 
   public static byte[] getPbeKeyFromPassword(char[] password) {
-    SecretKeyFactory skf;
-    try {
-      skf = SecretKeyFactory.getInstance(NoUtil.PBE_TYPE);
-    } catch (NoSuchAlgorithmException e) {
-      throw new NoDashFatalException("Value for PBE_TYPE is not valid.", e);
-    }
-    KeySpec spec = new PBEKeySpec(password, SECRET_KEY.getEncoded(), 65536, 256);
+    KeySpec spec = new PBEKeySpec(password, SECRET_SALT, 65536, 256);
     SecretKey key;
     try {
-      key = skf.generateSecret(spec);
+      key = PBE_FACTORY.get().generateSecret(spec);
     } catch (InvalidKeySpecException e) {
       throw new NoDashFatalException("PBE manager unable to derive key from password.", e);
     }
@@ -127,12 +228,7 @@ public final class NoUtil {
   }
 
   public static byte[] getHashFromByteArray(byte[] bytes) {
-    try {
-      MessageDigest messageDigest = MessageDigest.getInstance(NoUtil.DIGEST_TYPE);
-      return messageDigest.digest(bytes);
-    } catch (NoSuchAlgorithmException e) {
-      throw new NoDashFatalException("Value for DIGEST_TYPE not valid.", e);
-    }
+    return DIGEST.get().digest(bytes);
   }
 
   public static byte[] decrypt(byte[] data, char[] password)
@@ -151,21 +247,16 @@ public final class NoUtil {
   }
 
   public static byte[] encrypt(byte[] data, byte[] key) {
-    Cipher cipher;
-    try {
-      cipher = Cipher.getInstance(NoUtil.CIPHER_TYPE);
-    } catch (NoSuchAlgorithmException e) {
-      throw new NoDashFatalException("Value for CIPHER_TYPE is not valid (no such algorithm).", e);
-    } catch (NoSuchPaddingException e) {
-      throw new NoDashFatalException("Value for CIPHER_TYPE is not valid (no such padding).", e);
-    }
     SecretKeySpec secretKey = new SecretKeySpec(key, NoUtil.CIPHER_KEY_SPEC);
-    try {
-      cipher.init(Cipher.ENCRYPT_MODE, secretKey);
-    } catch (InvalidKeyException e) {
-      throw new NoDashFatalException("Secret key is invalid.", e);
-    }
+    Cipher cipher = initCipher(AES_CIPHER.get(), Cipher.ENCRYPT_MODE, secretKey);
+    return NoUtil.encrypt(data, cipher);
+  }
 
+  public static byte[] encrypt(byte[] data) {
+    return NoUtil.encrypt(data, SERVER_ENCRYPT.get());
+  }
+
+  private static byte[] encrypt(byte[] data, Cipher cipher) {
     try {
       return cipher.doFinal(data);
     } catch (IllegalBlockSizeException e) {
@@ -175,45 +266,63 @@ public final class NoUtil {
     }
   }
 
-  public static byte[] encrypt(byte[] data) {
-    return NoUtil.encrypt(data, SECRET_KEY.getEncoded());
-  }
-
   public static byte[] decrypt(byte[] data, byte[] key)
       throws IllegalBlockSizeException, BadPaddingException {
-    Cipher cipher;
-    try {
-      cipher = Cipher.getInstance(NoUtil.CIPHER_TYPE);
-    } catch (NoSuchAlgorithmException e) {
-      throw new NoDashFatalException("Value for CIPHER_TYPE is not valid (no such algorithm).", e);
-    } catch (NoSuchPaddingException e) {
-      throw new NoDashFatalException("Value for CIPHER_TYPE is not valid (no such padding).", e);
-    }
     SecretKeySpec secretKey = new SecretKeySpec(key, NoUtil.CIPHER_KEY_SPEC);
+    Cipher cipher = initCipher(AES_CIPHER.get(), Cipher.DECRYPT_MODE, secretKey);
+    return cipher.doFinal(data);
+  }
+
+  public static byte[] decrypt(byte[] data) throws IllegalBlockSizeException, BadPaddingException {
     try {
-      cipher.init(Cipher.DECRYPT_MODE, secretKey);
-    } catch (InvalidKeyException e) {
-      throw new NoDashFatalException("Secret key is invalid.", e);
+      return SERVER_DECRYPT.get().doFinal(data);
+    } catch (IllegalBlockSizeException | BadPaddingException e) {
+      /* A failed doFinal may leave the cipher mid-operation, so the thread starts afresh. */
+      SERVER_DECRYPT.remove();
+      throw e;
     }
+  }
 
-    return cipher.doFinal(data);
+  /**
+   * Creates a session cookie: the raw session ID followed by a tag of {@link #COOKIE_TAG_LENGTH}
+   * bytes, which is an HMAC of the ID truncated to that length. The ID is readable by anyone
+   * holding the cookie, but cannot be changed without the tag failing to verify.
+   * 
+   * @param sessionId the raw session ID.
+   * @return the session cookie.
+   */
+  public static byte[] createCookie(byte[] sessionId) {
+    byte[] tag = COOKIE_MAC.get().doFinal(sessionId);
+    byte[] cookie = Arrays.copyOf(sessionId, sessionId.length + COOKIE_TAG_LENGTH);
+    System.arraycopy(tag, 0, cookie, sessionId.length, COOKIE_TAG_LENGTH);
+    return cookie;
   }
 
-  public static byte[] decrypt(byte[] data) throws IllegalBlockSizeException, BadPaddingException {
-    return NoUtil.decrypt(data, SECRET_KEY.getEncoded());
+  /**
+   * Checks the tag of a session cookie made by {@link #createCookie(byte[])}. The MAC is set up
+   * once per thread, so a forged cookie costs a single HMAC and nothing else.
+   * 
+   * @param cookie the session cookie.
+   * @param idLength the length of the session ID carried by the cookie.
+   * @return the raw session ID, or null if the cookie is of the wrong length or the tag does not
+   *         match.
+   */
+  public static byte[] verifyCookie(byte[] cookie, int idLength) {
+    if (cookie.length != idLength + COOKIE_TAG_LENGTH) {
+      return null;
+    }
+    Mac mac = COOKIE_MAC.get();
+    mac.update(cookie, 0, idLength);
+    byte[] tag = Arrays.copyOf(mac.doFinal(), COOKIE_TAG_LENGTH);
+    byte[] expected = Arrays.copyOfRange(cookie, idLength, cookie.length);
+    if (!MessageDigest.isEqual(tag, expected)) {
+      return null;
+    }
+    return Arrays.copyOf(cookie, idLength);
   }
 
   public static byte[] encryptRsa(byte[] data, PublicKey publicKey) {
-    Cipher cipher;
-    try {
-      cipher = Cipher.getInstance(NoUtil.CIPHER_RSA_TYPE);
-    } catch (NoSuchAlgorithmException e) {
-      throw new NoDashFatalException("Value for CIPHER_RSA_TYPE is not valid (no such algorithm).",
-          e);
-    } catch (NoSuchPaddingException e) {
-      throw new NoDashFatalException("Value for CIPHER_RSA_TYPE is not valid (no such padding).",
-          e);
-    }
+    Cipher cipher = RSA_CIPHER.get();
     try {
       cipher.init(Cipher.ENCRYPT_MODE, publicKey);
       return cipher.doFinal(data);
@@ -228,16 +337,7 @@ public final class NoUtil {
 
   public static byte[] decryptRsa(byte[] data, PrivateKey privateKey)
       throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
-    Cipher cipher;
-    try {
-      cipher = Cipher.getInstance(NoUtil.CIPHER_RSA_TYPE);
-    } catch (NoSuchAlgorithmException e) {
-      throw new NoDashFatalException("Value for CIPHER_RSA_TYPE is not valid (no such algorithm).",
-          e);
-    } catch (NoSuchPaddingException e) {
-      throw new NoDashFatalException("Value for CIPHER_RSA_TYPE is not valid (no such padding).",
-          e);
-    }
+    Cipher cipher = RSA_CIPHER.get();
     cipher.init(Cipher.DECRYPT_MODE, privateKey);
     return cipher.doFinal(data);
   }
@@ -17,9 +17,19 @@
 
 package nodash.models;
 
-public final class NoByteSet {
+import java.io.Serializable;
+
+public final class NoByteSet implements Serializable {
+  private static final long serialVersionUID = -3605127460735295183L;
+
   public byte[] key;
   public byte[] data;
+  /**
+   * The time in milliseconds the byte set first arrived in a pool, or zero if it never has. A pool
+   * which is handed back a byte set it gave out keeps this time, so the byte set ages from its
+   * first arrival however often it is taken out and put back.
+   */
+  public long pooled;
 
   public NoByteSet(byte[] key, byte[] data) {
     this.key = key;
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 David Horscroft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * NoFingerprint is a short digest of a user's RSA public key, used to address NoByteSets to that
+ * user without handling the key itself.
+ */
+
+package nodash.models;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+
+import nodash.exceptions.NoDashFatalException;
+
+/**
+ * The SHA-256 digest of an RSA public key's modulus and exponent. Fingerprints are immutable,
+ * compare by value and cache their hash code, so they make cheap map keys where the key itself
+ * would hash and compare several hundred bytes each time.
+ */
+public final class NoFingerprint implements Serializable {
+  private static final long serialVersionUID = -4404137262718419384L;
+
+  public static final int LENGTH = 32;
+  public static final String DIGEST_TYPE = "SHA-256";
+
+  private final byte[] digest;
+  private final int hashCode;
+
+  private NoFingerprint(byte[] digest) {
+    this.digest = digest;
+    this.hashCode = Arrays.hashCode(digest);
+  }
+
+  /**
+   * Returns the fingerprint of an RSA public key.
+   *
+   * @param key the public key; it must be an RSA key.
+   * @return the fingerprint.
+   */
+  public static NoFingerprint of(PublicKey key) {
+    if (!(key instanceof RSAPublicKey)) {
+      throw new IllegalArgumentException("Only RSA public keys have fingerprints.");
+    }
+    RSAPublicKey rsaKey = (RSAPublicKey) key;
+    return of(rsaKey.getModulus(), rsaKey.getPublicExponent());
+  }
+
+  /**
+   * Returns the fingerprint of the RSA public key with the given modulus and exponent.
+   *
+   * @param modulus the modulus of the key.
+   * @param exponent the public exponent of the key.
+   * @return the fingerprint.
+   */
+  public static NoFingerprint of(BigInteger modulus, BigInteger exponent) {
+    MessageDigest messageDigest;
+    try {
+      messageDigest = MessageDigest.getInstance(DIGEST_TYPE);
+    } catch (NoSuchAlgorithmException e) {
+      throw new NoDashFatalException("Value for fingerprint DIGEST_TYPE not valid.", e);
+    }
+    /* The modulus is length-prefixed, so no two keys digest the same bytes. */
+    byte[] modulusBytes = modulus.toByteArray();
+    messageDigest.update(new byte[] {(byte) (modulusBytes.length >>> 24),
+        (byte) (modulusBytes.length >>> 16), (byte) (modulusBytes.length >>> 8),
+        (byte) modulusBytes.length});
+    messageDigest.update(modulusBytes);
+    messageDigest.update(exponent.toByteArray());
+    return new NoFingerprint(messageDigest.digest());
+  }
+
+  /**
+   * Returns a fingerprint from its bytes, as given by {@link #getBytes()}.
+   *
+   * @param bytes the {@link #LENGTH} bytes of the fingerprint.
+   * @return the fingerprint.
+   */
+  public static NoFingerprint fromBytes(byte[] bytes) {
+    if (bytes.length != LENGTH) {
+      throw new IllegalArgumentException("Fingerprints must be " + LENGTH + " bytes long.");
+    }
+    return new NoFingerprint(bytes.clone());
+  }
+
+  public byte[] getBytes() {
+    return digest.clone();
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (this == other) {
+      return true;
+    }
+    if (!(other instanceof NoFingerprint)) {
+      return false;
+    }
+    NoFingerprint fingerprint = (NoFingerprint) other;
+    return hashCode == fingerprint.hashCode && Arrays.equals(digest, fingerprint.digest);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+}
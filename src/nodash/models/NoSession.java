@@ -2,7 +2,6 @@ package nodash.models;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
@@ -21,6 +20,7 @@ public final class NoSession implements Serializable {
   private static final long serialVersionUID = 1814807373427948931L;
 
   public static final long SESSION_DURATION = 1000 * 60 * 30; // 30 minute sessions
+  public static final int SESSION_ID_LENGTH = 27; // a UUID string read as Base64
 
   public static enum NoState {
     IDLE, MODIFIED, AWAITING_CONFIRMATION, CONFIRMED, CLOSED;
@@ -31,8 +31,12 @@ public final class NoSession implements Serializable {
   private final long expiry;
 
   private List<NoByteSet> incoming;
+  /* Set while byte sets may still be waiting in the pool, to be taken a page at a time. */
+  private boolean incomingPending;
   private NoUser current;
   private String uuid;
+  /* Never written out, so a passivated session derives its key again. */
+  private transient NoSessionKey sessionKey;
 
   private NoSession() {
     this.state = NoState.IDLE;
@@ -41,7 +45,21 @@ public final class NoSession implements Serializable {
   }
 
   public NoSession(NoUser newUser) {
+    this(newUser, false);
+  }
+
+  /**
+   * Creates a session for a new user.
+   * 
+   * @param newUser the user to register.
+   * @param cacheKey true to keep the password key derived by a save until the session is
+   *        confirmed or closed, so a confirm with the same password need not derive it again.
+   */
+  public NoSession(NoUser newUser, boolean cacheKey) {
     this();
+    if (cacheKey) {
+      this.sessionKey = new NoSessionKey();
+    }
     if (newUser == null) {
       throw new NullPointerException("Session cannot be created with null user.");
     }
@@ -52,15 +70,41 @@ public final class NoSession implements Serializable {
 
   public NoSession(byte[] data, char[] password, Class<? extends NoUser> userClass) 
       throws NoUserNotValidException {
+    this(data, password, userClass, false);
+  }
+
+  /**
+   * Creates a session for an existing user from their user file.
+   * 
+   * @param data the user file.
+   * @param password the password the file was saved with.
+   * @param userClass the class of the user.
+   * @param cacheKey true to keep the password key until the session is confirmed or closed, so a
+   *        save or confirm with the same password need not derive it again.
+   * @throws NoUserNotValidException - if the file cannot be read with the password.
+   */
+  public NoSession(byte[] data, char[] password, Class<? extends NoUser> userClass,
+      boolean cacheKey) throws NoUserNotValidException {
     this();
     this.state = NoState.IDLE;
-    byte[] originalData = Arrays.copyOf(data, data.length);
-    char[] originalPassword = Arrays.copyOf(password, password.length);
-    this.original =
-        NoUser.createUserFromFile(originalData, originalPassword, userClass);
-    this.current = NoUser.createUserFromFile(data, password, userClass);
-    NoUtil.wipeBytes(data);
-    NoUtil.wipeChars(password);
+    if (cacheKey) {
+      this.sessionKey = new NoSessionKey();
+    }
+    /* The file is decrypted once; each copy of the user is parsed from the same JSON. */
+    byte[] json;
+    byte[] pbeKey = getPbeKey(password);
+    try {
+      json = NoUser.decryptFile(data, pbeKey);
+    } finally {
+      NoUtil.wipeBytes(data);
+      NoUtil.wipeBytes(pbeKey);
+    }
+    try {
+      this.original = NoUser.createUserFromJson(json, userClass);
+      this.current = NoUser.createUserFromJson(json, userClass);
+    } finally {
+      NoUtil.wipeBytes(json);
+    }
     this.uuid = UUID.randomUUID().toString();
   }
 
@@ -68,7 +112,7 @@ public final class NoSession implements Serializable {
     if (state == NoState.CONFIRMED) {
       throw new NoSessionConfirmedException();
     } else if (state == NoState.CLOSED || System.currentTimeMillis() > expiry) {
-      state = NoState.CLOSED;
+      close();
       throw new NoSessionExpiredException();
     } else if (state == NoState.IDLE 
         && (current.getNoActions().size() > 0 
@@ -99,9 +143,12 @@ public final class NoSession implements Serializable {
       throws NoSessionConfirmedException, NoSessionExpiredException {
     touchState();
     this.state = NoState.AWAITING_CONFIRMATION;
-    byte[] file = current.createFile(password);
-    NoUtil.wipeChars(password);
-    return file;
+    byte[] pbeKey = getPbeKey(password);
+    try {
+      return current.createFile(pbeKey);
+    } finally {
+      NoUtil.wipeBytes(pbeKey);
+    }
   }
 
   public void confirmSave(NoAdapter adapter, byte[] confirmData, char[] password, Class<? extends NoUser> userClass)
@@ -112,13 +159,24 @@ public final class NoSession implements Serializable {
       throw new NoSessionNotAwaitingConfirmationException();
     }
 
-    NoUser confirmed = NoUser.createUserFromFile(confirmData, password, userClass);
-
-    NoUtil.wipeBytes(confirmData);
-    NoUtil.wipeChars(password);
+    byte[] json;
+    byte[] pbeKey = getPbeKey(password);
+    try {
+      json = NoUser.decryptFile(confirmData, pbeKey);
+    } finally {
+      NoUtil.wipeBytes(confirmData);
+      NoUtil.wipeBytes(pbeKey);
+    }
+    NoUser confirmed;
+    try {
+      confirmed = NoUser.createUserFromJson(json, userClass);
+    } finally {
+      NoUtil.wipeBytes(json);
+    }
     
     if (confirmed.createHashString().equals(current.createHashString())) {
       this.state = NoState.CONFIRMED;
+      wipePbeKey();
       /* 5.2.3: clear influences as they will not need to be re-applied */
       this.incoming = new ArrayList<NoByteSet>();
       List<NoAction> actions = current.getNoActions();
@@ -161,12 +219,42 @@ public final class NoSession implements Serializable {
     return this.incoming;
   }
 
+  public long getExpiry() {
+    return this.expiry;
+  }
+
   public String getUuid() {
     return this.uuid;
   }
 
+  /**
+   * Returns the raw session ID, which is the UUID string read as Base64.
+   * 
+   * @return the session ID, {@link #SESSION_ID_LENGTH} bytes long.
+   */
+  public byte[] getSessionId() {
+    return Base64.decodeBase64(getUuid());
+  }
+
+  /**
+   * Returns the cookie handed to the user for this session: the raw session ID followed by its
+   * tag, as made by {@link NoUtil#createCookie(byte[])}.
+   * 
+   * @return the session cookie.
+   */
+  public byte[] getCookie() {
+    return NoUtil.createCookie(getSessionId());
+  }
+
+  /**
+   * Returns the session ID encrypted with the server secret, the cookie format used before
+   * {@link #getCookie()}. Adapters no longer accept it.
+   * 
+   * @return the encrypted session ID.
+   */
+  @Deprecated
   public byte[] getEncryptedUuid() {
-    return NoUtil.encrypt(Base64.decodeBase64(getUuid()));
+    return NoUtil.encrypt(getSessionId());
   }
 
   public byte[] getOriginalHash() {
@@ -181,6 +269,28 @@ public final class NoSession implements Serializable {
     this.incoming = incoming;
   }
 
+  /**
+   * Adds byte sets taken from the pool to those the session holds, so that they are returned to
+   * the pool if the session is not confirmed.
+   * 
+   * @param byteSets the byte sets taken from the pool.
+   */
+  public void addIncoming(List<NoByteSet> byteSets) {
+    if (this.incoming == null) {
+      this.incoming = new ArrayList<NoByteSet>(byteSets);
+    } else {
+      this.incoming.addAll(byteSets);
+    }
+  }
+
+  public boolean isIncomingPending() {
+    return this.incomingPending;
+  }
+
+  public void setIncomingPending(boolean incomingPending) {
+    this.incomingPending = incomingPending;
+  }
+
   public void consume(NoByteSet byteSet) throws NoByteSetBadDecryptionException,
       NoSessionConfirmedException, NoSessionExpiredException {
     check();
@@ -189,6 +299,27 @@ public final class NoSession implements Serializable {
 
   public void close() {
     this.state = NoState.CLOSED;
+    wipePbeKey();
+  }
+
+  /**
+   * Wipes the cached password key, if the session keeps one. Later saves and confirms derive the
+   * key from the password again.
+   */
+  public void wipePbeKey() {
+    NoSessionKey key = this.sessionKey;
+    if (key != null) {
+      key.wipe();
+    }
+  }
+
+  /* Derives the password key, or takes it from the cache if the password is the one last used. */
+  private byte[] getPbeKey(char[] password) {
+    NoSessionKey key = this.sessionKey;
+    if (key == null) {
+      return NoUtil.getPbeKeyFromPassword(password);
+    }
+    return key.getPbeKey(password);
   }
 
   public boolean isNewUser() {
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 David Horscroft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * NoSessionKey remembers the password key last derived for a NoSession, so that save and confirm
+ * need not derive it again.
+ */
+
+package nodash.models;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+import nodash.core.NoUtil;
+import nodash.exceptions.NoDashFatalException;
+
+/**
+ * Holds one password key with a salted digest of the password it was derived from. The key is
+ * only handed out for a password with the same digest, and both are wiped by {@link #wipe()}.
+ */
+final class NoSessionKey {
+  private final byte[] salt = new byte[16];
+  private byte[] check;
+  private byte[] key;
+
+  NoSessionKey() {
+    try {
+      SecureRandom.getInstance(NoUtil.SECURERANDOM_ALGORITHM).nextBytes(salt);
+    } catch (NoSuchAlgorithmException e) {
+      throw new NoDashFatalException("Value for SECURERANDOM_ALGORITHM not valid.", e);
+    }
+  }
+
+  /**
+   * Returns the password key, deriving it only if the password differs from the one last used.
+   *
+   * @param password the password; it is wiped.
+   * @return a copy of the password key, which the caller should wipe.
+   */
+  synchronized byte[] getPbeKey(char[] password) {
+    byte[] digest = digest(password);
+    if (key != null && MessageDigest.isEqual(check, digest)) {
+      NoUtil.wipeChars(password);
+      NoUtil.wipeBytes(digest);
+      return key.clone();
+    }
+    wipe();
+    key = NoUtil.getPbeKeyFromPassword(password);
+    check = digest;
+    return key.clone();
+  }
+
+  synchronized void wipe() {
+    if (key != null) {
+      NoUtil.wipeBytes(key);
+      NoUtil.wipeBytes(check);
+      key = null;
+      check = null;
+    }
+  }
+
+  /* Every char is digested whole, so passwords differing only above the low byte never match. */
+  private byte[] digest(char[] password) {
+    MessageDigest messageDigest;
+    try {
+      messageDigest = MessageDigest.getInstance(NoUtil.DIGEST_TYPE);
+    } catch (NoSuchAlgorithmException e) {
+      throw new NoDashFatalException("Value for DIGEST_TYPE not valid.", e);
+    }
+    messageDigest.update(salt);
+    for (char c : password) {
+      messageDigest.update((byte) (c >>> 8));
+      messageDigest.update((byte) c);
+    }
+    return messageDigest.digest();
+  }
+}
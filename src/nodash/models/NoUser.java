@@ -23,9 +23,7 @@ import java.lang.reflect.Field;
 import java.math.BigInteger;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
 import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.util.ArrayList;
@@ -43,6 +41,7 @@ import com.google.gson.JsonSyntaxException;
 
 import sun.security.rsa.RSAPrivateCrtKeyImpl;
 import sun.security.rsa.RSAPublicKeyImpl;
+import nodash.core.NoKeyPairPool;
 import nodash.core.NoUtil;
 import nodash.exceptions.NoByteSetBadDecryptionException;
 import nodash.exceptions.NoDashFatalException;
@@ -65,24 +64,11 @@ public abstract class NoUser implements Serializable {
 
   private List<NoAction> outgoing = new ArrayList<NoAction>();
 
-  public NoUser() {
-    KeyPairGenerator kpg;
-    try {
-      kpg = KeyPairGenerator.getInstance(NoUtil.KEYPAIR_ALGORITHM);
-    } catch (NoSuchAlgorithmException e) {
-      throw new NoDashFatalException("Value for KEYPAIR_ALGORITHM is not valid.", e);
-    }
-
-    try {
-      kpg.initialize(NoUtil.RSA_STRENGTH,
-          SecureRandom.getInstance(NoUtil.SECURERANDOM_ALGORITHM, NoUtil.SECURERANDOM_PROVIDER));
-    } catch (NoSuchAlgorithmException e) {
-      throw new NoDashFatalException("Value for SECURERANDOM_ALGORITHM not valid.", e);
-    } catch (NoSuchProviderException e) {
-      throw new NoDashFatalException("Value for SECURERANDOM_PROVIDER not valid.", e);
-    }
+  /* Derived from the public key when first asked for; never saved with the user. */
+  private transient NoFingerprint fingerprint;
 
-    KeyPair keyPair = kpg.generateKeyPair();
+  public NoUser() {
+    KeyPair keyPair = NoKeyPairPool.getShared().take();
     publicKey = (RSAPublicKeyImpl) keyPair.getPublic();
     privateKey = (RSAPrivateCrtKeyImpl) keyPair.getPrivate();
     influences = 0;
@@ -101,6 +87,23 @@ public abstract class NoUser implements Serializable {
   }
 
   public final byte[] createFile(char[] password) {
+    byte[] pbeKey = NoUtil.getPbeKeyFromPassword(password);
+    try {
+      return createFile(pbeKey);
+    } finally {
+      NoUtil.wipeBytes(pbeKey);
+    }
+  }
+
+  /**
+   * Creates the user file with a password key already derived by
+   * {@link NoUtil#getPbeKeyFromPassword(char[])}, giving the same file as
+   * {@link #createFile(char[])} would for that password.
+   * 
+   * @param pbeKey the key derived from the password.
+   * @return the user file.
+   */
+  public final byte[] createFile(byte[] pbeKey) {
     List<NoAction> tempActions = outgoing;
 
     touchRandomizer();
@@ -109,7 +112,7 @@ public abstract class NoUser implements Serializable {
 
     Gson gson = new Gson();
     byte[] json = NoUtil.toBytes(gson.toJson(this));
-    byte[] encrypted = NoUtil.encrypt(json, password);
+    byte[] encrypted = NoUtil.encrypt(NoUtil.encrypt(json, pbeKey));
 
     outgoing = tempActions;
     return encrypted;
@@ -209,6 +212,19 @@ public abstract class NoUser implements Serializable {
     }
   }
 
+  /**
+   * Returns the fingerprint of the user's public key, which byte sets for the user are addressed
+   * to. It is computed once per user object.
+   * 
+   * @return the fingerprint of the user's public key.
+   */
+  public final NoFingerprint getFingerprint() {
+    if (fingerprint == null) {
+      fingerprint = NoFingerprint.of(getModulus(), getPublicExponent());
+    }
+    return fingerprint;
+  }
+
   public int getInfluences() {
     return influences;
   }
@@ -220,18 +236,63 @@ public abstract class NoUser implements Serializable {
 
   public static NoUser createUserFromFile(byte[] data, char[] password,
       Class<? extends NoUser> clazz) throws NoUserNotValidException {
-    byte[] decrypted;
+    byte[] decrypted = decryptFile(data, password);
+    try {
+      return createUserFromJson(decrypted, clazz);
+    } finally {
+      NoUtil.wipeBytes(decrypted);
+    }
+  }
+
+  /**
+   * Decrypts a user file into the JSON it holds, without parsing it. Deriving the password key
+   * dominates the cost of reading a user file, so callers wanting more than one copy of the user
+   * should decrypt once and call {@link #createUserFromJson(byte[], Class)} for each copy.
+   * 
+   * @param data the user file.
+   * @param password the password the file was saved with.
+   * @return the decrypted JSON, which the caller should wipe once it is done with it.
+   * @throws NoUserNotValidException - if the file cannot be decrypted with the password.
+   */
+  public static byte[] decryptFile(byte[] data, char[] password) throws NoUserNotValidException {
     try {
-      decrypted = NoUtil.decrypt(data, password);
+      return NoUtil.decrypt(data, password);
     } catch (IllegalBlockSizeException | BadPaddingException e) {
       throw new NoUserNotValidException(e);
     }
+  }
+
+  /**
+   * Decrypts a user file with a password key already derived by
+   * {@link NoUtil#getPbeKeyFromPassword(char[])}.
+   * 
+   * @param data the user file.
+   * @param pbeKey the key derived from the password the file was saved with.
+   * @return the decrypted JSON, which the caller should wipe once it is done with it.
+   * @throws NoUserNotValidException - if the file cannot be decrypted with the key.
+   */
+  public static byte[] decryptFile(byte[] data, byte[] pbeKey) throws NoUserNotValidException {
+    try {
+      return NoUtil.decrypt(NoUtil.decrypt(data), pbeKey);
+    } catch (IllegalBlockSizeException | BadPaddingException e) {
+      throw new NoUserNotValidException(e);
+    }
+  }
 
+  /**
+   * Creates a user from the JSON of a decrypted user file. Every call returns a new, independent
+   * user object.
+   * 
+   * @param json the JSON returned by {@link #decryptFile(byte[], char[])}.
+   * @param clazz the class of the user.
+   * @return the user.
+   * @throws NoUserNotValidException - if the JSON does not describe a user of the class.
+   */
+  public static NoUser createUserFromJson(byte[] json, Class<? extends NoUser> clazz)
+      throws NoUserNotValidException {
     Gson gson = new Gson();
-    String json = NoUtil.fromBytes(decrypted);
     try {
-      NoUser noUser = gson.fromJson(json, clazz);
-      return noUser;
+      return gson.fromJson(NoUtil.fromBytes(json), clazz);
     } catch (JsonSyntaxException e) {
       throw new NoUserNotValidException(e);
     }
@@ -45,14 +45,14 @@ public abstract class NoErrorableAction extends NoTargetedAction {
       NoInfluence influence = this.generateTargetInfluence();
       if (influence != null) {
         NoByteSet byteSet = influence.getByteSet(this.target);
-        adapter.addNoByteSet(byteSet, this.target);
+        adapter.addNoByteSet(byteSet, this.targetAddress);
       }
     } catch (NoCannotGetInfluenceException e) {
       NoInfluence errorInfluence = e.getResponseInfluence();
       if (errorInfluence != null) {
         NoByteSet byteSet = errorInfluence.getByteSet(this.target);
         try {
-          adapter.addNoByteSet(byteSet, this.target);
+          adapter.addNoByteSet(byteSet, this.targetAddress);
         } catch (NoAdapterException e1) {
           throw new NoDashFatalException("Could not add the error byte set to the pool.");
         }
@@ -46,20 +46,20 @@ public abstract class NoHandshakeAction extends NoSourcedAction {
       NoInfluence influence = generateTargetInfluence();
       if (influence != null) {
         NoByteSet byteSet = influence.getByteSet(this.target);
-        adapter.addNoByteSet(byteSet, this.target);
+        adapter.addNoByteSet(byteSet, this.targetAddress);
       }
 
       NoInfluence result = generateReturnedInfluence();
       if (result != null) {
         NoByteSet byteSet = result.getByteSet(this.source);
-        adapter.addNoByteSet(byteSet, this.source);
+        adapter.addNoByteSet(byteSet, this.sourceAddress);
       }
     } catch (NoCannotGetInfluenceException e) {
       NoInfluence errorInfluence = e.getResponseInfluence();
       if (errorInfluence != null) {
         NoByteSet byteSet = errorInfluence.getByteSet(this.source);
         try {
-          adapter.addNoByteSet(byteSet, this.source);
+          adapter.addNoByteSet(byteSet, this.sourceAddress);
         } catch (NoAdapterException e1) {
           throw new NoDashFatalException("Could not add error byte set to the pool.");
         }
@@ -27,17 +27,20 @@ import nodash.exceptions.NoAdapterException;
 import nodash.exceptions.NoCannotGetInfluenceException;
 import nodash.exceptions.NoDashFatalException;
 import nodash.models.NoByteSet;
+import nodash.models.NoFingerprint;
 import nodash.models.NoInfluence;
 
 public abstract class NoSourcedAction extends NoTargetedAction {
   private static final long serialVersionUID = -2996690472537380062L;
   protected PublicKey source;
+  protected NoFingerprint sourceAddress;
 
   protected abstract NoInfluence generateTargetInfluence() throws NoCannotGetInfluenceException;
 
   public NoSourcedAction(PublicKey target, PublicKey source) {
     super(target);
     this.source = source;
+    this.sourceAddress = NoFingerprint.of(source);
   }
 
   @Override
@@ -47,14 +50,14 @@ public abstract class NoSourcedAction extends NoTargetedAction {
       NoInfluence influence = this.generateTargetInfluence();
       if (influence != null) {
         NoByteSet byteSet = influence.getByteSet(this.target);
-        adapter.addNoByteSet(byteSet, this.target);
+        adapter.addNoByteSet(byteSet, this.targetAddress);
       }
     } catch (NoCannotGetInfluenceException e) {
       NoInfluence errorInfluence = e.getResponseInfluence();
       if (errorInfluence != null) {
         NoByteSet byteSet = errorInfluence.getByteSet(this.source);
         try {
-          adapter.addNoByteSet(byteSet, this.source);
+          adapter.addNoByteSet(byteSet, this.sourceAddress);
         } catch (NoAdapterException e1) {
           throw new NoDashFatalException("Could not add error byte set to the pool.", e);
         }
@@ -68,5 +71,6 @@ public abstract class NoSourcedAction extends NoTargetedAction {
   public void purge() {
     super.purge();
     this.source = null;
+    this.sourceAddress = null;
   }
 }
@@ -25,16 +25,20 @@ import nodash.exceptions.NoCannotGetInfluenceException;
 import nodash.exceptions.NoDashFatalException;
 import nodash.models.NoAction;
 import nodash.models.NoByteSet;
+import nodash.models.NoFingerprint;
 import nodash.models.NoInfluence;
 
 public abstract class NoTargetedAction extends NoAction {
   private static final long serialVersionUID = -8893381130155149646L;
   protected PublicKey target;
+  /* The fingerprint of the target, worked out once rather than on every byte set. */
+  protected NoFingerprint targetAddress;
 
   protected abstract NoInfluence generateTargetInfluence() throws NoCannotGetInfluenceException;
 
   public NoTargetedAction(PublicKey target) {
     this.target = target;
+    this.targetAddress = NoFingerprint.of(target);
   }
 
   @Override
@@ -44,7 +48,7 @@ public abstract class NoTargetedAction extends NoAction {
       NoInfluence influence = this.generateTargetInfluence();
       if (influence != null) {
         NoByteSet byteSet = influence.getByteSet(this.target);
-        adapter.addNoByteSet(byteSet, this.target);
+        adapter.addNoByteSet(byteSet, this.targetAddress);
       }
     } catch (NoCannotGetInfluenceException e) {
       if (e.getResponseInfluence() != null) {
@@ -59,5 +63,6 @@ public abstract class NoTargetedAction extends NoAction {
   @Override
   public void purge() {
     this.target = null;
+    this.targetAddress = null;
   }
 }
@@ -22,6 +22,9 @@ import static org.junit.Assert.*;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 
 import nodash.core.NoAdapter;
 import nodash.core.NoCore;
@@ -29,6 +32,7 @@ import nodash.core.NoDefaultAdapter;
 import nodash.exceptions.NoAdapterException;
 import nodash.exceptions.NoDashFatalException;
 import nodash.exceptions.NoDashSessionBadUuidException;
+import nodash.exceptions.NoServerBusyException;
 import nodash.exceptions.NoSessionAlreadyAwaitingConfirmationException;
 import nodash.exceptions.NoSessionConfirmedException;
 import nodash.exceptions.NoSessionExpiredException;
@@ -36,8 +40,11 @@ import nodash.exceptions.NoSessionNotAwaitingConfirmationException;
 import nodash.exceptions.NoSessionNotChangedException;
 import nodash.exceptions.NoUserAlreadyOnlineException;
 import nodash.exceptions.NoUserNotValidException;
+import nodash.models.NoByteSet;
 import nodash.models.NoRegister;
+import nodash.models.NoSession;
 import nodash.models.NoUser;
+import nodash.test.functional.implementations.TestIncreaseMoney;
 import nodash.test.functional.implementations.TestNoUser;
 import nodash.models.NoSession.NoState;
 
@@ -45,6 +52,26 @@ import org.junit.Test;
 
 public class NoCoreTest {
 
+  /* A user which, once a test arms the latches, waits inside its decryption until released. */
+  public static class BlockingNoUser extends NoUser {
+    private static final long serialVersionUID = 1L;
+    private static volatile CountDownLatch entered;
+    private static volatile CountDownLatch release;
+
+    public BlockingNoUser() {
+      super();
+      CountDownLatch latch = entered;
+      if (latch != null) {
+        latch.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+
   @Test
   public void testRegister() {
     NoCore core = new NoCore(new NoDefaultAdapter(), TestNoUser.class);
@@ -88,7 +115,8 @@ public class NoCoreTest {
       NoSessionNotAwaitingConfirmationException, NoUserNotValidException,
       NoDashSessionBadUuidException, NoUserAlreadyOnlineException, NoSessionNotChangedException,
       NoSessionAlreadyAwaitingConfirmationException, NoAdapterException, NoSuchMethodException,
-      SecurityException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
+      SecurityException, IllegalAccessException, IllegalArgumentException, InvocationTargetException,
+      NoServerBusyException {
     NoAdapter adapter = new NoDefaultAdapter();
     NoCore core = new NoCore(adapter, TestNoUser.class);
 
@@ -122,7 +150,7 @@ public class NoCoreTest {
       core.confirm(new byte[] {'b', 'a', 'd', 'c', 'o', 'o', 'k', 'i', 'e'},
           "password".toCharArray(), newUserBadPassFile);
       fail("Confirmed on bad cookie without throwing exception.");
-    } catch (NoDashFatalException e) {
+    } catch (NoSessionExpiredException e) {
       // Do nothing, true
     }
 
@@ -161,7 +189,7 @@ public class NoCoreTest {
   @Test
   public void testGetUser() throws NoSessionExpiredException, NoSessionConfirmedException,
       NoSessionNotAwaitingConfirmationException, NoUserNotValidException,
-      NoUserAlreadyOnlineException {
+      NoUserAlreadyOnlineException, NoServerBusyException {
     NoCore core = new NoCore(new NoDefaultAdapter(), TestNoUser.class);
     NoUser user = new TestNoUser("Test");
     NoRegister registration = core.register(user, "password".toCharArray());
@@ -182,12 +210,20 @@ public class NoCoreTest {
     } catch (NoSessionExpiredException e) {
       // Correct, do nothing.
     }
+
+    try {
+      core.getNoUser(Arrays.copyOf(cookie, cookie.length - 1));
+      fail("Did not fail when given a cookie of the wrong length.");
+    } catch (NoSessionExpiredException e) {
+      // Correct, do nothing.
+    }
   }
 
   @Test
   public void testGetSessionState() throws NoSessionExpiredException, NoSessionConfirmedException,
       NoSessionNotAwaitingConfirmationException, NoUserNotValidException,
-      NoUserAlreadyOnlineException, NoSessionNotChangedException, NoSessionAlreadyAwaitingConfirmationException {
+      NoUserAlreadyOnlineException, NoSessionNotChangedException, NoSessionAlreadyAwaitingConfirmationException,
+      NoServerBusyException {
     NoCore core = new NoCore(new NoDefaultAdapter(), TestNoUser.class);
     NoUser user = new TestNoUser("Test");
     NoRegister registration = core.register(user, "password".toCharArray());
@@ -234,4 +270,171 @@ public class NoCoreTest {
     }
   }
 
+  @Test
+  public void testResolveNoSession() throws NoAdapterException, NoSessionExpiredException {
+    NoAdapter adapter = new NoDefaultAdapter();
+    NoCore core = new NoCore(adapter, TestNoUser.class);
+    NoRegister registration = core.register(new TestNoUser("Test"), "password".toCharArray());
+
+    NoSession session = adapter.resolveNoSession(registration.cookie);
+    assertNotNull(session);
+    assertSame(session, adapter.getNoSession(registration.cookie));
+    assertTrue(adapter.containsNoSession(registration.cookie));
+    assertNull(adapter.resolveNoSession(
+        Arrays.copyOf(registration.cookie, registration.cookie.length + 1)));
+
+    core.shred(registration.cookie);
+    assertNull(adapter.resolveNoSession(registration.cookie));
+    assertFalse(adapter.containsNoSession(registration.cookie));
+  }
+
+  @Test
+  public void testLoginBusy() throws NoSessionExpiredException, NoSessionConfirmedException,
+      NoSessionNotAwaitingConfirmationException, NoUserNotValidException,
+      NoUserAlreadyOnlineException, InterruptedException {
+    final NoCore core = new NoCore(new NoDefaultAdapter(), BlockingNoUser.class, 1);
+    NoRegister registration = core.register(new BlockingNoUser(), "password".toCharArray());
+    core.confirm(registration.cookie, "password".toCharArray(),
+        Arrays.copyOf(registration.data, registration.data.length));
+    final byte[] file = registration.data;
+
+    BlockingNoUser.entered = new CountDownLatch(1);
+    BlockingNoUser.release = new CountDownLatch(1);
+    final AtomicReference<byte[]> cookie = new AtomicReference<byte[]>();
+    Thread login = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          cookie.set(core.login(Arrays.copyOf(file, file.length), "password".toCharArray()));
+        } catch (NoUserNotValidException | NoUserAlreadyOnlineException
+            | NoServerBusyException e) {
+          // Left unset, failing the test below
+        }
+      }
+    });
+    login.start();
+    try {
+      BlockingNoUser.entered.await();
+      try {
+        core.login(Arrays.copyOf(file, file.length), "password".toCharArray());
+        fail("Allowed a login beyond the limit without thrown exception.");
+      } catch (NoServerBusyException e) {
+        // Do nothing, correct
+      }
+    } finally {
+      BlockingNoUser.entered = null;
+      BlockingNoUser.release.countDown();
+      login.join();
+    }
+    assertNotNull(cookie.get());
+    assertNotNull(core.getNoUser(cookie.get()));
+
+    try {
+      new NoCore(new NoDefaultAdapter(), BlockingNoUser.class, 0);
+      fail("Allowed a login limit of zero without thrown exception.");
+    } catch (IllegalArgumentException e) {
+      // Do nothing, correct
+    }
+  }
+
+  @Test
+  public void testLoginPaged() throws NoSessionExpiredException, NoSessionConfirmedException,
+      NoSessionNotAwaitingConfirmationException, NoUserNotValidException,
+      NoUserAlreadyOnlineException, NoServerBusyException, NoSessionNotChangedException,
+      NoSessionAlreadyAwaitingConfirmationException, NoAdapterException {
+    NoAdapter adapter = new NoDefaultAdapter();
+    NoCore core = new NoCore(adapter, TestNoUser.class);
+    core.setByteSetPageSize(2);
+    TestNoUser user = new TestNoUser("Test");
+    NoRegister registration = core.register(user, "password".toCharArray());
+    core.confirm(registration.cookie, "password".toCharArray(),
+        Arrays.copyOf(registration.data, registration.data.length));
+    for (int x = 0; x < 5; x++) {
+      adapter.addNoByteSet(new TestIncreaseMoney(1).getByteSet(user.getRsaPublicKey()),
+          user.getFingerprint());
+    }
+
+    /* Login applies the first page, and each call to applyIncoming after it the next. */
+    byte[] cookie = core.login(Arrays.copyOf(registration.data, registration.data.length),
+        "password".toCharArray());
+    assertEquals(2, ((TestNoUser) core.getNoUser(cookie)).getMoney());
+    assertEquals(2, ((TestNoUser) core.getNoUser(cookie)).getMoney());
+    assertTrue(core.applyIncoming(cookie));
+    assertEquals(4, ((TestNoUser) core.getNoUser(cookie)).getMoney());
+    assertFalse(core.applyIncoming(cookie));
+    assertEquals(5, ((TestNoUser) core.getNoUser(cookie)).getMoney());
+
+    /* Shredding returns every page taken to the pool. */
+    core.shred(cookie);
+    core.setByteSetPageSize(0);
+    cookie = core.login(Arrays.copyOf(registration.data, registration.data.length),
+        "password".toCharArray());
+    assertEquals(5, ((TestNoUser) core.getNoUser(cookie)).getMoney());
+    core.shred(cookie);
+
+    /* Byte sets left in the pool by a confirmed save wait for the next login. */
+    core.setByteSetPageSize(3);
+    cookie = core.login(Arrays.copyOf(registration.data, registration.data.length),
+        "password".toCharArray());
+    byte[] file = core.save(cookie, "password".toCharArray());
+    core.confirm(cookie, "password".toCharArray(), Arrays.copyOf(file, file.length));
+    cookie = core.login(file, "password".toCharArray());
+    assertEquals(5, ((TestNoUser) core.getNoUser(cookie)).getMoney());
+    assertFalse(core.applyIncoming(cookie));
+    core.shred(cookie);
+
+    try {
+      core.setByteSetPageSize(-1);
+      fail("Allowed a negative page size without thrown exception.");
+    } catch (IllegalArgumentException e) {
+      // Do nothing, correct
+    }
+  }
+
+  @Test
+  public void testLoginPagedBadByteSet() throws NoSessionExpiredException,
+      NoSessionConfirmedException, NoSessionNotAwaitingConfirmationException,
+      NoUserNotValidException, NoUserAlreadyOnlineException, NoServerBusyException,
+      NoAdapterException {
+    NoAdapter adapter = new NoDefaultAdapter();
+    NoCore core = new NoCore(adapter, TestNoUser.class);
+    core.setByteSetPageSize(2);
+    TestNoUser user = new TestNoUser("Test");
+    NoRegister registration = core.register(user, "password".toCharArray());
+    core.confirm(registration.cookie, "password".toCharArray(),
+        Arrays.copyOf(registration.data, registration.data.length));
+    for (int x = 0; x < 5; x++) {
+      NoByteSet byteSet = new TestIncreaseMoney(1).getByteSet(user.getRsaPublicKey());
+      if (x == 3) {
+        byteSet = new NoByteSet(byteSet.key, new byte[] {1, 2, 3});
+      }
+      adapter.addNoByteSet(byteSet, user.getFingerprint());
+    }
+
+    byte[] cookie = core.login(Arrays.copyOf(registration.data, registration.data.length),
+        "password".toCharArray());
+    assertEquals(2, ((TestNoUser) adapter.getNoSession(cookie).getNoUserSafe()).getMoney());
+    try {
+      core.applyIncoming(cookie);
+      fail("Applied a bad byte set without thrown exception.");
+    } catch (NoDashFatalException e) {
+      // Do nothing, correct
+    }
+
+    /* The byte set applied before the bad one stays with the session, and no more are taken. */
+    assertEquals(3, ((TestNoUser) core.getNoUser(cookie)).getMoney());
+    assertFalse(core.applyIncoming(cookie));
+
+    /* Shredding returns what the session took; no byte set is in the pool twice. */
+    core.shred(cookie);
+    List<NoByteSet> pool = adapter.pollNoByteSets(user.getFingerprint());
+    assertEquals(5, pool.size());
+    int bad = 0;
+    for (NoByteSet byteSet : pool) {
+      if (byteSet.data.length == 3) {
+        bad++;
+      }
+    }
+    assertEquals(1, bad);
+  }
 }
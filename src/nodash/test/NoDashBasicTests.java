@@ -22,7 +22,9 @@ import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
-@SuiteClasses({NoCoreTest.class, NoSessionTest.class, NoUserTest.class, NoUtilTest.class})
+@SuiteClasses({NoCoreTest.class, NoSessionTest.class, NoUserTest.class, NoUtilTest.class,
+    NoHashStoreTest.class, NoTimerWheelTest.class, NoSessionStoreTest.class,
+    NoPassivatingAdapterTest.class, NoKeyPairPoolTest.class, NoMailboxTest.class})
 public class NoDashBasicTests {
 
 }
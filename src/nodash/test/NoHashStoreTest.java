@@ -0,0 +1,801 @@
+/*
+ * Copyright 2014 David Horscroft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Tests for the NoHashStore implementations used by the NoDefaultAdapter.
+ */
+
+package nodash.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nodash.core.NoCuckooFilter;
+import nodash.core.NoFilteredHashStore;
+import nodash.core.NoHashStore;
+import nodash.core.NoJournaledHashStore;
+import nodash.core.NoMappedHashStore;
+import nodash.core.NoMemoryHashStore;
+import nodash.core.NoOffHeapHashSet;
+import nodash.core.NoPresenceSet;
+import nodash.core.NoShardedHashStore;
+import nodash.core.NoUtil;
+
+import org.junit.Test;
+
+public class NoHashStoreTest {
+
+  private static byte[] hash(String seed) {
+    return NoUtil.getHashFromByteArray(NoUtil.toBytes(seed));
+  }
+
+  private static File tempFile() throws IOException {
+    File file = File.createTempFile("nosystem", ".hash");
+    file.delete();
+    file.deleteOnExit();
+    new File(file.getPath() + ".journal").deleteOnExit();
+    return file;
+  }
+
+  @Test
+  public void testMappedInsertContainsRemove() throws IOException {
+    NoHashStore store = new NoMappedHashStore(tempFile());
+    assertEquals(0, store.count());
+    assertFalse(store.contains(hash("a")));
+
+    assertTrue(store.insert(hash("a")));
+    assertTrue(store.insert(hash("b")));
+    assertTrue(store.insert(hash("c")));
+    assertFalse(store.insert(hash("b")));
+    assertEquals(3, store.count());
+    assertTrue(store.contains(hash("a")));
+    assertTrue(store.contains(hash("b")));
+    assertTrue(store.contains(hash("c")));
+    assertFalse(store.contains(hash("d")));
+    assertFalse(store.contains(new byte[] {1, 2, 3}));
+
+    assertTrue(store.remove(hash("b")));
+    assertFalse(store.remove(hash("b")));
+    assertFalse(store.contains(hash("b")));
+    assertEquals(2, store.count());
+
+    try {
+      store.insert(new byte[] {1, 2, 3});
+      fail("Inserted a hash of the wrong length.");
+    } catch (IllegalArgumentException e) {
+      // Do nothing, correct
+    }
+  }
+
+  @Test
+  public void testMappedReopen() throws IOException {
+    File file = tempFile();
+    NoHashStore store = new NoMappedHashStore(file);
+    for (int x = 0; x < 100; x++) {
+      store.insert(hash("user" + x));
+    }
+    store.remove(hash("user50"));
+
+    NoHashStore reopened = new NoMappedHashStore(file);
+    assertEquals(99, reopened.count());
+    assertTrue(reopened.contains(hash("user0")));
+    assertTrue(reopened.contains(hash("user99")));
+    assertFalse(reopened.contains(hash("user50")));
+    assertEquals(99 * NoHashStore.HASH_LENGTH, file.length());
+  }
+
+  @Test
+  public void testMappedSortsLegacyFile() throws IOException {
+    File file = tempFile();
+    byte[] legacy = new byte[3 * NoHashStore.HASH_LENGTH];
+    byte[] high = hash("high");
+    byte[] low = hash("low");
+    high[0] = (byte) 0xFF;
+    low[0] = 0x00;
+    System.arraycopy(high, 0, legacy, 0, high.length);
+    System.arraycopy(low, 0, legacy, NoHashStore.HASH_LENGTH, low.length);
+    System.arraycopy(high, 0, legacy, 2 * NoHashStore.HASH_LENGTH, high.length);
+    Files.write(file.toPath(), legacy);
+
+    NoHashStore store = new NoMappedHashStore(file);
+    assertEquals(2, store.count());
+    assertTrue(store.contains(high));
+    assertTrue(store.contains(low));
+    byte[][] exported = store.export();
+    assertTrue(Arrays.equals(low, exported[0]));
+    assertTrue(Arrays.equals(high, exported[1]));
+  }
+
+  @Test
+  public void testJournaledInsertContainsRemove() throws IOException {
+    File file = tempFile();
+    NoJournaledHashStore store = new NoJournaledHashStore(file);
+    assertTrue(store.insert(hash("a")));
+    assertTrue(store.insert(hash("b")));
+    assertFalse(store.insert(hash("a")));
+    assertTrue(store.contains(hash("a")));
+    assertEquals(2, store.count());
+    assertEquals(0, file.length());
+
+    store.compact();
+    assertEquals(2 * NoHashStore.HASH_LENGTH, file.length());
+    assertTrue(store.contains(hash("a")));
+    assertTrue(store.contains(hash("b")));
+
+    assertTrue(store.remove(hash("a")));
+    assertFalse(store.remove(hash("a")));
+    assertFalse(store.contains(hash("a")));
+    assertEquals(1, store.count());
+    assertEquals(1, store.export().length);
+    assertTrue(Arrays.equals(hash("b"), store.export()[0]));
+
+    assertTrue(store.insert(hash("a")));
+    assertTrue(store.contains(hash("a")));
+    assertEquals(2, store.count());
+  }
+
+  @Test
+  public void testJournaledReplay() throws IOException {
+    File file = tempFile();
+    NoJournaledHashStore store = new NoJournaledHashStore(file);
+    store.insert(hash("a"));
+    store.insert(hash("b"));
+    store.compact();
+    store.remove(hash("a"));
+    store.insert(hash("c"));
+
+    NoJournaledHashStore reopened = new NoJournaledHashStore(file);
+    assertEquals(2, reopened.count());
+    assertFalse(reopened.contains(hash("a")));
+    assertTrue(reopened.contains(hash("b")));
+    assertTrue(reopened.contains(hash("c")));
+    assertEquals(2 * NoHashStore.HASH_LENGTH, file.length());
+    assertFalse(new File(file.getPath() + ".journal.compacting").exists());
+  }
+
+  @Test
+  public void testJournaledBackgroundCompaction() throws IOException, InterruptedException {
+    File file = tempFile();
+    NoJournaledHashStore store = new NoJournaledHashStore(file, 10);
+    for (int x = 0; x < 25; x++) {
+      store.insert(hash("user" + x));
+    }
+    for (int x = 0; x < 100 && file.length() == 0; x++) {
+      Thread.sleep(10);
+    }
+    assertTrue(file.length() > 0);
+    assertEquals(25, store.count());
+    for (int x = 0; x < 25; x++) {
+      assertTrue(store.contains(hash("user" + x)));
+    }
+  }
+
+  @Test
+  public void testJournaledGroupCommit() throws IOException, InterruptedException {
+    File file = tempFile();
+    File journal = new File(file.getPath() + ".journal");
+    final NoJournaledHashStore store =
+        new NoJournaledHashStore(file, 4096, 30, TimeUnit.SECONDS, 4);
+
+    /* Changes are visible once queued, but only written out by a sync. */
+    store.insert(hash("group0"));
+    assertTrue(store.contains(hash("group0")));
+    assertEquals(0, journal.length());
+
+    /* The batch fills long before the commit delay runs out, and goes out in one write. */
+    long start = System.nanoTime();
+    Thread[] writers = new Thread[3];
+    for (int x = 0; x < writers.length; x++) {
+      final int writer = x + 1;
+      writers[x] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            store.insert(hash("group" + writer));
+            store.sync();
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      writers[x].start();
+    }
+    store.sync();
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(20));
+    assertEquals(4 * (NoHashStore.HASH_LENGTH + 1), journal.length());
+
+    store.replace(hash("group0"), hash("group4"));
+    store.compact();
+    NoJournaledHashStore reopened = new NoJournaledHashStore(file);
+    assertEquals(4, reopened.count());
+    assertFalse(reopened.contains(hash("group0")));
+    for (int x = 1; x <= 4; x++) {
+      assertTrue(reopened.contains(hash("group" + x)));
+    }
+  }
+
+  @Test
+  public void testOffHeapHashSet() {
+    NoOffHeapHashSet set = new NoOffHeapHashSet();
+    for (int x = 0; x < 5000; x++) {
+      assertTrue(set.add(hash("user" + x)));
+    }
+    assertFalse(set.add(hash("user10")));
+    assertEquals(5000, set.size());
+    assertTrue(set.memoryUsage() <= 5000 * 2 * NoHashStore.HASH_LENGTH / 0.8);
+
+    for (int x = 0; x < 5000; x += 2) {
+      assertTrue(set.remove(hash("user" + x)));
+    }
+    assertFalse(set.remove(hash("user0")));
+    assertEquals(2500, set.size());
+    for (int x = 0; x < 5000; x++) {
+      assertEquals(x % 2 == 1, set.contains(hash("user" + x)));
+    }
+
+    byte[] zero = new byte[NoHashStore.HASH_LENGTH];
+    assertFalse(set.contains(zero));
+    assertTrue(set.add(zero));
+    assertTrue(set.contains(zero));
+    assertEquals(2501, set.size());
+    assertTrue(set.remove(zero));
+    assertFalse(set.contains(zero));
+  }
+
+  @Test
+  public void testOffHeapHashSetRemoveBelow() {
+    NoOffHeapHashSet set = new NoOffHeapHashSet(0, true);
+    for (int x = 0; x < 5000; x++) {
+      assertTrue(set.put(hash("user" + x), x % 4));
+    }
+    assertTrue(set.put(new byte[NoHashStore.HASH_LENGTH], 0));
+    long memory = set.memoryUsage();
+
+    assertEquals(3751, set.removeBelow(3));
+    assertEquals(1250, set.size());
+    for (int x = 0; x < 5000; x++) {
+      assertEquals(x % 4 == 3 ? 3 : -1, set.getValue(hash("user" + x), -1));
+    }
+    assertFalse(set.contains(new byte[NoHashStore.HASH_LENGTH]));
+    assertTrue(set.memoryUsage() < memory);
+    assertEquals(0, set.removeBelow(3));
+  }
+
+  @Test
+  public void testPresenceSet() throws InterruptedException {
+    final NoPresenceSet presence = new NoPresenceSet(8);
+    assertTrue(presence.putIfAbsent(hash("a")));
+    assertFalse(presence.putIfAbsent(hash("a")));
+    assertTrue(presence.contains(hash("a")));
+    assertFalse(presence.contains(hash("b")));
+    assertFalse(presence.contains(new byte[] {1, 2, 3}));
+    assertTrue(presence.remove(hash("a")));
+    assertFalse(presence.remove(hash("a")));
+    assertEquals(0, presence.size());
+
+    /* Of many threads racing to put the same hashes, exactly one wins each. */
+    final byte[][] contested = new byte[100][];
+    for (int x = 0; x < contested.length; x++) {
+      contested[x] = hash("contested" + x);
+    }
+    final AtomicInteger wins = new AtomicInteger();
+    Thread[] racers = new Thread[8];
+    for (int x = 0; x < racers.length; x++) {
+      racers[x] = new Thread() {
+        @Override
+        public void run() {
+          for (byte[] hash : contested) {
+            if (presence.putIfAbsent(hash)) {
+              wins.incrementAndGet();
+            }
+          }
+        }
+      };
+      racers[x].start();
+    }
+    for (Thread racer : racers) {
+      racer.join();
+    }
+    assertEquals(contested.length, wins.get());
+    assertEquals(contested.length, presence.size());
+  }
+
+  @Test
+  public void testPresenceLeases() {
+    NoPresenceSet presence = new NoPresenceSet(8);
+    long now = System.currentTimeMillis();
+
+    /* A lapsed lease does not count, and can be taken over before it is swept. */
+    assertTrue(presence.putIfAbsent(hash("lapsed"), now - 1));
+    assertFalse(presence.contains(hash("lapsed")));
+    assertTrue(presence.putIfAbsent(hash("lapsed"), now + 60000));
+    assertFalse(presence.putIfAbsent(hash("lapsed"), now + 60000));
+    assertTrue(presence.contains(hash("lapsed")));
+
+    assertTrue(presence.putIfAbsent(hash("live"), now + 60000));
+    assertTrue(presence.putIfAbsent(hash("forever")));
+    assertTrue(presence.putIfAbsent(hash("offline"), now + 1000));
+    assertTrue(presence.remove(hash("offline")));
+    assertEquals(3, presence.size());
+
+    assertEquals(0, presence.sweep(now + 30000));
+    assertEquals(3, presence.size());
+    assertEquals(2, presence.sweep(now + 120000));
+    assertEquals(1, presence.size());
+    assertTrue(presence.contains(hash("forever")));
+  }
+
+  @Test
+  public void testMemoryStore() throws IOException {
+    File file = tempFile();
+    NoJournaledHashStore durable = new NoJournaledHashStore(file);
+    durable.insert(hash("a"));
+    durable.insert(hash("b"));
+
+    NoMemoryHashStore store = new NoMemoryHashStore(durable);
+    assertEquals(2, store.count());
+    assertTrue(store.contains(hash("a")));
+    assertTrue(store.insert(hash("c")));
+    assertFalse(store.insert(hash("c")));
+    assertTrue(store.remove(hash("a")));
+    assertFalse(store.remove(hash("a")));
+    assertEquals(2, store.count());
+    assertTrue(durable.contains(hash("c")));
+    assertFalse(durable.contains(hash("a")));
+
+    NoMemoryHashStore reopened = new NoMemoryHashStore(new NoJournaledHashStore(file));
+    assertEquals(2, reopened.count());
+    assertTrue(reopened.contains(hash("b")));
+    assertTrue(reopened.contains(hash("c")));
+    assertFalse(reopened.contains(hash("a")));
+  }
+
+  @Test
+  public void testCuckooFilter() {
+    NoCuckooFilter filter = new NoCuckooFilter(1000);
+    for (int x = 0; x < 1000; x++) {
+      assertTrue(filter.add(hash("user" + x)));
+    }
+    for (int x = 0; x < 1000; x++) {
+      assertTrue(filter.mightContain(hash("user" + x)));
+    }
+    int falsePositives = 0;
+    for (int x = 0; x < 10000; x++) {
+      if (filter.mightContain(hash("stranger" + x))) {
+        falsePositives++;
+      }
+    }
+    assertTrue(falsePositives < 20);
+    assertTrue(filter.falsePositiveRate() > 0 && filter.falsePositiveRate() < 0.001);
+    assertTrue(filter.memoryUsage() > 0);
+
+    for (int x = 0; x < 1000; x += 2) {
+      assertTrue(filter.remove(hash("user" + x)));
+    }
+    assertEquals(500, filter.size());
+    for (int x = 1; x < 1000; x += 2) {
+      assertTrue(filter.mightContain(hash("user" + x)));
+    }
+  }
+
+  @Test
+  public void testFilteredStore() throws IOException {
+    NoFilteredHashStore store =
+        new NoFilteredHashStore(new NoMemoryHashStore(new NoJournaledHashStore(tempFile())));
+    for (int x = 0; x < 200; x++) {
+      assertTrue(store.insert(hash("user" + x)));
+    }
+    assertFalse(store.insert(hash("user0")));
+    assertTrue(store.remove(hash("user0")));
+    assertFalse(store.remove(hash("user0")));
+    assertFalse(store.contains(hash("user0")));
+    for (int x = 1; x < 200; x++) {
+      assertTrue(store.contains(hash("user" + x)));
+    }
+    assertEquals(199, store.count());
+
+    for (int x = 0; x < 1000; x++) {
+      assertFalse(store.contains(hash("stranger" + x)));
+    }
+    assertTrue(store.getRejected() > 990);
+    assertEquals(1001, store.getRejected() + store.getFalsePositives());
+  }
+
+  private static NoShardedHashStore shardedStore(int shardCount) throws IOException {
+    NoHashStore[] shards = new NoHashStore[shardCount];
+    for (int x = 0; x < shardCount; x++) {
+      shards[x] =
+          new NoFilteredHashStore(new NoMemoryHashStore(new NoJournaledHashStore(tempFile())));
+    }
+    return new NoShardedHashStore(shards);
+  }
+
+  @Test
+  public void testShardedStore() throws IOException, InterruptedException {
+    final NoShardedHashStore store = shardedStore(16);
+    assertEquals(16, store.getShardCount());
+    assertEquals(0, store.shardOf(new byte[] {0x0F}));
+    assertEquals(15, store.shardOf(new byte[] {(byte) 0xF0}));
+    assertFalse(store.contains(new byte[] {1, 2, 3}));
+
+    Thread[] writers = new Thread[4];
+    for (int x = 0; x < writers.length; x++) {
+      final int writer = x;
+      writers[x] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int y = 0; y < 100; y++) {
+              store.insert(hash(writer + "-" + y));
+            }
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      writers[x].start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    assertEquals(400, store.count());
+    assertEquals(400, store.export().length);
+    for (int x = 0; x < writers.length; x++) {
+      for (int y = 0; y < 100; y++) {
+        assertTrue(store.contains(hash(x + "-" + y)));
+      }
+    }
+
+    /* Find two hashes in different shards to check a replace which moves between them. */
+    byte[] oldHash = hash("0-0");
+    byte[] newHash = null;
+    for (int x = 0; newHash == null; x++) {
+      byte[] candidate = hash("moved" + x);
+      if (store.shardOf(candidate) != store.shardOf(oldHash)) {
+        newHash = candidate;
+      }
+    }
+    store.replace(oldHash, newHash);
+    assertFalse(store.contains(oldHash));
+    assertTrue(store.contains(newHash));
+    assertEquals(400, store.count());
+
+    try {
+      new NoShardedHashStore(new NoHashStore[3]);
+      fail("Accepted a shard count which is not a power of two.");
+    } catch (IllegalArgumentException e) {
+      // Do nothing, correct
+    }
+  }
+
+  @Test
+  public void testShardedSyncLatency() throws IOException {
+    long delay = 100;
+    NoHashStore[] shards = new NoHashStore[16];
+    for (int x = 0; x < shards.length; x++) {
+      shards[x] = new NoJournaledHashStore(tempFile(), 4096, delay, TimeUnit.MILLISECONDS, 1024);
+    }
+    NoShardedHashStore store = new NoShardedHashStore(shards);
+
+    /* Every other shard has a change waiting on its commit delay. */
+    byte[][] hashes = new byte[shards.length][];
+    for (int x = 0, found = 0; found < shards.length; x++) {
+      byte[] candidate = hash("latency" + x);
+      if (hashes[store.shardOf(candidate)] == null) {
+        hashes[store.shardOf(candidate)] = candidate;
+        found++;
+      }
+    }
+    for (int x = 1; x < shards.length; x++) {
+      store.insert(hashes[x]);
+    }
+
+    /* One insert waits out a single commit delay, not one for every shard. */
+    long start = System.nanoTime();
+    store.insert(hashes[0]);
+    store.sync(hashes[0]);
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    assertTrue("One insert took " + elapsed + "ms to sync.", elapsed < delay * 3);
+  }
+
+  @Test
+  public void testCounts() throws IOException {
+    File[] files = new File[4];
+    NoJournaledHashStore[] journaled = new NoJournaledHashStore[files.length];
+    NoHashStore[] shards = new NoHashStore[files.length];
+    for (int x = 0; x < files.length; x++) {
+      files[x] = tempFile();
+      journaled[x] = new NoJournaledHashStore(files[x], 16);
+      shards[x] = new NoMemoryHashStore(journaled[x]);
+    }
+    NoShardedHashStore store = new NoShardedHashStore(shards);
+    Set<ByteBuffer> expected = new HashSet<ByteBuffer>();
+    for (int x = 0; x < 200; x++) {
+      byte[] hash = hash("count" + (x * 7919 % 60));
+      if (x % 5 == 0) {
+        byte[] newHash = hash("count" + (x % 90));
+        if (!Arrays.equals(hash, newHash)) {
+          store.replace(hash, newHash);
+          expected.remove(ByteBuffer.wrap(hash));
+          expected.add(ByteBuffer.wrap(newHash));
+        }
+      } else if (x % 3 == 0) {
+        assertEquals(expected.remove(ByteBuffer.wrap(hash)), store.remove(hash));
+      } else {
+        assertEquals(expected.add(ByteBuffer.wrap(hash)), store.insert(hash));
+      }
+      assertEquals(expected.size(), store.count());
+    }
+
+    /* Any background compaction is finished before the files are opened again. */
+    for (int x = 0; x < files.length; x++) {
+      journaled[x].compact();
+      shards[x] = new NoMemoryHashStore(new NoJournaledHashStore(files[x], 16));
+    }
+    assertEquals(expected.size(), new NoShardedHashStore(shards).count());
+  }
+
+  private static void checkReplace(NoHashStore store) throws IOException {
+    store.insert(hash("old"));
+    store.insert(hash("other"));
+    store.replace(hash("old"), hash("new"));
+    assertFalse(store.contains(hash("old")));
+    assertTrue(store.contains(hash("new")));
+    assertTrue(store.contains(hash("other")));
+    assertEquals(2, store.count());
+
+    store.replace(hash("missing"), hash("newer"));
+    assertTrue(store.contains(hash("newer")));
+    store.replace(hash("newer"), hash("new"));
+    assertFalse(store.contains(hash("newer")));
+    assertTrue(store.contains(hash("new")));
+    assertEquals(2, store.count());
+
+    try {
+      store.replace(hash("new"), hash("new"));
+      fail("Replaced a hash with itself.");
+    } catch (IllegalArgumentException e) {
+      // Do nothing, correct
+    }
+  }
+
+  @Test
+  public void testReplace() throws IOException {
+    checkReplace(new NoMappedHashStore(tempFile()));
+    checkReplace(new NoJournaledHashStore(tempFile()));
+    checkReplace(
+        new NoFilteredHashStore(new NoMemoryHashStore(new NoJournaledHashStore(tempFile()))));
+    checkReplace(shardedStore(4));
+
+    File file = tempFile();
+    NoJournaledHashStore store = new NoJournaledHashStore(file);
+    store.insert(hash("old"));
+    store.replace(hash("old"), hash("new"));
+    NoJournaledHashStore reopened = new NoJournaledHashStore(file);
+    assertFalse(reopened.contains(hash("old")));
+    assertTrue(reopened.contains(hash("new")));
+  }
+
+  private static void checkStreaming(NoHashStore store) throws IOException {
+    Set<ByteBuffer> exported = new HashSet<ByteBuffer>();
+    for (byte[] hash : store.export()) {
+      exported.add(ByteBuffer.wrap(hash));
+    }
+
+    Set<ByteBuffer> iterated = new HashSet<ByteBuffer>();
+    Iterator<ByteBuffer> iterator = store.iterator();
+    store.insert(hash("late"));
+    while (iterator.hasNext()) {
+      ByteBuffer hash = iterator.next();
+      assertTrue(hash.isReadOnly());
+      assertEquals(NoHashStore.HASH_LENGTH, hash.remaining());
+      assertTrue(iterated.add(hash));
+    }
+    assertEquals(exported, iterated);
+    store.remove(hash("late"));
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    long transferred = store.transferTo(Channels.newChannel(output));
+    byte[] bytes = output.toByteArray();
+    assertEquals(exported.size() * NoHashStore.HASH_LENGTH, transferred);
+    assertEquals(transferred, bytes.length);
+    Set<ByteBuffer> written = new HashSet<ByteBuffer>();
+    for (int x = 0; x < bytes.length; x += NoHashStore.HASH_LENGTH) {
+      written.add(ByteBuffer.wrap(bytes, x, NoHashStore.HASH_LENGTH).slice());
+    }
+    assertEquals(exported, written);
+  }
+
+  @Test
+  public void testStreaming() throws IOException {
+    NoMappedHashStore mapped = new NoMappedHashStore(tempFile());
+    checkStreaming(mapped);
+    for (int x = 0; x < 50; x++) {
+      mapped.insert(hash("mapped" + x));
+    }
+    checkStreaming(mapped);
+
+    /* Folded hashes, journaled adds and journaled removals of folded hashes all show up right. */
+    NoJournaledHashStore journaled = new NoJournaledHashStore(tempFile());
+    for (int x = 0; x < 50; x++) {
+      journaled.insert(hash("journaled" + x));
+    }
+    journaled.compact();
+    for (int x = 0; x < 50; x += 3) {
+      journaled.remove(hash("journaled" + x));
+    }
+    for (int x = 50; x < 60; x++) {
+      journaled.insert(hash("journaled" + x));
+    }
+    assertEquals(43, journaled.export().length);
+    checkStreaming(journaled);
+
+    NoShardedHashStore sharded = shardedStore(4);
+    for (int x = 0; x < 50; x++) {
+      sharded.insert(hash("sharded" + x));
+    }
+    sharded.remove(hash("sharded0"));
+    checkStreaming(sharded);
+  }
+
+  /* A shard which dies on its next write, as if the process had crashed just before it. */
+  private static final class CrashingHashStore implements NoHashStore {
+    private final NoHashStore delegate;
+
+    private CrashingHashStore(NoHashStore delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public boolean contains(byte[] hash) throws IOException {
+      return delegate.contains(hash);
+    }
+
+    @Override
+    public boolean insert(byte[] hash) throws IOException {
+      throw new IOException("Crashed before the insert.");
+    }
+
+    @Override
+    public boolean remove(byte[] hash) throws IOException {
+      throw new IOException("Crashed before the remove.");
+    }
+
+    @Override
+    public void replace(byte[] oldHash, byte[] newHash) throws IOException {
+      throw new IOException("Crashed before the replace.");
+    }
+
+    @Override
+    public void sync() throws IOException {
+      delegate.sync();
+    }
+
+    @Override
+    public long count() throws IOException {
+      return delegate.count();
+    }
+
+    @Override
+    public byte[][] export() throws IOException {
+      return delegate.export();
+    }
+
+    @Override
+    public Iterator<ByteBuffer> iterator() throws IOException {
+      return delegate.iterator();
+    }
+
+    @Override
+    public long transferTo(WritableByteChannel target) throws IOException {
+      return delegate.transferTo(target);
+    }
+  }
+
+  /*
+   * Runs a replace from shard 0 to shard 1 with the given shard crashing, then opens every file
+   * again as a restarted process would.
+   */
+  private static NoShardedHashStore crashReplace(byte[] oldHash, byte[] newHash, int crashing)
+      throws IOException {
+    File[] files = {tempFile(), tempFile()};
+    NoHashStore[] shards = new NoHashStore[files.length];
+    for (int x = 0; x < files.length; x++) {
+      shards[x] = new NoJournaledHashStore(files[x]);
+    }
+    NoShardedHashStore store = new NoShardedHashStore(shards);
+    store.insert(oldHash);
+    store.insert(hash("bystander"));
+
+    shards[crashing] = new CrashingHashStore(shards[crashing]);
+    try {
+      new NoShardedHashStore(shards).replace(oldHash, newHash);
+      fail("Replaced through a crashing shard.");
+    } catch (IOException e) {
+      // Do nothing, correct
+    }
+
+    for (int x = 0; x < files.length; x++) {
+      shards[x] = new NoJournaledHashStore(files[x]);
+    }
+    return new NoShardedHashStore(shards);
+  }
+
+  @Test
+  public void testShardedReplaceCrash() throws IOException {
+    byte[] oldHash = null;
+    byte[] newHash = null;
+    for (int x = 0; oldHash == null || newHash == null; x++) {
+      byte[] candidate = hash("crash" + x);
+      if (candidate[0] >= 0 && oldHash == null) {
+        oldHash = candidate;
+      } else if (candidate[0] < 0 && newHash == null) {
+        newHash = candidate;
+      }
+    }
+
+    /* Crashing between the two shard journals leaves the new hash in and the old one out. */
+    NoShardedHashStore store = crashReplace(oldHash, newHash, 0);
+    assertFalse(store.contains(oldHash));
+    assertTrue(store.contains(newHash));
+    assertTrue(store.contains(hash("bystander")));
+    assertEquals(2, store.count());
+
+    /* Crashing before either shard is touched leaves the old hash alone. */
+    store = crashReplace(oldHash, newHash, 1);
+    assertTrue(store.contains(oldHash));
+    assertFalse(store.contains(newHash));
+    assertEquals(2, store.count());
+  }
+
+  @Test
+  public void testJournaledReplacementKept() throws IOException {
+    File file = tempFile();
+    NoJournaledHashStore store = new NoJournaledHashStore(file);
+    assertTrue(store.insertReplacing(hash("old"), hash("new")));
+    assertFalse(store.contains(hash("old")));
+    assertTrue(store.contains(hash("new")));
+
+    /* An unreleased replacement survives a compaction and a reopen. */
+    store.compact();
+    store = new NoJournaledHashStore(file);
+    assertEquals(1, store.pendingReplacements().size());
+    assertArrayEquals(hash("old"), store.pendingReplacements().get(0)[0]);
+    assertArrayEquals(hash("new"), store.pendingReplacements().get(0)[1]);
+    assertEquals(1, store.count());
+
+    /* A released one is dropped by the next compaction. */
+    store.releaseReplacement(hash("new"));
+    assertTrue(store.pendingReplacements().isEmpty());
+    store.insert(hash("other"));
+    store.compact();
+    store = new NoJournaledHashStore(file);
+    assertTrue(store.pendingReplacements().isEmpty());
+    assertEquals(2, store.count());
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 David Horscroft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Tests for the NoKeyPairPool used by NoUser.
+ */
+
+package nodash.test;
+
+import static org.junit.Assert.*;
+
+import java.security.KeyPair;
+
+import nodash.core.NoKeyPairPool;
+
+import org.junit.Test;
+
+public class NoKeyPairPoolTest {
+
+  @Test
+  public void testPooled() throws InterruptedException {
+    NoKeyPairPool pool = new NoKeyPairPool(2);
+    assertEquals(2, pool.getDepth());
+    long deadline = System.currentTimeMillis() + 60000;
+    while (pool.size() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(2, pool.size());
+
+    KeyPair first = pool.take();
+    KeyPair second = pool.take();
+    assertNotNull(first);
+    assertNotNull(second);
+    assertNotEquals(first.getPublic(), second.getPublic());
+    assertEquals(2, pool.getHits());
+    assertTrue(pool.getGenerated() >= 2);
+    assertTrue(pool.getAverageGenerationMillis() > 0);
+  }
+
+  @Test
+  public void testClose() throws InterruptedException {
+    NoKeyPairPool pool = new NoKeyPairPool(1);
+    long deadline = System.currentTimeMillis() + 60000;
+    while (pool.size() < 1 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, pool.size());
+
+    /*
+     * A closed pool is emptied and never refilled, but still hands out key pairs. A key pair
+     * already being generated is finished, and then dropped.
+     */
+    pool.close();
+    assertEquals(0, pool.size());
+    Thread.sleep(500);
+    long generated = pool.getGenerated();
+    Thread.sleep(500);
+    assertEquals(0, pool.size());
+    assertEquals(generated, pool.getGenerated());
+
+    assertNotNull(pool.take());
+    assertEquals(0, pool.getHits());
+    assertEquals(1, pool.getMisses());
+    pool.close();
+  }
+
+  @Test
+  public void testUnpooled() {
+    NoKeyPairPool pool = new NoKeyPairPool(0);
+    assertEquals(0, pool.size());
+    assertEquals(0, pool.getAverageGenerationMillis(), 0);
+
+    assertNotNull(pool.take());
+    assertEquals(0, pool.getHits());
+    assertEquals(1, pool.getMisses());
+    assertEquals(1, pool.getGenerated());
+
+    try {
+      new NoKeyPairPool(-1);
+      fail("Allowed a negative depth without thrown exception.");
+    } catch (IllegalArgumentException e) {
+      // Do nothing, correct
+    }
+  }
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright 2014 David Horscroft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Tests for the mailboxes which hold NoByteSets until their recipient logs in.
+ */
+
+package nodash.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import nodash.core.NoBoundedMailbox;
+import nodash.core.NoMailbox;
+import nodash.core.NoMailboxRetention;
+import nodash.core.NoMemoryMailbox;
+import nodash.core.NoSegmentMailbox;
+import nodash.models.NoByteSet;
+import nodash.models.NoFingerprint;
+
+import org.junit.Test;
+
+public class NoMailboxTest {
+  /* The length of a segment record holding one of the byte sets below. */
+  private static final int RECORD_LENGTH = 1 + 8 + 8 + NoFingerprint.LENGTH + 4 + 4 + 1 + 2;
+
+  private static NoByteSet byteSet(int value) {
+    return new NoByteSet(new byte[] {(byte) value}, new byte[] {(byte) (value >>> 8),
+        (byte) value});
+  }
+
+  private static NoFingerprint address(int value) {
+    byte[] bytes = new byte[NoFingerprint.LENGTH];
+    bytes[0] = (byte) value;
+    return NoFingerprint.fromBytes(bytes);
+  }
+
+  private static File segmentDirectory() throws IOException {
+    File directory = Files.createTempDirectory("nosystem").toFile();
+    directory.deleteOnExit();
+    return directory;
+  }
+
+  private static void assertDrained(List<NoByteSet> drained, int... values) {
+    assertEquals(values.length, drained.size());
+    for (int x = 0; x < values.length; x++) {
+      assertArrayEquals(byteSet(values[x]).key, drained.get(x).key);
+      assertArrayEquals(byteSet(values[x]).data, drained.get(x).data);
+    }
+  }
+
+  @Test
+  public void testMemoryMailboxOrder() {
+    NoMemoryMailbox<String> mailbox = new NoMemoryMailbox<String>();
+    assertTrue(mailbox.drain("a").isEmpty());
+
+    mailbox.add("a", byteSet(1));
+    mailbox.addAll("a", Arrays.asList(byteSet(2), byteSet(3)));
+    mailbox.add("a", byteSet(4));
+    mailbox.add("b", byteSet(5));
+    assertEquals(2, mailbox.addressCount());
+
+    List<NoByteSet> drained = mailbox.drain("a");
+    assertEquals(4, drained.size());
+    for (int x = 0; x < drained.size(); x++) {
+      assertArrayEquals(new byte[] {(byte) (x + 1)}, drained.get(x).key);
+    }
+    assertTrue(mailbox.drain("a").isEmpty());
+    assertEquals(1, mailbox.addressCount());
+
+    mailbox.add("a", byteSet(6));
+    assertEquals(1, mailbox.drain("a").size());
+    assertEquals(1, mailbox.drain("b").size());
+    assertEquals(0, mailbox.addressCount());
+  }
+
+  @Test
+  public void testMemoryMailboxConcurrent() throws InterruptedException {
+    final NoMemoryMailbox<String> mailbox = new NoMemoryMailbox<String>();
+    final int writers = 4;
+    final int perWriter = 5000;
+    Thread[] threads = new Thread[writers];
+    for (int x = 0; x < writers; x++) {
+      final int writer = x;
+      threads[x] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int y = 0; y < perWriter; y++) {
+            mailbox.add("address", byteSet(writer * perWriter + y));
+          }
+        }
+      });
+      threads[x].start();
+    }
+
+    /* Drains race the writers; every byte set must come out exactly once. */
+    List<NoByteSet> received = new ArrayList<NoByteSet>();
+    boolean running = true;
+    while (running) {
+      running = false;
+      for (Thread thread : threads) {
+        running |= thread.isAlive();
+      }
+      received.addAll(mailbox.drain("address"));
+    }
+    received.addAll(mailbox.drain("address"));
+
+    assertEquals(writers * perWriter, received.size());
+    Set<Integer> seen = new HashSet<Integer>();
+    for (NoByteSet byteSet : received) {
+      seen.add(((byteSet.data[0] & 0xFF) << 8 | (byteSet.data[1] & 0xFF)));
+    }
+    assertEquals(writers * perWriter, seen.size());
+  }
+
+  @Test
+  public void testMemoryMailboxPagedConcurrent() throws InterruptedException {
+    final NoMemoryMailbox<String> mailbox = new NoMemoryMailbox<String>();
+    final int writers = 4;
+    final int perWriter = 5000;
+    Thread[] threads = new Thread[writers];
+    for (int x = 0; x < writers; x++) {
+      final int writer = x;
+      threads[x] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int y = 0; y < perWriter; y++) {
+            mailbox.add("address", byteSet(writer * perWriter + y));
+          }
+        }
+      });
+      threads[x].start();
+    }
+
+    /* Paged drains race the writers; every writer's byte sets must come out once and in order. */
+    List<NoByteSet> received = new ArrayList<NoByteSet>();
+    boolean running = true;
+    while (running) {
+      running = false;
+      for (Thread thread : threads) {
+        running |= thread.isAlive();
+      }
+      received.addAll(mailbox.drain("address", 7));
+    }
+    List<NoByteSet> page = mailbox.drain("address", 7);
+    while (!page.isEmpty()) {
+      received.addAll(page);
+      page = mailbox.drain("address", 7);
+    }
+    assertEquals(0, mailbox.addressCount());
+
+    assertEquals(writers * perWriter, received.size());
+    int[] next = new int[writers];
+    for (NoByteSet byteSet : received) {
+      int value = (byteSet.data[0] & 0xFF) << 8 | (byteSet.data[1] & 0xFF);
+      assertEquals(next[value / perWriter]++, value % perWriter);
+    }
+  }
+
+  @Test
+  public void testSegmentMailboxReopen() throws IOException {
+    File directory = segmentDirectory();
+    NoSegmentMailbox mailbox = new NoSegmentMailbox(directory);
+    assertTrue(mailbox.drain(address(1)).isEmpty());
+
+    mailbox.add(address(1), byteSet(1));
+    mailbox.addAll(address(1), Arrays.asList(byteSet(2), byteSet(3)));
+    mailbox.add(address(2), byteSet(4));
+    mailbox.add(address(2), new NoByteSet(null, new byte[0]));
+    mailbox.sync();
+    assertEquals(2, mailbox.addressCount());
+    assertDrained(mailbox.drain(address(1)), 1, 2, 3);
+
+    /* Only what was not drained is read back. */
+    mailbox = new NoSegmentMailbox(directory);
+    assertEquals(1, mailbox.addressCount());
+    assertTrue(mailbox.drain(address(1)).isEmpty());
+    mailbox.add(address(2), byteSet(5));
+    List<NoByteSet> drained = mailbox.drain(address(2));
+    assertEquals(3, drained.size());
+    assertArrayEquals(byteSet(4).data, drained.get(0).data);
+    assertNull(drained.get(1).key);
+    assertEquals(0, drained.get(1).data.length);
+    assertArrayEquals(byteSet(5).data, drained.get(2).data);
+    assertEquals(0, mailbox.addressCount());
+  }
+
+  @Test
+  public void testSegmentMailboxCompaction() throws IOException {
+    File directory = segmentDirectory();
+    NoSegmentMailbox mailbox = new NoSegmentMailbox(directory, 4 * RECORD_LENGTH, 0.5);
+    for (int x = 0; x < 12; x++) {
+      mailbox.add(address(x % 3), byteSet(x));
+    }
+    assertEquals(3, mailbox.segmentCount());
+
+    /* The first two segments are left with one live record each, which move to a fourth. */
+    assertDrained(mailbox.drain(address(0)), 0, 3, 6, 9);
+    assertDrained(mailbox.drain(address(1)), 1, 4, 7, 10);
+    mailbox.compact();
+    assertEquals(2, mailbox.segmentCount());
+
+    /* Emptying a sealed segment deletes it without a compaction. */
+    assertDrained(mailbox.drain(address(2)), 2, 5, 8, 11);
+    assertEquals(1, mailbox.segmentCount());
+    assertEquals(0, new NoSegmentMailbox(directory).addressCount());
+  }
+
+  @Test
+  public void testSegmentMailboxCompactionKeepsOrder() throws IOException {
+    File directory = segmentDirectory();
+    NoSegmentMailbox mailbox = new NoSegmentMailbox(directory, 4 * RECORD_LENGTH, 0.9);
+    for (int x = 0; x < 8; x++) {
+      mailbox.add(address(x == 0 ? 1 : 2), byteSet(x));
+    }
+    mailbox.add(address(1), byteSet(8));
+    /* The first segment is left a quarter live, so its one record moves after the newer ones. */
+    mailbox.drain(address(2));
+    mailbox.add(address(2), byteSet(9));
+    mailbox.compact();
+    assertEquals(1, mailbox.segmentCount());
+
+    assertDrained(mailbox.drain(address(2)), 9);
+    /* Read back from the file, the moved record is still ordered by its sequence number. */
+    assertDrained(new NoSegmentMailbox(directory).drain(address(1)), 0, 8);
+  }
+
+  @Test
+  public void testSegmentMailboxCompactionSpillsOver() throws IOException {
+    File directory = segmentDirectory();
+    NoSegmentMailbox mailbox = new NoSegmentMailbox(directory, 4 * RECORD_LENGTH, 0.9);
+    for (int x = 0; x < 7; x++) {
+      mailbox.add(address(x == 1 || x == 2 ? 3 : x < 4 ? 1 : 2), byteSet(x));
+    }
+    /* The active segment has room for one of the two moved records; the other seals it. */
+    mailbox.drain(address(3));
+    mailbox.compact();
+    assertEquals(2, mailbox.segmentCount());
+
+    NoSegmentMailbox reopened = new NoSegmentMailbox(directory);
+    assertDrained(reopened.drain(address(1)), 0, 3);
+    assertDrained(reopened.drain(address(2)), 4, 5, 6);
+  }
+
+  @Test
+  public void testBoundedMailboxAddressLimits() {
+    NoMailboxRetention retention = new NoMailboxRetention(NoMailboxRetention.NO_LIMIT, 3,
+        NoMailboxRetention.NO_LIMIT, NoMailboxRetention.NO_LIMIT);
+    NoBoundedMailbox<String> mailbox = new NoBoundedMailbox<String>(retention);
+    for (int x = 0; x < 5; x++) {
+      mailbox.add("spammed", byteSet(x));
+    }
+    mailbox.addAll("quiet", Arrays.asList(byteSet(5), byteSet(6)));
+    assertEquals(2, retention.getEvictedForAddress());
+    assertDrained(mailbox.drain("spammed"), 2, 3, 4);
+    assertDrained(mailbox.drain("quiet"), 5, 6);
+
+    /* Each byte set below is three bytes, so seven bytes holds two of them. */
+    retention = new NoMailboxRetention(NoMailboxRetention.NO_LIMIT, NoMailboxRetention.NO_LIMIT, 7,
+        NoMailboxRetention.NO_LIMIT);
+    mailbox = new NoBoundedMailbox<String>(retention);
+    mailbox.addAll("spammed", Arrays.asList(byteSet(0), byteSet(1), byteSet(2), byteSet(3)));
+    assertEquals(2, retention.getEvictedForAddress());
+    assertEquals(6, mailbox.totalBytes());
+    assertDrained(mailbox.drain("spammed"), 2, 3);
+    assertEquals(0, mailbox.totalBytes());
+  }
+
+  @Test
+  public void testBoundedMailboxBudget() {
+    NoMailboxRetention retention = new NoMailboxRetention(NoMailboxRetention.NO_LIMIT,
+        NoMailboxRetention.NO_LIMIT, NoMailboxRetention.NO_LIMIT, 4 * 3);
+    NoBoundedMailbox<String> mailbox = new NoBoundedMailbox<String>(retention);
+    mailbox.add("a", byteSet(0));
+    mailbox.add("b", byteSet(1));
+    mailbox.add("a", byteSet(2));
+    mailbox.add("b", byteSet(3));
+    assertDrained(mailbox.drain("b"), 1, 3);
+
+    /* The budget evicts the oldest byte sets of any address, skipping those already drained. */
+    mailbox.add("c", byteSet(4));
+    mailbox.add("c", byteSet(5));
+    mailbox.add("c", byteSet(6));
+    assertEquals(1, retention.getEvictedForBudget());
+    assertEquals(12, mailbox.totalBytes());
+    assertDrained(mailbox.drain("a"), 2);
+    assertDrained(mailbox.drain("c"), 4, 5, 6);
+    assertEquals(0, mailbox.addressCount());
+  }
+
+  @Test
+  public void testBoundedMailboxMaxAge() throws InterruptedException {
+    NoMailboxRetention retention = new NoMailboxRetention(60 * 1000, NoMailboxRetention.NO_LIMIT,
+        NoMailboxRetention.NO_LIMIT, NoMailboxRetention.NO_LIMIT);
+    NoBoundedMailbox<String> mailbox = new NoBoundedMailbox<String>(retention);
+    mailbox.add("a", byteSet(0));
+    mailbox.add("b", byteSet(1));
+    assertEquals(0, mailbox.sweep(System.currentTimeMillis()));
+    assertEquals(2, mailbox.sweep(System.currentTimeMillis() + 60 * 1000));
+    assertEquals(2, retention.getExpired());
+    assertEquals(0, mailbox.addressCount());
+    assertTrue(mailbox.drain("a").isEmpty());
+
+    /* Byte sets which expire before a sweep reaches them are dropped by the drain. */
+    retention = new NoMailboxRetention(1, NoMailboxRetention.NO_LIMIT,
+        NoMailboxRetention.NO_LIMIT, NoMailboxRetention.NO_LIMIT);
+    mailbox = new NoBoundedMailbox<String>(retention);
+    mailbox.add("a", byteSet(0));
+    Thread.sleep(10);
+    assertTrue(mailbox.drain("a").isEmpty());
+    assertEquals(1, retention.getExpired());
+  }
+
+  @Test
+  public void testSegmentMailboxRetention() throws IOException {
+    File directory = segmentDirectory();
+    NoMailboxRetention retention = new NoMailboxRetention(60 * 1000, 3,
+        NoMailboxRetention.NO_LIMIT, 5 * 3);
+    NoSegmentMailbox mailbox = new NoSegmentMailbox(directory, 4 * RECORD_LENGTH, 0.5, retention);
+    for (int x = 0; x < 5; x++) {
+      mailbox.add(address(1), byteSet(x));
+    }
+    assertEquals(2, retention.getEvictedForAddress());
+    mailbox.addAll(address(2), Arrays.asList(byteSet(5), byteSet(6), byteSet(7)));
+    assertEquals(1, retention.getEvictedForBudget());
+    assertEquals(15, mailbox.totalBytes());
+    assertEquals(0, mailbox.sweep(System.currentTimeMillis()));
+
+    /* Lower limits are applied to the records read back. */
+    retention = new NoMailboxRetention(60 * 1000, 2, NoMailboxRetention.NO_LIMIT,
+        NoMailboxRetention.NO_LIMIT);
+    NoSegmentMailbox reopened = new NoSegmentMailbox(directory, 4 * RECORD_LENGTH, 0.5, retention);
+    assertEquals(1, retention.getEvictedForAddress());
+    assertDrained(reopened.drain(address(2)), 6, 7);
+    assertEquals(6, reopened.totalBytes());
+    assertEquals(2, reopened.sweep(System.currentTimeMillis() + 60 * 1000));
+    assertEquals(0, reopened.addressCount());
+    assertEquals(0, reopened.totalBytes());
+  }
+
+  @Test
+  public void testRequeueKeepsArrival() throws IOException, InterruptedException {
+    List<NoMailboxRetention> retentions = new ArrayList<NoMailboxRetention>();
+    List<NoMailbox<NoFingerprint>> mailboxes = new ArrayList<NoMailbox<NoFingerprint>>();
+    retentions.add(new NoMailboxRetention(60 * 1000, NoMailboxRetention.NO_LIMIT,
+        NoMailboxRetention.NO_LIMIT, 3 * 3));
+    mailboxes.add(new NoBoundedMailbox<NoFingerprint>(retentions.get(0)));
+    retentions.add(new NoMailboxRetention(60 * 1000, NoMailboxRetention.NO_LIMIT,
+        NoMailboxRetention.NO_LIMIT, 3 * 3));
+    mailboxes.add(new NoSegmentMailbox(segmentDirectory(), 4 * RECORD_LENGTH, 0.5,
+        retentions.get(1)));
+    for (int x = 0; x < mailboxes.size(); x++) {
+      NoMailboxRetention retention = retentions.get(x);
+      NoMailbox<NoFingerprint> mailbox = mailboxes.get(x);
+
+      /* A byte set drained and added back goes ahead of the one which arrived after it. */
+      mailbox.add(address(1), byteSet(0));
+      List<NoByteSet> taken = mailbox.drain(address(1));
+      Thread.sleep(10);
+      mailbox.add(address(1), byteSet(1));
+      mailbox.add(address(2), byteSet(2));
+      mailbox.addAll(address(1), taken);
+
+      /* It is also the first to go when the budget is exceeded. */
+      mailbox.add(address(2), byteSet(3));
+      assertEquals(1, retention.getEvictedForBudget());
+      assertDrained(mailbox.drain(address(1)), 1);
+
+      /* A byte set which arrived long ago expires when added back, rather than starting over. */
+      taken = mailbox.drain(address(2));
+      assertDrained(taken, 2, 3);
+      taken.get(0).pooled = System.currentTimeMillis() - 2 * 60 * 1000;
+      mailbox.addAll(address(2), taken);
+      assertEquals(1, mailbox.sweep(System.currentTimeMillis()));
+      assertEquals(1, retention.getExpired());
+      assertDrained(mailbox.drain(address(2)), 3);
+      assertEquals(0, mailbox.addressCount());
+    }
+  }
+
+  @Test
+  public void testPartialDrain() throws IOException {
+    List<NoMailbox<NoFingerprint>> mailboxes = new ArrayList<NoMailbox<NoFingerprint>>();
+    mailboxes.add(new NoMemoryMailbox<NoFingerprint>());
+    mailboxes.add(new NoBoundedMailbox<NoFingerprint>(NoMailboxRetention.unlimited()));
+    mailboxes.add(new NoSegmentMailbox(segmentDirectory(), 4 * RECORD_LENGTH, 0.5));
+    for (NoMailbox<NoFingerprint> mailbox : mailboxes) {
+      for (int x = 0; x < 5; x++) {
+        mailbox.add(address(1), byteSet(x));
+      }
+      assertDrained(mailbox.drain(address(1), 2), 0, 1);
+      assertDrained(mailbox.drain(address(1), 2), 2, 3);
+      assertEquals(1, mailbox.addressCount());
+      assertDrained(mailbox.drain(address(1), 2), 4);
+      assertEquals(0, mailbox.addressCount());
+      assertTrue(mailbox.drain(address(1), 2).isEmpty());
+
+      try {
+        mailbox.drain(address(1), 0);
+        fail("Allowed a drain of no byte sets without thrown exception.");
+      } catch (IllegalArgumentException e) {
+        // Do nothing, correct
+      }
+    }
+  }
+}
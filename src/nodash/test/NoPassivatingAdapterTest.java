@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 David Horscroft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Tests for the NoPassivatingAdapter.
+ */
+
+package nodash.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import nodash.core.NoAdapter;
+import nodash.core.NoDefaultAdapter;
+import nodash.core.NoPassivatingAdapter;
+import nodash.exceptions.NoAdapterException;
+import nodash.models.NoByteSet;
+import nodash.models.NoSession;
+import nodash.test.functional.implementations.TestNoUser;
+
+import org.junit.Test;
+
+public class NoPassivatingAdapterTest {
+
+  private static File tempDirectory() throws IOException {
+    File directory = Files.createTempDirectory("nosystem").toFile();
+    directory.deleteOnExit();
+    return directory;
+  }
+
+  @Test
+  public void testPassivateAndActivate() throws IOException, NoAdapterException {
+    File directory = tempDirectory();
+    NoAdapter inner = new NoDefaultAdapter();
+    NoPassivatingAdapter adapter = new NoPassivatingAdapter(inner, directory, 1, false);
+    TestNoUser user = new TestNoUser("Passive");
+    NoSession session = new NoSession(user);
+    adapter.addNoSession(session);
+    byte[] cookie = session.getCookie();
+
+    assertEquals(0, adapter.sweep(System.currentTimeMillis() - 1000));
+    assertEquals(1, adapter.sweep(System.currentTimeMillis() + 10));
+    assertEquals(1, adapter.passivatedCount());
+    assertFalse(inner.containsNoSession(cookie));
+    assertEquals(1, directory.listFiles().length);
+
+    NoSession resolved = adapter.resolveNoSession(cookie);
+    assertNotNull(resolved);
+    assertEquals(session.getUuid(), resolved.getUuid());
+    assertEquals("Passive", ((TestNoUser) resolved.getNoUserSafe()).getUsername());
+    assertEquals(0, adapter.passivatedCount());
+    assertTrue(inner.containsNoSession(cookie));
+    assertEquals(0, directory.listFiles().length);
+
+    assertEquals(1, adapter.sweep(System.currentTimeMillis() + 10));
+    assertTrue(adapter.containsNoSession(cookie));
+    assertEquals(0, adapter.passivatedCount());
+
+    assertEquals(1, adapter.sweep(System.currentTimeMillis() + 10));
+    adapter.shredNoSession(cookie);
+    assertEquals(0, directory.listFiles().length);
+    assertNull(adapter.resolveNoSession(cookie));
+  }
+
+  @Test
+  public void testExpirePassivated() throws IOException, NoAdapterException {
+    File directory = tempDirectory();
+    NoAdapter inner = new NoDefaultAdapter();
+    NoPassivatingAdapter adapter = new NoPassivatingAdapter(inner, directory, 1, false);
+    TestNoUser user = new TestNoUser("Expiring");
+    NoSession session = new NoSession(user);
+    List<NoByteSet> incoming = new ArrayList<NoByteSet>();
+    incoming.add(new NoByteSet(new byte[] {1}, new byte[] {2}));
+    session.setIncoming(incoming);
+    adapter.addNoSession(session);
+
+    assertEquals(1, adapter.sweep(System.currentTimeMillis() + 10));
+    assertEquals(0, adapter.sweep(session.getExpiry() + 1));
+    assertEquals(0, adapter.passivatedCount());
+    assertEquals(0, directory.listFiles().length);
+    assertNull(adapter.resolveNoSession(session.getCookie()));
+
+    List<NoByteSet> returned = inner.pollNoByteSets(user.getRsaPublicKey());
+    assertEquals(1, returned.size());
+    assertArrayEquals(new byte[] {2}, returned.get(0).data);
+  }
+
+  @Test
+  public void testClose() throws IOException, InterruptedException, NoAdapterException {
+    NoAdapter inner = new NoDefaultAdapter();
+    NoPassivatingAdapter adapter = new NoPassivatingAdapter(inner, tempDirectory(), 1, true);
+    NoSession session = new NoSession(new TestNoUser("Closing"));
+    adapter.addNoSession(session);
+
+    long deadline = System.currentTimeMillis() + NoPassivatingAdapter.SWEEP_INTERVAL * 10;
+    while (adapter.passivatedCount() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertEquals(1, adapter.passivatedCount());
+
+    /* Once closed, the background sweeps no longer passivate the session again. */
+    adapter.close();
+    assertNotNull(adapter.resolveNoSession(session.getCookie()));
+    Thread.sleep(NoPassivatingAdapter.SWEEP_INTERVAL * 3);
+    assertEquals(0, adapter.passivatedCount());
+    assertTrue(inner.containsNoSession(session.getCookie()));
+    adapter.close();
+  }
+}
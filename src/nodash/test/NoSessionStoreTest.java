@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014 David Horscroft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Tests for the NoSessionStore used by the NoDefaultAdapter.
+ */
+
+package nodash.test;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import nodash.core.NoSessionStore;
+import nodash.models.NoSession;
+import nodash.models.NoUser;
+import nodash.test.functional.implementations.TestNoUser;
+
+import org.junit.Test;
+
+public class NoSessionStoreTest {
+
+  private static ByteBuffer id(String seed) {
+    return ByteBuffer.wrap(seed.getBytes());
+  }
+
+  @Test
+  public void testSessionStore() {
+    NoSessionStore store = new NoSessionStore();
+    NoUser user = new TestNoUser("Test");
+    NoSession first = new NoSession(user);
+    NoSession second = new NoSession(user);
+    NoSession shredded = new NoSession(user);
+
+    assertTrue(store.add(id("first"), first));
+    assertFalse(store.add(id("first"), second));
+    assertTrue(store.add(id("second"), second));
+    assertTrue(store.add(id("shredded"), shredded));
+    assertSame(first, store.get(id("first")));
+    assertNull(store.get(id("missing")));
+    assertSame(shredded, store.remove(id("shredded")));
+    assertEquals(2, store.size());
+
+    /* Nothing is evicted before it expires. */
+    assertTrue(store.sweep(System.currentTimeMillis()).isEmpty());
+    assertEquals(2, store.size());
+
+    List<NoSession> evicted = store.sweep(first.getExpiry() + NoSessionStore.SWEEP_INTERVAL * 2);
+    assertEquals(2, evicted.size());
+    assertTrue(evicted.contains(first));
+    assertTrue(evicted.contains(second));
+    assertFalse(evicted.contains(shredded));
+    assertEquals(0, store.size());
+    assertNull(store.get(id("first")));
+  }
+}
@@ -21,8 +21,11 @@ import static org.junit.Assert.*;
 
 import java.util.Arrays;
 
+import nodash.core.NoDefaultAdapter;
+import nodash.core.NoUtil;
 import nodash.exceptions.NoSessionConfirmedException;
 import nodash.exceptions.NoSessionExpiredException;
+import nodash.exceptions.NoSessionNotAwaitingConfirmationException;
 import nodash.exceptions.NoUserNotValidException;
 import nodash.models.NoSession;
 import nodash.models.NoSession.NoState;
@@ -39,7 +42,9 @@ public class NoSessionTest {
     NoSession session = new NoSession(user);
     assertNotNull(session.getNoUser());
     assertNotNull(session.getUuid());
-    assertNotNull(session.getEncryptedUuid());
+    assertEquals(NoSession.SESSION_ID_LENGTH, session.getSessionId().length);
+    assertEquals(NoSession.SESSION_ID_LENGTH + NoUtil.COOKIE_TAG_LENGTH,
+        session.getCookie().length);
     assertNull(session.getIncoming());
     assertNull(session.getOriginalHash());
     assertEquals(session.getNoUser(), user);
@@ -88,4 +93,40 @@ public class NoSessionTest {
     }
   }
 
+  @Test
+  public void testNoSessionKeyCache() throws NoUserNotValidException,
+      NoSessionExpiredException, NoSessionConfirmedException,
+      NoSessionNotAwaitingConfirmationException {
+    TestNoUser user = new TestNoUser("Test");
+    byte[] userFile = user.createFile("password".toCharArray());
+    NoSession session = new NoSession(userFile, "password".toCharArray(), TestNoUser.class, true);
+    ((TestNoUser) session.getNoUser()).setUsername("Changed");
+
+    byte[] saved = session.initiateSaveAttempt("password".toCharArray());
+    NoUser reloaded =
+        NoUser.createUserFromFile(Arrays.copyOf(saved, saved.length), "password".toCharArray(),
+            TestNoUser.class);
+    assertEquals("Changed", ((TestNoUser) reloaded).getUsername());
+
+    try {
+      session.confirmSave(new NoDefaultAdapter(), Arrays.copyOf(saved, saved.length),
+          "badpassword".toCharArray(), TestNoUser.class);
+      fail("Did not throw NoUserNotValidException when given bad password.");
+    } catch (NoUserNotValidException e) {
+      // Do nothing, correct
+    }
+    session.confirmSave(new NoDefaultAdapter(), saved, "password".toCharArray(), TestNoUser.class);
+    try {
+      session.getNoUser();
+      fail("Did not throw NoSessionConfirmedException after confirming.");
+    } catch (NoSessionConfirmedException e) {
+      // Do nothing, correct
+    }
+
+    NoSession newSession = new NoSession(new TestNoUser("New"), true);
+    byte[] newFile = newSession.initiateSaveAttempt("password".toCharArray());
+    newSession.close();
+    assertNotNull(NoUser.createUserFromFile(newFile, "password".toCharArray(), TestNoUser.class));
+  }
+
 }
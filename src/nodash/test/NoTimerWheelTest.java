@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014 David Horscroft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * Tests for the NoTimerWheel used to sweep leases.
+ */
+
+package nodash.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import nodash.core.NoTimerWheel;
+
+import org.junit.Test;
+
+public class NoTimerWheelTest {
+
+  @Test
+  public void testExpiresAfterDeadline() {
+    NoTimerWheel<String> wheel = new NoTimerWheel<String>(10, 1000);
+    wheel.schedule("soon", 1050);
+    wheel.schedule("later", 1500);
+    wheel.schedule("past", 500);
+    assertEquals(3, wheel.size());
+
+    assertEquals(Collections.singletonList("past"), wheel.advance(1010));
+    assertTrue(wheel.advance(1050).isEmpty());
+    assertEquals(Collections.singletonList("soon"), wheel.advance(1060));
+    assertTrue(wheel.advance(1499).isEmpty());
+    assertEquals(Collections.singletonList("later"), wheel.advance(1510));
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void testCascadesAcrossLevels() {
+    long now = 123456;
+    NoTimerWheel<Long> wheel = new NoTimerWheel<Long>(1, now);
+    Random random = new Random(42);
+    List<Long> deadlines = new ArrayList<Long>();
+    for (int x = 0; x < 2000; x++) {
+      /* Spread over all four levels, and past the end of the wheel. */
+      long deadline = now + (long) Math.pow(2, random.nextInt(27)) + random.nextInt(64);
+      deadlines.add(deadline);
+      wheel.schedule(deadline, deadline);
+    }
+    Collections.sort(deadlines);
+
+    int expired = 0;
+    for (long deadline : deadlines) {
+      for (long item : wheel.advance(deadline + 1)) {
+        assertTrue(item <= deadline);
+        expired++;
+      }
+      assertEquals(deadlines.size() - expired, wheel.size());
+      assertTrue(expired > deadlines.indexOf(deadline));
+    }
+    assertEquals(deadlines.size(), expired);
+  }
+}
@@ -27,6 +27,7 @@ import javax.crypto.IllegalBlockSizeException;
 
 import nodash.core.NoUtil;
 import nodash.exceptions.NoUserNotValidException;
+import nodash.models.NoFingerprint;
 import nodash.models.NoUser;
 import nodash.test.functional.implementations.TestNoUser;
 
@@ -127,4 +128,40 @@ public class NoUserTest {
     }
   }
 
+  @Test
+  public void testCreateUserFromJson() throws NoUserNotValidException {
+    TestNoUser user = new TestNoUser("Test");
+    byte[] file = user.createFile("password".toCharArray());
+    byte[] hash = user.createHash();
+
+    byte[] json = NoUser.decryptFile(file, "password".toCharArray());
+    TestNoUser first = (TestNoUser) NoUser.createUserFromJson(json, TestNoUser.class);
+    TestNoUser second = (TestNoUser) NoUser.createUserFromJson(json, TestNoUser.class);
+    assertNotSame(first, second);
+    assertTrue(Arrays.equals(hash, first.createHash()));
+    assertTrue(Arrays.equals(hash, second.createHash()));
+
+    first.setUsername("Changed");
+    assertEquals("Test", second.getUsername());
+  }
+
+  @Test
+  public void testFingerprint() {
+    NoUser user = new TestNoUser("Test");
+    NoUser other = new TestNoUser("Other");
+    NoFingerprint fingerprint = user.getFingerprint();
+    assertEquals(NoFingerprint.LENGTH, fingerprint.getBytes().length);
+    assertEquals(fingerprint, NoFingerprint.of(user.getRsaPublicKey()));
+    assertEquals(fingerprint, NoFingerprint.fromBytes(fingerprint.getBytes()));
+    assertEquals(fingerprint.hashCode(), NoFingerprint.fromBytes(fingerprint.getBytes()).hashCode());
+    assertFalse(fingerprint.equals(other.getFingerprint()));
+
+    try {
+      NoFingerprint.fromBytes(new byte[NoFingerprint.LENGTH - 1]);
+      fail("Should have thrown an IllegalArgumentException.");
+    } catch (IllegalArgumentException e) {
+      // Do nothing, correct
+    }
+  }
+
 }
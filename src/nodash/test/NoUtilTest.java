@@ -262,4 +262,64 @@ public class NoUtilTest {
     assertTrue(Arrays.equals(originalBytes, decrypted));
   }
 
+
+  @Test
+  public void testCookie() {
+    final byte[] sessionId = {'s', 'o', 'm', 'e', 'b', 'y', 't', 'e', 's'};
+    byte[] cookie = NoUtil.createCookie(sessionId);
+    assertEquals(sessionId.length + NoUtil.COOKIE_TAG_LENGTH, cookie.length);
+    assertTrue(Arrays.equals(sessionId, NoUtil.verifyCookie(cookie, sessionId.length)));
+
+    byte[] forgedId = Arrays.copyOf(cookie, cookie.length);
+    forgedId[0] = 'S';
+    assertNull(NoUtil.verifyCookie(forgedId, sessionId.length));
+
+    byte[] forgedTag = Arrays.copyOf(cookie, cookie.length);
+    forgedTag[cookie.length - 1] ^= 1;
+    assertNull(NoUtil.verifyCookie(forgedTag, sessionId.length));
+
+    assertNull(NoUtil.verifyCookie(sessionId, sessionId.length));
+  }
+
+  @Test
+  public void testServerKeyEncryptionReuse() throws IllegalBlockSizeException,
+      BadPaddingException, InterruptedException {
+    final byte[] originalBytes = {'s', 'o', 'm', 'e', 'b', 'y', 't', 'e', 's'};
+    byte[] encrypted = NoUtil.encrypt(originalBytes);
+    assertTrue(Arrays.equals(encrypted, NoUtil.encrypt(originalBytes)));
+
+    try {
+      NoUtil.decrypt(Arrays.copyOf(encrypted, encrypted.length - 1));
+      fail("Did not throw IllegalBlockSizeException while decrypting a truncated block.");
+    } catch (IllegalBlockSizeException e) {
+      // Do nothing, correct
+    }
+    assertTrue(Arrays.equals(originalBytes, NoUtil.decrypt(encrypted)));
+
+    final byte[][] results = new byte[4][];
+    Thread[] threads = new Thread[results.length];
+    for (int x = 0; x < threads.length; x++) {
+      final int index = x;
+      threads[x] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int y = 0; y < 100; y++) {
+              results[index] = NoUtil.decrypt(NoUtil.encrypt(originalBytes));
+            }
+          } catch (IllegalBlockSizeException | BadPaddingException e) {
+            results[index] = null;
+          }
+        }
+      });
+      threads[x].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (byte[] result : results) {
+      assertTrue(Arrays.equals(originalBytes, result));
+    }
+  }
+
 }
@@ -9,6 +9,7 @@ import nodash.core.NoAdapter;
 import nodash.core.NoCore;
 import nodash.core.NoDefaultAdapter;
 import nodash.exceptions.NoAdapterException;
+import nodash.exceptions.NoServerBusyException;
 import nodash.exceptions.NoSessionAlreadyAwaitingConfirmationException;
 import nodash.exceptions.NoSessionConfirmedException;
 import nodash.exceptions.NoSessionExpiredException;
@@ -46,7 +47,7 @@ public class NoRoutineTest {
   public void testUserChangeOwnData() throws NoSessionExpiredException,
       NoSessionConfirmedException, NoSessionNotAwaitingConfirmationException,
       NoUserNotValidException, NoUserAlreadyOnlineException, NoSessionNotChangedException,
-      NoSessionAlreadyAwaitingConfirmationException, NoAdapterException {
+      NoSessionAlreadyAwaitingConfirmationException, NoAdapterException, NoServerBusyException {
     final byte[] userFile = registerAndConfirm(new TestNoUser("username"), "password");
 
     NoAdapter adapter = new NoDefaultAdapter();
@@ -82,7 +83,8 @@ public class NoRoutineTest {
   public void testUserAction() throws NoSessionExpiredException, NoSessionConfirmedException,
       NoSessionNotAwaitingConfirmationException, NoUserNotValidException,
       NoUserAlreadyOnlineException, NoSessionNotChangedException,
-      NoSessionAlreadyAwaitingConfirmationException { // testing TestJustTouchStaticField
+      NoSessionAlreadyAwaitingConfirmationException,
+      NoServerBusyException { // testing TestJustTouchStaticField
     byte[] userFile = registerAndConfirm(new TestNoUser("username"), "password");
     NoCore core = new NoCore(new NoDefaultAdapter(), TestNoUser.class);
 
@@ -116,7 +118,8 @@ public class NoRoutineTest {
   public void testUserErrorableActionWithoutError() throws NoSessionExpiredException,
       NoSessionConfirmedException, NoSessionNotAwaitingConfirmationException,
       NoUserNotValidException, NoUserAlreadyOnlineException, NoSessionNotChangedException,
-      NoSessionAlreadyAwaitingConfirmationException { // testing TestRequestFunds
+      NoSessionAlreadyAwaitingConfirmationException,
+      NoServerBusyException { // testing TestRequestFunds
     byte[] requesterFile = registerAndConfirm(new TestNoUser("requester"), "password");
     NoCore core = new NoCore(new NoDefaultAdapter(), TestNoUser.class);
 
@@ -135,7 +138,8 @@ public class NoRoutineTest {
   public void testUserErrorableActionWithError() throws NoSessionExpiredException,
       NoSessionConfirmedException, NoSessionNotAwaitingConfirmationException,
       NoUserNotValidException, NoUserAlreadyOnlineException, NoSessionNotChangedException,
-      NoSessionAlreadyAwaitingConfirmationException { // testing TestRequestFunds
+      NoSessionAlreadyAwaitingConfirmationException,
+      NoServerBusyException { // testing TestRequestFunds
     byte[] requesterFile = registerAndConfirm(new TestNoUser("requester"), "password");
     NoCore core = new NoCore(new NoDefaultAdapter(), TestNoUser.class);
 
@@ -158,7 +162,8 @@ public class NoRoutineTest {
   public void testUserTargetedAction() throws NoSessionExpiredException,
       NoSessionConfirmedException, NoSessionNotAwaitingConfirmationException,
       NoUserNotValidException, NoUserAlreadyOnlineException, NoSessionNotChangedException,
-      NoSessionAlreadyAwaitingConfirmationException { // testing TestSendFunds
+      NoSessionAlreadyAwaitingConfirmationException,
+      NoServerBusyException { // testing TestSendFunds
     byte[] fundSenderFile = registerAndConfirm(new TestNoUser("fund-sender"), "password1");
     byte[] fundGetterFile = registerAndConfirm(new TestNoUser("fund-getter"), "password2");
     NoCore core = new NoCore(new NoDefaultAdapter(), TestNoUser.class);
@@ -208,7 +213,8 @@ public class NoRoutineTest {
   public void testUserHandshakeAction() throws NoUserNotValidException,
       NoUserAlreadyOnlineException, NoSessionExpiredException, NoSessionConfirmedException,
       NoSessionNotAwaitingConfirmationException, NoSessionNotChangedException,
-      NoSessionAlreadyAwaitingConfirmationException { // testing TestSendFundsReceipted
+      NoSessionAlreadyAwaitingConfirmationException,
+      NoServerBusyException { // testing TestSendFundsReceipted
     byte[] fundSenderFile = registerAndConfirm(new TestNoUser("fund-sender"), "password1");
     byte[] fundGetterFile = registerAndConfirm(new TestNoUser("fund-getter"), "password2");
     NoCore core = new NoCore(new NoDefaultAdapter(), TestNoUser.class);
@@ -265,7 +271,8 @@ public class NoRoutineTest {
   public void testUserSourcedAction() throws NoSessionExpiredException,
       NoSessionConfirmedException, NoSessionNotChangedException,
       NoSessionAlreadyAwaitingConfirmationException, NoSessionNotAwaitingConfirmationException,
-      NoUserNotValidException, NoUserAlreadyOnlineException { // testing TestSendFundsSourced
+      NoUserNotValidException, NoUserAlreadyOnlineException,
+      NoServerBusyException { // testing TestSendFundsSourced
     byte[] fundSenderFile = registerAndConfirm(new TestNoUser("fund-sender"), "password1");
     byte[] fundGetterFile = registerAndConfirm(new TestNoUser("fund-getter"), "password2");
     NoCore core = new NoCore(new NoDefaultAdapter(), TestNoUser.class);